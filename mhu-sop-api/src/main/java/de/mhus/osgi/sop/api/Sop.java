@@ -27,10 +27,28 @@ public class Sop {
     public static final String PARAM_OPERATION_PATH = "path";
     public static final String OPERATION_LIST = "_list";
     public static final String OPERATION_INFO = "_get";
+    /** Envelope of multiple operation calls */
+    public static final String OPERATION_BATCH = "_batch";
+    /** List of calls in the envelope, every call has a path, version and parameters */
+    public static final String PARAM_BATCH_CALLS = "calls";
+    /** Parameters of a call in the envelope */
+    public static final String PARAM_BATCH_PARAMETERS = "parameters";
+    /** Execute the calls of the envelope in parallel */
+    public static final String PARAM_BATCH_PARALLEL = "parallel";
+    /** List of results of the envelope, every result has successful, rc, msg and result */
+    public static final String PARAM_BATCH_RESULTS = "results";
+    /** Result object of a call in the envelope */
+    public static final String PARAM_BATCH_RESULT = "result";
     public static final String PARAM_OPERATION_ID = "id";
 
     public static final String PARAM_AAA_TICKET = "_sop_aaa_ticket";
     public static final String PARAM_LOCALE = "_sop_locale";
+    /** Priority of the operation call 0 (low) to 9 (high) like JMS priorities */
+    public static final String PARAM_PRIORITY = "_sop_priority";
+    /** Set by the caller if binary results can be received as a stream of chunks */
+    public static final String PARAM_STREAM = "_sop_stream";
+    /** Name of the codec of the message body, also accepted for the answer */
+    public static final String PARAM_CODEC = "_sop_codec";
 
     // public static final long MAX_MSG_BYTES = 1024 * 1024 * 100; // 100 MB
 
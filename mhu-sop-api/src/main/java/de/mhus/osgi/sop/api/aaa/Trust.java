@@ -30,4 +30,13 @@ public interface Trust {
     IReadProperties getProperties();
 
     String getName();
+
+    /**
+     * Return the key to sign trust tickets or null if signed tickets are not supported.
+     *
+     * @return The key
+     */
+    default byte[] getSigningKey() {
+        return null;
+    }
 }
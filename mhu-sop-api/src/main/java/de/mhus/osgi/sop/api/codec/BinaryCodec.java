@@ -0,0 +1,334 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.mhus.lib.core.MProperties;
+import de.mhus.lib.core.cfg.CfgString;
+
+/**
+ * Compact binary codec. Every value is written with a one byte type followed by the data.
+ * Primitives, strings, dates, byte arrays, properties, hash maps and array lists are written
+ * directly and decoded to the same type, other serializable objects fall back to java
+ * serialization.
+ *
+ * <p>Only classes matching serializableClasses are deserialized, the data is received from the
+ * network. The classes are loaded by the context class loader of the thread and the loader of
+ * this bundle.
+ */
+public class BinaryCodec implements OperationCodec {
+
+    public static final String NAME = "binary";
+
+    /**
+     * Comma separated list of classes allowed for java deserialization, a trailing '*' matches all
+     * classes starting with the prefix. Arrays of allowed classes and primitives are allowed.
+     */
+    public static final CfgString CFG_SERIALIZABLE_CLASSES =
+            new CfgString(
+                    OperationCodec.class,
+                    "serializableClasses",
+                    "java.lang.*,java.util.*,java.math.*,java.time.*,java.sql.*,de.mhus.*");
+
+    private static volatile String[] allowed;
+    private static volatile String allowedDefinition;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte BOOLEAN = 6;
+    private static final byte SHORT = 7;
+    private static final byte BYTE = 8;
+    private static final byte CHAR = 9;
+    private static final byte DATE = 10;
+    private static final byte BYTES = 11;
+    private static final byte PROPERTIES = 12;
+    private static final byte MAP = 13;
+    private static final byte LIST = 14;
+    private static final byte SERIALIZED = 15;
+
+    /** Maximum nesting of properties, maps and lists */
+    private static final int MAX_DEPTH = 100;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean canEncode(Object value) {
+        // properties are written entry by entry
+        return value == null || value instanceof Serializable || value instanceof MProperties;
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        write(out, value);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        return read(in, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (value.getClass() == Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        } else if (value.getClass() == MProperties.class) {
+            out.writeByte(PROPERTIES);
+            MProperties properties = (MProperties) value;
+            out.writeInt(properties.size());
+            for (Entry<String, Object> entry : properties) {
+                writeString(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        } else if ((value.getClass() == HashMap.class || value.getClass() == LinkedHashMap.class)
+                && isStringMap((Map<Object, Object>) value)) {
+            out.writeByte(MAP);
+            Map<String, Object> map = (Map<String, Object>) value;
+            out.writeInt(map.size());
+            for (Entry<String, Object> entry : map.entrySet()) {
+                writeString(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        } else if (value.getClass() == ArrayList.class) {
+            out.writeByte(LIST);
+            ArrayList<Object> list = (ArrayList<Object>) value;
+            out.writeInt(list.size());
+            for (Object item : list) write(out, item);
+        } else if (value instanceof Serializable) {
+            out.writeByte(SERIALIZED);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+                oos.writeObject(value);
+            }
+            out.writeInt(bos.size());
+            bos.writeTo(out);
+        } else {
+            throw new IOException("can't encode " + value.getClass().getCanonicalName());
+        }
+    }
+
+    private Object read(DataInputStream in, int depth) throws IOException {
+        byte type = in.readByte();
+        if (type >= PROPERTIES && type <= LIST && depth >= MAX_DEPTH)
+            throw new IOException("nesting too deep");
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case BOOLEAN:
+                return in.readBoolean();
+            case SHORT:
+                return in.readShort();
+            case BYTE:
+                return in.readByte();
+            case CHAR:
+                return in.readChar();
+            case DATE:
+                return new Date(in.readLong());
+            case BYTES:
+                {
+                    byte[] data = new byte[readLength(in)];
+                    in.readFully(data);
+                    return data;
+                }
+            case PROPERTIES:
+                {
+                    int size = readLength(in);
+                    MProperties properties = new MProperties();
+                    for (int i = 0; i < size; i++)
+                        properties.put(readString(in), read(in, depth + 1));
+                    return properties;
+                }
+            case MAP:
+                {
+                    int size = readLength(in);
+                    LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+                    for (int i = 0; i < size; i++) map.put(readString(in), read(in, depth + 1));
+                    return map;
+                }
+            case LIST:
+                {
+                    int size = readLength(in);
+                    ArrayList<Object> list = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) list.add(read(in, depth + 1));
+                    return list;
+                }
+            case SERIALIZED:
+                {
+                    byte[] data = new byte[readLength(in)];
+                    in.readFully(data);
+                    try (ObjectInputStream ois = new FilteredInputStream(data)) {
+                        return ois.readObject();
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException(e);
+                    }
+                }
+            default:
+                throw new IOException("unknown type " + type);
+        }
+    }
+
+    private boolean isStringMap(Map<Object, Object> map) {
+        for (Object key : map.keySet()) if (!(key instanceof String)) return false;
+        return true;
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        byte[] data = new byte[readLength(in)];
+        in.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    // every item needs at least one byte, the length can't be larger than the rest of the data
+    private int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available())
+            throw new IOException("invalid length " + length);
+        return length;
+    }
+
+    static boolean isAllowed(String name) {
+        // arrays of primitives or of allowed classes
+        if (name.startsWith("[")) {
+            while (name.startsWith("[")) name = name.substring(1);
+            if (name.length() == 1) return "ZBCSIJFD".indexOf(name.charAt(0)) >= 0;
+            if (!name.startsWith("L") || !name.endsWith(";")) return false;
+            name = name.substring(1, name.length() - 1);
+        }
+
+        String definition = CFG_SERIALIZABLE_CLASSES.value();
+        String[] list = allowed;
+        if (list == null || !definition.equals(allowedDefinition)) {
+            list = definition.split(",");
+            for (int i = 0; i < list.length; i++) list[i] = list[i].trim();
+            allowed = list;
+            allowedDefinition = definition;
+        }
+        for (String pattern : list) {
+            if (pattern.endsWith("*")) {
+                if (name.startsWith(pattern.substring(0, pattern.length() - 1))) return true;
+            } else if (name.equals(pattern)) return true;
+        }
+        return false;
+    }
+
+    private static class FilteredInputStream extends ObjectInputStream {
+
+        private FilteredInputStream(byte[] data) throws IOException {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (!isAllowed(name)) throw new InvalidClassException(name, "not allowed");
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null)
+                try {
+                    return Class.forName(name, false, loader);
+                } catch (ClassNotFoundException e) {
+                }
+            try {
+                return Class.forName(name, false, BinaryCodec.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                // primitive types
+                return super.resolveClass(desc);
+            }
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces)
+                throws IOException, ClassNotFoundException {
+            throw new InvalidClassException("proxy", "not allowed");
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import de.mhus.lib.core.MString;
+import de.mhus.lib.core.cfg.CfgInt;
+import de.mhus.lib.core.logging.MLogUtil;
+import de.mhus.osgi.api.services.MOsgi;
+
+public class CodecUtil {
+
+    private static final byte PLAIN = 0;
+    private static final byte DEFLATED = 1;
+
+    private static final BinaryCodec BINARY = new BinaryCodec();
+
+    /** Maximum size in bytes of decoded data, also after decompression */
+    public static final CfgInt CFG_MAX_SIZE =
+            new CfgInt(OperationCodec.class, "maxSize", 64 * 1024 * 1024);
+
+    /**
+     * Return the first available codec of a comma separated list of codec names.
+     *
+     * @param names The names in order of preference
+     * @return The codec or null if none is available
+     */
+    public static OperationCodec getCodec(String names) {
+        if (names == null || names.trim().isEmpty()) return null;
+        List<OperationCodec> services = null;
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (BinaryCodec.NAME.equals(name)) return BINARY;
+            if (services == null) services = getServices();
+            for (OperationCodec codec : services) if (name.equals(codec.getName())) return codec;
+        }
+        return null;
+    }
+
+    /**
+     * Return the names of all available codecs, the built in binary codec first.
+     *
+     * @return Comma separated list of names
+     */
+    public static String getCodecNames() {
+        LinkedHashSet<String> names = new LinkedHashSet<>();
+        names.add(BinaryCodec.NAME);
+        for (OperationCodec codec : getServices()) names.add(codec.getName());
+        return MString.join(names.iterator(), ",");
+    }
+
+    private static List<OperationCodec> getServices() {
+        try {
+            return MOsgi.getServices(OperationCodec.class, null);
+        } catch (Throwable t) {
+            // not in a osgi container
+            MLogUtil.log().d(t);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Encode the value. If the encoded data is larger then the threshold it will be compressed.
+     * The first byte of the result marks the compression.
+     *
+     * @param codec The codec
+     * @param value The value
+     * @param compressThreshold Minimum size in bytes to compress, 0 to disable compression
+     * @return The data
+     * @throws IOException
+     */
+    public static byte[] encode(OperationCodec codec, Object value, int compressThreshold)
+            throws IOException {
+        byte[] data = codec.encode(value);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 1);
+        if (compressThreshold <= 0 || data.length < compressThreshold) {
+            out.write(PLAIN);
+            out.write(data);
+        } else {
+            out.write(DEFLATED);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater)) {
+                dos.write(data);
+            } finally {
+                deflater.end();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode data created by encode().
+     *
+     * @param codec The codec
+     * @param data The data
+     * @return The value
+     * @throws IOException
+     */
+    public static Object decode(OperationCodec codec, byte[] data) throws IOException {
+        if (data.length == 0) throw new IOException("no data");
+        int max = CFG_MAX_SIZE.value();
+        if (data.length - 1 > max) throw new IOException("data too large " + data.length);
+        if (data[0] == PLAIN) {
+            byte[] plain = new byte[data.length - 1];
+            System.arraycopy(data, 1, plain, 0, plain.length);
+            return codec.decode(plain);
+        }
+        if (data[0] != DEFLATED) throw new IOException("unknown compression " + data[0]);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        try (InputStream is =
+                new InflaterInputStream(new ByteArrayInputStream(data, 1, data.length - 1))) {
+            byte[] buffer = new byte[8192];
+            int size;
+            while ((size = is.read(buffer)) >= 0) {
+                if (out.size() + size > max) throw new IOException("inflated data too large");
+                out.write(buffer, 0, size);
+            }
+        }
+        return codec.decode(out.toByteArray());
+    }
+}
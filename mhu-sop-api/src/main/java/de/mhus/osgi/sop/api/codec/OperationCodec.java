@@ -0,0 +1,43 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.codec;
+
+import java.io.IOException;
+
+/**
+ * Encodes operation parameters and results for the transport to remote nodes. Codecs are
+ * registered as OSGi services and selected by name. The codecs supported by the target node are
+ * published in the codec tag of the operation.
+ */
+public interface OperationCodec {
+
+    /**
+     * Unique name of the codec, used in the codec tag and in messages.
+     *
+     * @return The name
+     */
+    String getName();
+
+    /**
+     * Return true if the value can be encoded by this codec.
+     *
+     * @param value The value
+     * @return true if supported
+     */
+    boolean canEncode(Object value);
+
+    byte[] encode(Object value) throws IOException;
+
+    Object decode(byte[] data) throws IOException;
+}
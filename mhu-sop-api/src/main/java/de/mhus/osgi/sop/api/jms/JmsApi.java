@@ -19,6 +19,22 @@ public interface JmsApi {
     public static final String REGISTRY_TOPIC = "sop.registry";
     public static final String OPT_TIMEOUT = "timeout";
     public static final String OPT_ONE_WAY = "oneWay";
+    /**
+     * Priority of the call 0-9, if not set the priority tag of the operation is used, default is 4
+     */
+    public static final String OPT_PRIORITY = "priority";
+    /**
+     * Receive binary results (streams and files) as a stream of chunks. The result is an
+     * InputStream and must be closed by the caller.
+     */
+    public static final String OPT_STREAM = "stream";
+    /**
+     * Comma separated list of codecs to use for the call, if not set the codec tag of the
+     * operation is used
+     */
+    public static final String OPT_CODEC = "codec";
+    /** Execute the calls of a batch envelope in parallel on the target node */
+    public static final String OPT_BATCH_PARALLEL = "batchParallel";
 
     String getDefaultConnectionName();
 
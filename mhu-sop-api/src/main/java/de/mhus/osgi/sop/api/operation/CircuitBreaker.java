@@ -0,0 +1,133 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.operation;
+
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgInt;
+import de.mhus.lib.core.cfg.CfgLong;
+
+/**
+ * Circuit breaker of a single operation. The circuit opens if the error rate in the window is
+ * too high or after a row of timeouts. Open circuits are skipped by the OperationsSelector. After
+ * the open time one probe call is allowed (half open), the answer closes or opens the circuit
+ * again.
+ */
+public class CircuitBreaker {
+
+    public enum STATE {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public static final CfgBoolean CFG_ENABLED =
+            new CfgBoolean(OperationApi.class, "circuitEnabled", true);
+    /** Minimum number of calls in the window before the error rate is used */
+    public static final CfgInt CFG_MIN_CALLS =
+            new CfgInt(OperationApi.class, "circuitMinCalls", 10);
+    /** Error rate in percent to open the circuit */
+    public static final CfgInt CFG_ERROR_RATE =
+            new CfgInt(OperationApi.class, "circuitErrorRate", 50);
+    public static final CfgLong CFG_WINDOW =
+            new CfgLong(OperationApi.class, "circuitWindow", 30000);
+    /** Time in ms the circuit stays open before a probe call is allowed */
+    public static final CfgLong CFG_OPEN_TIME =
+            new CfgLong(OperationApi.class, "circuitOpenTime", 10000);
+    /** Calls taking longer are handled like timeouts */
+    public static final CfgLong CFG_SLOW_CALL =
+            new CfgLong(OperationApi.class, "circuitSlowCall", 30000);
+    /** Number of timeouts in a row to open the circuit */
+    public static final CfgInt CFG_TIMEOUTS =
+            new CfgInt(OperationApi.class, "circuitTimeouts", 3);
+
+    private static final long MS = 1000000;
+
+    private STATE state = STATE.CLOSED;
+    private long changed = System.nanoTime();
+    private long windowStart = changed;
+    private long probe;
+    private int calls;
+    private int errors;
+    private int timeouts;
+
+    /**
+     * Return true if the circuit accepts calls. Does not change the state, the probe of a half
+     * open circuit is taken by begin().
+     *
+     * @return true if a call is allowed
+     */
+    public synchronized boolean isAvailable() {
+        if (!CFG_ENABLED.value()) return true;
+        long now = System.nanoTime();
+        switch (state) {
+            case OPEN:
+                return now - changed >= CFG_OPEN_TIME.value() * MS;
+            case HALF_OPEN:
+                // a lost probe is released after the open time
+                return probe == 0 || now - probe >= CFG_OPEN_TIME.value() * MS;
+            default:
+                return true;
+        }
+    }
+
+    synchronized void begin(long start) {
+        if (state == STATE.CLOSED || !isAvailable()) return;
+        if (state == STATE.OPEN) setState(STATE.HALF_OPEN, start);
+        probe = start;
+    }
+
+    synchronized void end(long start, boolean error, long rtt) {
+        // ignore answers of calls started before the last change
+        if (start - changed < 0) return;
+        boolean timeout = rtt >= CFG_SLOW_CALL.value();
+        if (timeout) error = true;
+        long now = System.nanoTime();
+        if (state != STATE.CLOSED) {
+            // only the answer of the probe decides
+            if (state == STATE.HALF_OPEN && start == probe)
+                setState(error ? STATE.OPEN : STATE.CLOSED, now);
+            return;
+        }
+        if (now - windowStart >= CFG_WINDOW.value() * MS) {
+            windowStart = now;
+            calls = 0;
+            errors = 0;
+        }
+        calls++;
+        if (error) errors++;
+        timeouts = timeout ? timeouts + 1 : 0;
+        if (timeouts >= CFG_TIMEOUTS.value()
+                || calls >= CFG_MIN_CALLS.value()
+                        && errors * 100L >= CFG_ERROR_RATE.value() * (long) calls)
+            setState(STATE.OPEN, now);
+    }
+
+    private void setState(STATE state, long now) {
+        this.state = state;
+        changed = now;
+        windowStart = now;
+        probe = 0;
+        calls = 0;
+        errors = 0;
+        timeouts = 0;
+    }
+
+    public synchronized STATE getState() {
+        return state;
+    }
+
+    public synchronized void reset() {
+        setState(STATE.CLOSED, System.nanoTime());
+    }
+}
@@ -15,6 +15,7 @@ package de.mhus.osgi.sop.api.operation;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import de.mhus.lib.core.IProperties;
 import de.mhus.lib.core.strategy.OperationResult;
@@ -64,6 +65,32 @@ public interface OperationApi extends SApi {
             OperationDescriptor desc, IProperties properties, String... executeOptions)
             throws NotFoundException;
 
+    /**
+     * Execute the operation asynchronously. Remote providers complete the future if the answer
+     * arrives, the caller thread is not blocked. Remote providers complete the future by a small
+     * shared pool of threads, only if the pool is overloaded by the thread receiving the answers.
+     * Dependent stages run in these threads and must not block, e.g. wait for another answer. Use
+     * the async methods with an own executor for blocking work.
+     *
+     * @param desc The operation
+     * @param properties Parameters
+     * @param executeOptions Options
+     * @return Future of the result, completed exceptionally with NotFoundException if the provider
+     *     is not found
+     */
+    CompletableFuture<OperationResult> doExecuteAsync(
+            OperationDescriptor desc, IProperties properties, String... executeOptions);
+
+    /**
+     * Execute a list of calls. Remote providers send calls to the same node together in one
+     * message. The options of the batch are used for the messages, e.g. the timeout.
+     *
+     * @param calls The calls
+     * @param executeOptions Options of the batch
+     * @return The results in the order of the calls, failed calls have a not successful result
+     */
+    List<OperationResult> doExecuteBatch(List<OperationCall> calls, String... executeOptions);
+
     void synchronize();
 
     String[] getProviderNames();
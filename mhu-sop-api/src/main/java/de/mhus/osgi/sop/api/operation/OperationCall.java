@@ -0,0 +1,48 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.operation;
+
+import de.mhus.lib.core.IProperties;
+
+/** One call of a batch, see OperationApi.doExecuteBatch() */
+public class OperationCall {
+
+    private OperationDescriptor descriptor;
+    private IProperties properties;
+    private String[] executeOptions;
+
+    public OperationCall(
+            OperationDescriptor descriptor, IProperties properties, String... executeOptions) {
+        this.descriptor = descriptor;
+        this.properties = properties;
+        this.executeOptions = executeOptions;
+    }
+
+    public OperationDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    public IProperties getProperties() {
+        return properties;
+    }
+
+    public String[] getExecuteOptions() {
+        return executeOptions;
+    }
+
+    @Override
+    public String toString() {
+        return descriptor == null ? "?" : descriptor.getPath();
+    }
+}
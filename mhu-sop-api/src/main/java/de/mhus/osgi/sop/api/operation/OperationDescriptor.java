@@ -13,6 +13,7 @@
  */
 package de.mhus.osgi.sop.api.operation;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.UUID;
@@ -36,12 +37,15 @@ public class OperationDescriptor implements MNlsProvider, Nls, Named, Versioned
     public static final String TAG_REMOTE = "remote";
     public static final String TAG_HOST = "host";
     public static final String TAG_IDENT = "ident";
+    /** Comma separated list of codecs accepted by the operation, see OperationCodec */
+    public static final String TAG_CODEC = "codec";
 
     private Collection<String> tags;
     private OperationAddress address;
     private OperationDescription description;
     private String acl;
     private UUID uuid;
+    private final long[][] tagBits;
 
     public OperationDescriptor(
             UUID uuid,
@@ -70,6 +74,9 @@ public class OperationDescriptor implements MNlsProvider, Nls, Named, Versioned
                         ? null
                         : description.getParameters().get(OperationDescription.TAGS);
         if (tagsStr != null) for (String item : String.valueOf(tagsStr).split(";")) tags.add(item);
+
+        // intern the tags now, lookups only know existing tags
+        tagBits = createTagBits();
     }
 
     public boolean compareTags(Collection<String> providedTags) {
@@ -95,6 +102,26 @@ public class OperationDescriptor implements MNlsProvider, Nls, Named, Versioned
         return tags;
     }
 
+    // all tags, required tags (*) and excluded tags (!) as bits
+    long[][] getTagBits() {
+        return tagBits;
+    }
+
+    private long[][] createTagBits() {
+        ArrayList<String> required = new ArrayList<>();
+        ArrayList<String> excluded = new ArrayList<>();
+        if (tags != null)
+            for (String t : tags) {
+                if (t.startsWith("*")) required.add(t.substring(1));
+                else if (t.startsWith("!")) excluded.add(t.substring(1));
+            }
+        return new long[][] {
+            OperationTags.toBits(tags, true),
+            OperationTags.toBits(required, true),
+            OperationTags.toBits(excluded, true)
+        };
+    }
+
     /**
      * Every action should have a parameter definition. If parameter definitions are not supported,
      * the method will return null;
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.operation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+
+import de.mhus.lib.core.IProperties;
+import de.mhus.lib.core.M;
+import de.mhus.lib.core.cfg.CfgLong;
+import de.mhus.lib.core.strategy.NotSuccessful;
+import de.mhus.lib.core.strategy.OperationResult;
+
+/**
+ * Executes a list of operations in parallel. The calls are started in the caller thread to keep
+ * the access context of the caller, remote calls are executed asynchronous and do not block the
+ * thread. The await methods return after all answers, a quorum or the deadline, the answers
+ * gathered until then are available.
+ */
+public class OperationFanOut {
+
+    /** Default deadline in ms for all answers */
+    public static final CfgLong CFG_DEADLINE =
+            new CfgLong(OperationApi.class, "fanOutDeadline", 60000);
+
+    private List<OperationDescriptor> targets;
+    private OperationResult[] results;
+    private int answered;
+    private int successful;
+
+    public OperationFanOut(List<OperationDescriptor> targets) {
+        this.targets = new ArrayList<>(targets);
+        results = new OperationResult[this.targets.size()];
+    }
+
+    /**
+     * Start all calls.
+     *
+     * @param properties
+     * @param executeOptions
+     * @return this
+     */
+    public OperationFanOut start(IProperties properties, String... executeOptions) {
+        OperationApi api = M.l(OperationApi.class);
+        for (int i = 0; i < targets.size(); i++) {
+            final int index = i;
+            try {
+                api.doExecuteAsync(targets.get(index), properties, executeOptions)
+                        .whenComplete((res, t) -> answer(index, res, t));
+            } catch (Throwable t) {
+                answer(index, null, t);
+            }
+        }
+        return this;
+    }
+
+    private synchronized void answer(int index, OperationResult res, Throwable t) {
+        if (results[index] != null) return;
+        if (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+        if (res == null)
+            res =
+                    new NotSuccessful(
+                            targets.get(index).getPath(),
+                            t == null ? "no result" : t.getMessage(),
+                            OperationResult.INTERNAL_ERROR);
+        results[index] = res;
+        answered++;
+        if (res.isSuccessful()) successful++;
+        notifyAll();
+    }
+
+    /**
+     * Wait for all answers.
+     *
+     * @param deadline Time to wait in ms
+     * @return true if all answers are received
+     */
+    public boolean await(long deadline) {
+        return await(targets.size(), deadline);
+    }
+
+    /**
+     * Wait for the first successful answers.
+     *
+     * @param quorum Number of successful answers
+     * @param deadline Time to wait in ms
+     * @return true if the quorum is reached
+     */
+    public synchronized boolean await(int quorum, long deadline) {
+        long end = System.currentTimeMillis() + deadline;
+        while (successful < quorum && answered < results.length) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) break;
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return successful >= quorum;
+    }
+
+    /**
+     * Wait for the first answer matching the condition.
+     *
+     * @param condition
+     * @param deadline Time to wait in ms
+     * @return The answer or null
+     */
+    public synchronized OperationResult awaitFirst(
+            Predicate<OperationResult> condition, long deadline) {
+        long end = System.currentTimeMillis() + deadline;
+        while (true) {
+            for (OperationResult res : results)
+                if (res != null && condition.test(res)) return res;
+            long wait = end - System.currentTimeMillis();
+            if (answered >= results.length || wait <= 0) return null;
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /** Return all answers received until now in the order of the targets */
+    public synchronized List<OperationResult> getResults() {
+        ArrayList<OperationResult> out = new ArrayList<>(answered);
+        for (OperationResult res : results) if (res != null) out.add(res);
+        return out;
+    }
+
+    public synchronized List<OperationResult> getSuccessful() {
+        ArrayList<OperationResult> out = new ArrayList<>(successful);
+        for (OperationResult res : results) if (res != null && res.isSuccessful()) out.add(res);
+        return out;
+    }
+
+    public synchronized List<OperationResult> getFailed() {
+        ArrayList<OperationResult> out = new ArrayList<>(answered - successful);
+        for (OperationResult res : results) if (res != null && !res.isSuccessful()) out.add(res);
+        return out;
+    }
+
+    /** Return the targets without answer */
+    public synchronized List<OperationDescriptor> getMissing() {
+        ArrayList<OperationDescriptor> out = new ArrayList<>(results.length - answered);
+        for (int i = 0; i < results.length; i++) if (results[i] == null) out.add(targets.get(i));
+        return out;
+    }
+
+    public List<OperationDescriptor> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    public synchronized boolean isComplete() {
+        return answered >= results.length;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.operation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.mhus.lib.core.MString;
+import de.mhus.lib.core.util.VersionRange;
+
+/**
+ * Compiled form of a lookup by path filter, version range and tags. The path pattern is compiled
+ * once per filter string and cached, the tags are compared as bits. The result is the same as
+ * OperationUtil.matches.
+ */
+public class OperationFilter {
+
+    private static final int MAX_PATTERNS = 1000;
+    private static final String SPECIAL = "?[]{}\\";
+    private static ConcurrentHashMap<String, PathPattern> patterns = new ConcurrentHashMap<>();
+
+    private PathPattern pattern;
+    private VersionRange version;
+    private boolean tags;
+    private boolean unknown;
+    private long[] provided;
+    private long[] positive;
+    private long[] negative;
+
+    /**
+     * Compile the filter.
+     *
+     * @param filter Path filter or null
+     * @param version Version range or null
+     * @param providedTags Tags or null
+     * @return The filter
+     */
+    public static OperationFilter compile(
+            String filter, VersionRange version, Collection<String> providedTags) {
+        OperationFilter out = new OperationFilter();
+        out.pattern = filter == null ? null : getPattern(filter);
+        out.version = version;
+        if (providedTags != null) {
+            out.tags = true;
+            // descriptors intern their tags on creation, unknown tags are not used by any of them
+            out.provided = OperationTags.toBits(providedTags, false);
+            ArrayList<String> positive = new ArrayList<>();
+            ArrayList<String> negative = new ArrayList<>();
+            for (String t : providedTags) {
+                if (t.startsWith("!")) negative.add(t.substring(1));
+                else if (OperationTags.getId(t, false) < 0) out.unknown = true;
+                else positive.add(t);
+            }
+            out.positive = OperationTags.toBits(positive, false);
+            out.negative = OperationTags.toBits(negative, false);
+        }
+        return out;
+    }
+
+    public boolean matches(OperationDescriptor desc) {
+        if (pattern != null && !pattern.matches(desc.getPath())) return false;
+        if (version != null && !version.includes(desc.getVersion())) return false;
+        if (tags) {
+            // a required tag of the lookup is unknown to all descriptors
+            if (unknown) return false;
+            long[][] bits = desc.getTagBits();
+            // required (*) and excluded (!) tags of the operation
+            if (!OperationTags.containsAll(provided, bits[1])) return false;
+            if (OperationTags.intersects(provided, bits[2])) return false;
+            // excluded and required tags of the lookup
+            if (OperationTags.intersects(bits[0], negative)) return false;
+            if (!OperationTags.containsAll(bits[0], positive)) return false;
+        }
+        return true;
+    }
+
+    public static PathPattern getPattern(String filter) {
+        PathPattern out = patterns.get(filter);
+        if (out == null) {
+            if (patterns.size() >= MAX_PATTERNS) patterns.clear();
+            out = new PathPattern(filter);
+            patterns.put(filter, out);
+        }
+        return out;
+    }
+
+    /**
+     * Path pattern with * as wildcard. Patterns with other special characters are compared by
+     * MString.compareFsLikePattern.
+     */
+    public static class PathPattern {
+
+        private String pattern;
+        private boolean any;
+        private boolean exact;
+        private boolean fallback;
+        private String prefix;
+        private String suffix;
+        private String[] parts;
+        private int minLength;
+
+        public PathPattern(String pattern) {
+            this.pattern = pattern;
+            for (int i = 0; i < pattern.length(); i++)
+                if (SPECIAL.indexOf(pattern.charAt(i)) >= 0) fallback = true;
+            if (pattern.startsWith("!")) fallback = true;
+            if (fallback) return;
+            if (pattern.indexOf('*') < 0) {
+                exact = true;
+                return;
+            }
+            String[] split = pattern.split("\\*", -1);
+            prefix = split[0];
+            suffix = split[split.length - 1];
+            parts = new String[split.length - 2];
+            System.arraycopy(split, 1, parts, 0, parts.length);
+            minLength = pattern.length() - split.length + 1;
+            any = minLength == 0;
+        }
+
+        public boolean matches(String path) {
+            if (path == null) return false;
+            if (any) return true;
+            if (exact) return pattern.equals(path);
+            if (fallback) return MString.compareFsLikePattern(path, pattern);
+            if (path.length() < minLength
+                    || !path.startsWith(prefix)
+                    || !path.endsWith(suffix)) return false;
+            int pos = prefix.length();
+            int end = path.length() - suffix.length();
+            for (String part : parts) {
+                if (part.length() == 0) continue;
+                int p = path.indexOf(part, pos);
+                if (p < 0 || p + part.length() > end) return false;
+                pos = p + part.length();
+            }
+            return true;
+        }
+
+        public String getPrefix() {
+            return fallback ? "" : exact ? pattern : prefix;
+        }
+
+        public boolean isExact() {
+            return exact;
+        }
+    }
+}
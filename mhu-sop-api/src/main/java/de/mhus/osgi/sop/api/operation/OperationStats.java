@@ -0,0 +1,199 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.operation;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.mhus.lib.core.cfg.CfgLong;
+import de.mhus.lib.core.strategy.OperationResult;
+import de.mhus.osgi.sop.api.registry.RegistryApi;
+
+/**
+ * Live statistics of executed operations per operation address, i.e. per operation and node. The
+ * latency is a peak sensitive moving average decaying over time, an idle node is tried again
+ * after a while.
+ */
+public class OperationStats {
+
+    /** Time constant in ms of the latency average */
+    public static final CfgLong CFG_DECAY = new CfgLong(OperationApi.class, "statsDecay", 10000);
+    /** Minimum latency in ms recorded for failed executions */
+    public static final CfgLong CFG_FAILURE_PENALTY =
+            new CfgLong(OperationApi.class, "statsFailurePenalty", 1000);
+
+    private static final int MAX_ENTRIES = 10000;
+    private static final int SAMPLES = 64;
+    private static ConcurrentHashMap<String, OperationStats> stats = new ConcurrentHashMap<>();
+    private static AtomicBoolean cleanup = new AtomicBoolean();
+    private static volatile int limit = MAX_ENTRIES;
+
+    private AtomicInteger outstanding = new AtomicInteger();
+    private double latency;
+    private long updated = System.nanoTime();
+    private long executed;
+    private long failed;
+    private float[] samples = new float[SAMPLES];
+    private CircuitBreaker circuit = new CircuitBreaker();
+
+    /** Return the statistics of all operations, the key is the operation address */
+    public static Map<String, OperationStats> getAll() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    public static OperationStats get(OperationDescriptor desc) {
+        String key = desc.getAddress().toString();
+        OperationStats out = stats.get(key);
+        if (out == null) {
+            if (stats.size() >= limit) cleanup();
+            out = stats.computeIfAbsent(key, k -> new OperationStats());
+        }
+        return out;
+    }
+
+    // remove the longest unused entries in one run, keep entries in use and open circuits
+    private static void cleanup() {
+        if (!cleanup.compareAndSet(false, true)) return;
+        try {
+            ArrayList<Entry<Long, String>> idle = new ArrayList<>();
+            for (Entry<String, OperationStats> entry : stats.entrySet()) {
+                OperationStats s = entry.getValue();
+                if (s.getOutstanding() == 0
+                        && s.circuit.getState() == CircuitBreaker.STATE.CLOSED)
+                    idle.add(new SimpleImmutableEntry<>(s.getUpdated(), entry.getKey()));
+            }
+            idle.sort(Entry.comparingByKey());
+            int remove = stats.size() - MAX_ENTRIES * 3 / 4;
+            for (int i = 0; i < remove && i < idle.size(); i++)
+                stats.remove(idle.get(i).getValue());
+            // don't search again before more entries are added
+            limit = Math.max(MAX_ENTRIES, stats.size() + MAX_ENTRIES / 4);
+        } finally {
+            cleanup.set(false);
+        }
+    }
+
+    /**
+     * Return the registry path of the load published by the node.
+     *
+     * @param ident Ident of the node
+     * @return The path
+     */
+    public static String getLoadPath(String ident) {
+        return RegistryApi.PATH_WORKER + ident + "@load";
+    }
+
+    /**
+     * Call before the execution.
+     *
+     * @return Start time for end()
+     */
+    public long begin() {
+        outstanding.incrementAndGet();
+        long start = System.nanoTime();
+        circuit.begin(start);
+        return start;
+    }
+
+    public void end(long start, OperationResult result) {
+        // only technical errors are relevant for the circuit breaker
+        end(
+                start,
+                result != null && result.isSuccessful(),
+                result == null || result.getReturnCode() == OperationResult.INTERNAL_ERROR);
+    }
+
+    public void end(long start, boolean success) {
+        end(start, success, !success);
+    }
+
+    private void end(long start, boolean success, boolean error) {
+        outstanding.decrementAndGet();
+        long now = System.nanoTime();
+        double rtt = (now - start) / 1000000d;
+        circuit.end(start, error, (long) rtt);
+        double cost = success ? rtt : Math.max(rtt, CFG_FAILURE_PENALTY.value());
+        synchronized (this) {
+            // a slow answer is taken at once, faster answers move the average
+            if (cost > latency) latency = cost;
+            else {
+                double w = weight(now);
+                latency = latency * w + cost * (1 - w);
+            }
+            updated = now;
+            samples[(int) (executed % SAMPLES)] = (float) rtt;
+            executed++;
+            if (!success) failed++;
+        }
+    }
+
+    private double weight(long now) {
+        double td = Math.max(now - updated, 0) / 1000000d;
+        return Math.exp(-td / Math.max(1, CFG_DECAY.value()));
+    }
+
+    /** Return the average latency in ms, decayed since the last execution */
+    public synchronized double getLatency() {
+        return latency * weight(System.nanoTime());
+    }
+
+    /** Return the latency weighted by the number of outstanding requests */
+    public double getCost() {
+        return getLatency() * (getOutstanding() + 1);
+    }
+
+    /**
+     * Return the percentile of the last execution times in ms.
+     *
+     * @param percentile Percentile between 0 and 100
+     * @return The time or -1 if nothing was executed
+     */
+    public double getPercentile(int percentile) {
+        float[] sorted;
+        synchronized (this) {
+            if (executed == 0) return -1;
+            sorted = Arrays.copyOf(samples, (int) Math.min(executed, SAMPLES));
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100d * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public CircuitBreaker getCircuit() {
+        return circuit;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public synchronized long getExecuted() {
+        return executed;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    private synchronized long getUpdated() {
+        return updated;
+    }
+}
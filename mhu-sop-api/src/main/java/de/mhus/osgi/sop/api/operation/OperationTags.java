@@ -0,0 +1,89 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.operation;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns tags to numbers and stores tag sets as bits. The numbers are shared by all catalogs, a
+ * descriptor calculates the bits of its tags once.
+ */
+public class OperationTags {
+
+    private static final long[] EMPTY = new long[0];
+    private static ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Return the number of the tag.
+     *
+     * @param tag The tag
+     * @param create Create a number for unknown tags
+     * @return The number or -1 if the tag is unknown
+     */
+    public static int getId(String tag, boolean create) {
+        Integer id = ids.get(tag);
+        if (id != null) return id;
+        if (!create) return -1;
+        return ids.computeIfAbsent(tag, k -> next.getAndIncrement());
+    }
+
+    /**
+     * Return the bits of the tags, unknown tags are ignored if create is false.
+     *
+     * @param tags The tags
+     * @param create Create numbers for unknown tags
+     * @return The bits
+     */
+    public static long[] toBits(Collection<String> tags, boolean create) {
+        if (tags == null || tags.isEmpty()) return EMPTY;
+        long[] bits = EMPTY;
+        for (String tag : tags) bits = set(bits, getId(tag, create));
+        return bits;
+    }
+
+    public static long[] set(long[] bits, int id) {
+        if (id < 0) return bits;
+        int index = id >>> 6;
+        if (index >= bits.length) {
+            long[] n = new long[index + 1];
+            System.arraycopy(bits, 0, n, 0, bits.length);
+            bits = n;
+        }
+        bits[index] |= 1L << id;
+        return bits;
+    }
+
+    /** Return true if all bits of the part are set in the bits */
+    public static boolean containsAll(long[] bits, long[] part) {
+        for (int i = 0; i < part.length; i++) {
+            if (part[i] == 0) continue;
+            if (i >= bits.length || (bits[i] & part[i]) != part[i]) return false;
+        }
+        return true;
+    }
+
+    /** Return true if one bit is set in both */
+    public static boolean intersects(long[] a, long[] b) {
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) if ((a[i] & b[i]) != 0) return true;
+        return false;
+    }
+
+    public static int size() {
+        return ids.size();
+    }
+}
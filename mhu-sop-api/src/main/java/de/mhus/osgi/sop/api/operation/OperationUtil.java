@@ -22,13 +22,13 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 
 import de.mhus.lib.core.IProperties;
 import de.mhus.lib.core.M;
 import de.mhus.lib.core.MCast;
 import de.mhus.lib.core.MDate;
 import de.mhus.lib.core.MProperties;
-import de.mhus.lib.core.MString;
 import de.mhus.lib.core.logging.MLogUtil;
 import de.mhus.lib.core.strategy.OperationDescription;
 import de.mhus.lib.core.strategy.OperationResult;
@@ -65,6 +65,31 @@ public class OperationUtil {
         return selector.doExecute(properties);
     }
 
+    public static CompletableFuture<OperationResult> doExecuteAsync(
+            OperationsSelector selector, IProperties properties) {
+        return selector.doExecuteAsync(properties);
+    }
+
+    public static CompletableFuture<OperationResult> doExecuteAsync(
+            Class<?> filter, IProperties properties, String... providedTags) {
+        OperationsSelector selector = new OperationsSelector();
+        selector.setFilter(filter);
+        selector.setTags(providedTags);
+        return selector.doExecuteAsync(properties);
+    }
+
+    public static CompletableFuture<OperationResult> doExecuteAsync(
+            Class<?> filter,
+            IProperties properties,
+            Selector selectorAlgo,
+            String... providedTags) {
+        OperationsSelector selector = new OperationsSelector();
+        selector.setFilter(filter);
+        selector.setTags(providedTags);
+        selector.addSelector(selectorAlgo);
+        return selector.doExecuteAsync(properties);
+    }
+
     public static List<OperationResult> doExecuteAll(
             Class<?> filter, IProperties properties, String... providedTags)
             throws NotFoundException {
@@ -296,9 +321,7 @@ public class OperationUtil {
             String filter,
             VersionRange version,
             Collection<String> providedTags) {
-        return (filter == null || MString.compareFsLikePattern(desc.getPath(), filter))
-                && (version == null || version.includes(desc.getVersion()))
-                && (providedTags == null || desc.compareTags(providedTags));
+        return OperationFilter.compile(filter, version, providedTags).matches(desc);
     }
 
     public static boolean isOption(String[] options, String opt) {
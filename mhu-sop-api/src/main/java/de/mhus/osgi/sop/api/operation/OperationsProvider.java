@@ -13,10 +13,13 @@
  */
 package de.mhus.osgi.sop.api.operation;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import de.mhus.lib.core.IProperties;
+import de.mhus.lib.core.strategy.NotSuccessful;
 import de.mhus.lib.core.strategy.OperationResult;
 import de.mhus.lib.core.util.VersionRange;
 import de.mhus.lib.errors.NotFoundException;
@@ -43,5 +46,61 @@ public interface OperationsProvider {
             OperationDescriptor desc, IProperties properties, String... executeOptions)
             throws NotFoundException;
 
+    /**
+     * Return a number changed with every change of the provided operations. Lookups of providers
+     * returning -1 are not cached.
+     *
+     * @return The revision or -1
+     */
+    default long getRevision() {
+        return -1;
+    }
+
+    /**
+     * Execute the operation without blocking the caller for remote answers. The default
+     * implementation executes the operation in the current thread and returns a completed future.
+     *
+     * @param desc The operation
+     * @param properties Parameters
+     * @param executeOptions Options
+     * @return Future of the result
+     */
+    default CompletableFuture<OperationResult> doExecuteAsync(
+            OperationDescriptor desc, IProperties properties, String... executeOptions) {
+        CompletableFuture<OperationResult> future = new CompletableFuture<>();
+        try {
+            future.complete(doExecute(desc, properties, executeOptions));
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+        return future;
+    }
+
+    /**
+     * Execute a list of calls of this provider. The default implementation executes the calls one
+     * by one.
+     *
+     * @param calls The calls
+     * @param executeOptions Options of the batch
+     * @return The results in the order of the calls
+     */
+    default List<OperationResult> doExecuteBatch(
+            List<OperationCall> calls, String... executeOptions) {
+        ArrayList<OperationResult> out = new ArrayList<>(calls.size());
+        for (OperationCall call : calls) {
+            OperationDescriptor desc = call.getDescriptor();
+            try {
+                out.add(doExecute(desc, call.getProperties(), call.getExecuteOptions()));
+            } catch (NotFoundException e) {
+                out.add(new NotSuccessful(desc.getPath(), "not found", OperationResult.NOT_FOUND));
+            } catch (Throwable t) {
+                out.add(
+                        new NotSuccessful(
+                                desc.getPath(), String.valueOf(t), OperationResult.INTERNAL_ERROR));
+            }
+        }
+        return out;
+    }
+
     void synchronize();
 }
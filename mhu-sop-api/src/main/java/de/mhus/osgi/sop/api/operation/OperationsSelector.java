@@ -13,27 +13,52 @@
  */
 package de.mhus.osgi.sop.api.operation;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import de.mhus.lib.core.IProperties;
 import de.mhus.lib.core.M;
 import de.mhus.lib.core.MCollection;
 import de.mhus.lib.core.MProperties;
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgInt;
+import de.mhus.lib.core.cfg.CfgLong;
+import de.mhus.lib.core.logging.MLogUtil;
 import de.mhus.lib.core.strategy.OperationResult;
 import de.mhus.lib.core.util.VersionRange;
 import de.mhus.lib.errors.NotFoundException;
 
 public class OperationsSelector {
 
+    public static final CfgBoolean CFG_HEDGE_ENABLED =
+            new CfgBoolean(OperationApi.class, "hedgeEnabled", true);
+    /** Percentile of the execution times of the first operation to wait for the second request */
+    public static final CfgInt CFG_HEDGE_PERCENTILE =
+            new CfgInt(OperationApi.class, "hedgePercentile", 95);
+    public static final CfgLong CFG_HEDGE_MIN_DELAY =
+            new CfgLong(OperationApi.class, "hedgeMinDelay", 50);
+    /** Delay in ms if there are no statistics of the first operation */
+    public static final CfgLong CFG_HEDGE_DEFAULT_DELAY =
+            new CfgLong(OperationApi.class, "hedgeDefaultDelay", 1000);
+
     private String filter;
     private VersionRange version;
     private Collection<String> providedTags;
     private LinkedList<Selector> selectors = new LinkedList<>();
     private MProperties properties;
     private String[] executeOptions;
+    private boolean hedged;
 
     public OperationsSelector setFilter(Class<?> filter) {
         this.filter = filter == null ? null : filter.getCanonicalName();
@@ -87,10 +112,23 @@ public class OperationsSelector {
         return this;
     }
 
+    /**
+     * Send a second request to another operation if the first one is slower than usual and take
+     * the first answer. Use it only for idempotent operations, both requests could be executed.
+     *
+     * @param hedged
+     * @return this
+     */
+    public OperationsSelector setHedged(boolean hedged) {
+        this.hedged = hedged;
+        return this;
+    }
+
     public OperationDescriptor doSelect() {
         List<OperationDescriptor> list =
                 M.l(OperationApi.class).findOperations(filter, version, providedTags);
         if (list == null || list.size() == 0) return null;
+        removeOpenCircuits(list);
         for (Selector selector : selectors) selector.select(list);
         if (list.size() == 0) return null;
         return list.get(0);
@@ -100,12 +138,24 @@ public class OperationsSelector {
         List<OperationDescriptor> list =
                 M.l(OperationApi.class).findOperations(filter, version, providedTags);
         if (list == null || list.size() == 0) return null;
+        // all targets are kept, open circuits are only skipped for single targets
         for (Selector selector : selectors) selector.select(list);
         return list;
     }
 
+    // skip operations with open circuit, if all circuits are open try them anyway
+    private void removeOpenCircuits(List<OperationDescriptor> list) {
+        ArrayList<OperationDescriptor> available = new ArrayList<>(list.size());
+        for (OperationDescriptor desc : list)
+            if (OperationStats.get(desc).getCircuit().isAvailable()) available.add(desc);
+        if (available.isEmpty() || available.size() == list.size()) return;
+        list.clear();
+        list.addAll(available);
+    }
+
     public OperationResult doExecute(IProperties properties, String... executeOptions)
             throws NotFoundException {
+        if (hedged && CFG_HEDGE_ENABLED.value()) return doExecuteHedged(properties, executeOptions);
         OperationDescriptor desc = doSelect();
         if (desc == null) throw new NotFoundException(filter, version, providedTags);
         return M.l(OperationApi.class).doExecute(desc, properties, executeOptions);
@@ -115,15 +165,119 @@ public class OperationsSelector {
         return doExecute(properties, executeOptions);
     }
 
+    protected OperationResult doExecuteHedged(IProperties properties, String... executeOptions)
+            throws NotFoundException {
+        OperationApi api = M.l(OperationApi.class);
+        List<OperationDescriptor> list = api.findOperations(filter, version, providedTags);
+        if (list == null || list.size() == 0)
+            throw new NotFoundException(filter, version, providedTags);
+        removeOpenCircuits(list);
+        ArrayList<OperationDescriptor> others = new ArrayList<>(list);
+        for (Selector selector : selectors) selector.select(list);
+        if (list.size() == 0) throw new NotFoundException(filter, version, providedTags);
+        OperationDescriptor desc = list.get(0);
+        others.remove(desc);
+
+        CompletableFuture<OperationResult> first =
+                api.doExecuteAsync(desc, properties, executeOptions);
+        if (others.isEmpty()) return join(first);
+        double delay = OperationStats.get(desc).getPercentile(CFG_HEDGE_PERCENTILE.value());
+        if (delay < 0) delay = CFG_HEDGE_DEFAULT_DELAY.value();
+        try {
+            return first.get(
+                    Math.max(CFG_HEDGE_MIN_DELAY.value(), (long) delay), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return join(first);
+        } catch (ExecutionException e) {
+            return join(first);
+        }
+
+        // second request to the cheapest other operation
+        OperationDescriptor second =
+                Collections.min(
+                        others, Comparator.comparingDouble(d -> OperationStats.get(d).getCost()));
+        MLogUtil.log().d("hedge request", desc.getAddress(), second.getAddress(), delay);
+        return join(firstAnswer(first, api.doExecuteAsync(second, properties, executeOptions)));
+    }
+
+    // the first successful answer or the last answer if both are not successful
+    private static CompletableFuture<OperationResult> firstAnswer(
+            CompletableFuture<OperationResult> first, CompletableFuture<OperationResult> second) {
+        CompletableFuture<OperationResult> out = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(2);
+        BiConsumer<OperationResult, Throwable> handler =
+                (res, t) -> {
+                    boolean last = pending.decrementAndGet() == 0;
+                    if (t == null && res != null && res.isSuccessful()) out.complete(res);
+                    else if (last) {
+                        if (t != null) out.completeExceptionally(t);
+                        else out.complete(res);
+                    }
+                };
+        first.whenComplete(handler);
+        second.whenComplete(handler);
+        return out;
+    }
+
+    private static OperationResult join(CompletableFuture<OperationResult> future)
+            throws NotFoundException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof NotFoundException) throw (NotFoundException) e.getCause();
+            throw e;
+        }
+    }
+
+    public CompletableFuture<OperationResult> doExecuteAsync(
+            IProperties properties, String... executeOptions) {
+        OperationDescriptor desc = doSelect();
+        if (desc == null) {
+            CompletableFuture<OperationResult> future = new CompletableFuture<>();
+            future.completeExceptionally(new NotFoundException(filter, version, providedTags));
+            return future;
+        }
+        return M.l(OperationApi.class).doExecuteAsync(desc, properties, executeOptions);
+    }
+
+    public CompletableFuture<OperationResult> doExecuteAsync() {
+        return doExecuteAsync(properties, executeOptions);
+    }
+
+    /**
+     * Execute all selected operations in parallel and return the answers received until the
+     * fanOutDeadline.
+     *
+     * @param properties
+     * @param executeOptions
+     * @return The answers in the order of the operations
+     * @throws NotFoundException
+     */
     public List<OperationResult> doExecuteAll(IProperties properties, String... executeOptions)
             throws NotFoundException {
+        OperationFanOut fanOut = doExecuteParallel(properties, executeOptions);
+        fanOut.await(OperationFanOut.CFG_DEADLINE.value());
+        return fanOut.getResults();
+    }
+
+    /**
+     * Start the execution of all selected operations in parallel. Use the await methods of the
+     * result to wait for all answers or a quorum.
+     *
+     * @param properties
+     * @param executeOptions
+     * @return The started fan out
+     */
+    public OperationFanOut doExecuteParallel(IProperties properties, String... executeOptions) {
         List<OperationDescriptor> list = doSelectAll();
-        LinkedList<OperationResult> res = new LinkedList<>();
-        for (OperationDescriptor desc : list) {
-            OperationResult r = M.l(OperationApi.class).doExecute(desc, properties, executeOptions);
-            if (r != null) res.add(r);
-        }
-        return res;
+        if (list == null) list = Collections.emptyList();
+        return new OperationFanOut(list).start(properties, executeOptions);
+    }
+
+    public OperationFanOut doExecuteParallel() {
+        return doExecuteParallel(properties, executeOptions);
     }
 
     public List<OperationResult> doExecuteAll() throws NotFoundException {
@@ -0,0 +1,40 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.operation;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Select the operation with the least outstanding requests, ties are selected by random. */
+public class SelectorLeastOutstanding implements Selector {
+
+    @Override
+    public void select(List<OperationDescriptor> list) {
+        if (list.size() <= 1) return;
+        OperationDescriptor best = null;
+        int min = Integer.MAX_VALUE;
+        int ties = 0;
+        for (OperationDescriptor desc : list) {
+            int outstanding = OperationStats.get(desc).getOutstanding();
+            if (outstanding < min) {
+                min = outstanding;
+                best = desc;
+                ties = 1;
+            } else if (outstanding == min
+                    && ThreadLocalRandom.current().nextInt(++ties) == 0) best = desc;
+        }
+        list.clear();
+        list.add(best);
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.operation;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Select two operations by random and take the one with the lower cost. The cost is the moving
+ * average of the latency multiplied with the outstanding requests.
+ */
+public class SelectorPowerOfTwo implements Selector {
+
+    @Override
+    public void select(List<OperationDescriptor> list) {
+        int size = list.size();
+        if (size <= 1) return;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(size);
+        int b = random.nextInt(size - 1);
+        if (b >= a) b++;
+        OperationDescriptor first = list.get(a);
+        OperationDescriptor second = list.get(b);
+        OperationDescriptor item =
+                OperationStats.get(first).getCost() <= OperationStats.get(second).getCost()
+                        ? first
+                        : second;
+        list.clear();
+        list.add(item);
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.operation;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import de.mhus.lib.core.M;
+import de.mhus.lib.core.MCast;
+import de.mhus.osgi.sop.api.registry.RegistryApi;
+import de.mhus.osgi.sop.api.registry.RegistryValue;
+
+/**
+ * Select an operation by random weighted by the load the nodes publish into the registry. A node
+ * with load 1 gets half of the traffic of an idle node. Nodes without published load are handled
+ * as idle.
+ */
+public class SelectorWeightedLoad implements Selector {
+
+    @Override
+    public void select(List<OperationDescriptor> list) {
+        int size = list.size();
+        if (size <= 1) return;
+        RegistryApi api = M.l(RegistryApi.class);
+        double[] weights = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            weights[i] = 1 / (1 + getLoad(api, list.get(i)));
+            sum += weights[i];
+        }
+        double r = ThreadLocalRandom.current().nextDouble(sum);
+        int pos = 0;
+        while (pos < size - 1 && r >= weights[pos]) {
+            r -= weights[pos];
+            pos++;
+        }
+        OperationDescriptor item = list.get(pos);
+        list.clear();
+        list.add(item);
+    }
+
+    protected double getLoad(RegistryApi api, OperationDescriptor desc) {
+        if (api == null) return 0;
+        String ident = OperationUtil.getOption(desc.getTags(), OperationDescriptor.TAG_IDENT, null);
+        if (ident == null) return 0;
+        RegistryValue value = api.getParameter(OperationStats.getLoadPath(ident));
+        if (value == null) return 0;
+        return Math.max(0, MCast.todouble(value.getValue(), 0));
+    }
+}
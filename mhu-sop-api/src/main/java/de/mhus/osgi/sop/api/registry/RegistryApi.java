@@ -14,7 +14,10 @@
 package de.mhus.osgi.sop.api.registry;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Stream;
 
 public interface RegistryApi {
 
@@ -80,8 +83,72 @@ public interface RegistryApi {
      */
     boolean removeParameter(String path);
 
+    /**
+     * Set and publish a set of values. The path, value, timeout, readOnly, persistent and local
+     * (source '@local@') attributes of the given values are used, the rest is set by the registry.
+     * All values are stored at once, persisted and published together and only one config change
+     * event is fired.
+     *
+     * @param values The values to set
+     * @return Number of really changed values
+     */
+    int setParameters(Collection<RegistryValue> values);
+
+    /**
+     * Remove a set of parameters and publish the information together.
+     *
+     * @param paths Paths of the parameters
+     * @return Number of removed parameters
+     */
+    int removeParameters(Collection<String> paths);
+
     Set<RegistryValue> getParameters(String path);
 
+    /**
+     * Return the number of parameters with a path starting with the given prefix. The prefix is not
+     * bound to node borders, e.g. '/system/mutex/' or '/node1/node2@para'.
+     *
+     * @param prefix Path prefix
+     * @return Number of parameters
+     */
+    int countParameters(String prefix);
+
+    /**
+     * Stream all parameters with a path starting with the given prefix ordered by path.
+     *
+     * @param prefix Path prefix
+     * @return Stream of the values
+     */
+    Stream<RegistryValue> streamParameters(String prefix);
+
+    /**
+     * Return a page of parameters with a path starting with the given prefix ordered by path. To
+     * get the next page use the path of the last returned value as cursor.
+     *
+     * @param prefix Path prefix
+     * @param cursor Path of the last value of the previous page or null to start at the beginning
+     * @param size Maximum number of values
+     * @return List of values, the list is empty if there are no more values
+     */
+    List<RegistryValue> getParameters(String prefix, String cursor, int size);
+
+    /**
+     * Register a listener for changes of parameters with a path starting with the given prefix.
+     * The listener is called by a separate dispatcher thread, changes of the same path are
+     * delivered in order.
+     *
+     * @param prefix Path prefix
+     * @param listener The listener
+     */
+    void watch(String prefix, RegistryListener listener);
+
+    /**
+     * Remove all registrations of the listener.
+     *
+     * @param listener The listener
+     */
+    void unwatch(RegistryListener listener);
+
     boolean publishAll();
 
     boolean requestAll();
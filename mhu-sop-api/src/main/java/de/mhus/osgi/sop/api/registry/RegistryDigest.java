@@ -0,0 +1,141 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.registry;
+
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Digest of all registry entries of one source. The entries are grouped in sub trees (buckets)
+ * of the given depth. Every bucket holds the number of entries and a order independent hash of the
+ * entries. The root hash is calculated over all buckets.
+ */
+public class RegistryDigest {
+
+    private int depth;
+    private TreeMap<String, long[]> buckets = new TreeMap<>();
+
+    public RegistryDigest(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * Create a copy of the digest.
+     *
+     * @param other
+     */
+    public RegistryDigest(RegistryDigest other) {
+        depth = other.depth;
+        for (Entry<String, long[]> entry : other.buckets.entrySet())
+            buckets.put(entry.getKey(), entry.getValue().clone());
+    }
+
+    /**
+     * Return the bucket of the path. The bucket is a prefix of the path, the node path cut after
+     * depth elements including a trailing '/' or the node path including '@' if the node is not
+     * deep enough.
+     *
+     * @param path
+     * @param depth
+     * @return The bucket
+     */
+    public static String getBucket(String path, int depth) {
+        int at = path.indexOf('@');
+        if (at < 0) at = path.length();
+        int pos = 0;
+        for (int i = 0; i < depth; i++) {
+            pos = path.indexOf('/', pos + 1);
+            if (pos < 0 || pos > at) return path.substring(0, Math.min(at + 1, path.length()));
+        }
+        return path.substring(0, pos + 1);
+    }
+
+    public void add(RegistryValue value) {
+        add(getBucket(value.getPath(), depth), hash(value), 1);
+    }
+
+    /**
+     * Remove a value added before. Buckets without entries are removed.
+     *
+     * @param value
+     */
+    public void remove(RegistryValue value) {
+        add(getBucket(value.getPath(), depth), -hash(value), -1);
+    }
+
+    public void add(String bucket, long hash, long count) {
+        long[] entry = buckets.get(bucket);
+        if (entry == null) {
+            entry = new long[2];
+            buckets.put(bucket, entry);
+        }
+        entry[0] += hash;
+        entry[1] += count;
+        if (entry[1] == 0) buckets.remove(bucket);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public TreeMap<String, long[]> getBuckets() {
+        return buckets;
+    }
+
+    public long getRoot() {
+        long root = 17;
+        for (Entry<String, long[]> entry : buckets.entrySet())
+            root = root * 31 + hash(entry.getKey()) + entry.getValue()[0] * 7 + entry.getValue()[1];
+        return root;
+    }
+
+    /**
+     * Return all buckets with a different hash or count including buckets not known by one of the
+     * digests.
+     *
+     * @param other
+     * @return List of buckets
+     */
+    public TreeSet<String> getDifferences(RegistryDigest other) {
+        TreeSet<String> out = new TreeSet<>();
+        for (Entry<String, long[]> entry : buckets.entrySet()) {
+            long[] o = other.buckets.get(entry.getKey());
+            if (o == null || o[0] != entry.getValue()[0] || o[1] != entry.getValue()[1])
+                out.add(entry.getKey());
+        }
+        for (String key : other.buckets.keySet()) if (!buckets.containsKey(key)) out.add(key);
+        return out;
+    }
+
+    private static long hash(RegistryValue value) {
+        long h = hash(value.getPath());
+        h = h * 31 + hash(value.getValue());
+        h = h * 31 + value.getTimeout();
+        h = h * 31 + (value.isReadOnly() ? 1 : 0);
+        h = h * 31 + (value.isPersistent() ? 1 : 0);
+        return h;
+    }
+
+    // 64 bit FNV-1a
+    public static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        if (value == null) return h;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.api.registry;
+
+public interface RegistryListener {
+
+    /**
+     * A registry parameter was changed. Events are delivered asynchronously, repeated changes of
+     * the same path can be collapsed to the last one.
+     *
+     * @param path Path of the parameter
+     * @param value The new value or null if the parameter was removed
+     */
+    void event(String path, RegistryValue value);
+}
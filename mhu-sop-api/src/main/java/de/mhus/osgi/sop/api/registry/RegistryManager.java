@@ -34,5 +34,15 @@ public interface RegistryManager extends RegistryApi {
 
     Collection<RegistryValue> getAll();
 
+    /**
+     * Return a copy of the digest of all entries of the source including remote entries
+     * overwritten by local entries. The digest is kept up to date by the registry.
+     *
+     * @param source The source ident
+     * @param depth Depth of the buckets
+     * @return The digest
+     */
+    RegistryDigest getDigest(String source, int depth);
+
     RegistryPathControl getPathController(String path);
 }
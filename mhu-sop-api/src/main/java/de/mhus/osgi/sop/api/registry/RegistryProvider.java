@@ -13,12 +13,26 @@
  */
 package de.mhus.osgi.sop.api.registry;
 
+import java.util.Collection;
+
 public interface RegistryProvider {
 
     boolean publish(RegistryValue entry);
 
     boolean remove(String path);
 
+    default boolean publish(Collection<RegistryValue> entries) {
+        boolean ok = true;
+        for (RegistryValue entry : entries) if (!publish(entry)) ok = false;
+        return ok;
+    }
+
+    default boolean remove(Collection<String> paths) {
+        boolean ok = true;
+        for (String path : paths) if (!remove(path)) ok = false;
+        return ok;
+    }
+
     boolean publishAll();
 
     boolean requestAll();
@@ -13,12 +13,21 @@
  */
 package de.mhus.osgi.sop.api.util;
 
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
 import de.mhus.lib.core.MPassword;
+import de.mhus.lib.core.util.Base64;
+import de.mhus.lib.errors.MRuntimeException;
 
 public class TicketUtil {
 
     public static final String ACCOUNT = "acc";
     public static final String TRUST = "tru";
+    public static final String SIGNED = "sig";
 
     public static final String SEP = ",";
     public static final char SEP_CHAR = ',';
@@ -48,6 +57,46 @@ public class TicketUtil {
         return TRUST + SEP + trust + SEP + MPassword.encode(trustSecret) + SEP + user;
     }
 
+    /**
+     * Create a trust ticket signed with the key of the trust. The ticket does not contain the
+     * secret and can be used for more calls until it expires.
+     *
+     * @param trust Name of the trust
+     * @param key Signing key of the trust
+     * @param user Account name
+     * @param admin Admin mode
+     * @param expires Time in ms until the ticket is valid
+     * @return A signed ticket
+     */
+    public static String createSignedTicket(
+            String trust, byte[] key, String user, boolean admin, long expires) {
+        if (trust == null) trust = "";
+        if (user == null) user = "";
+        if (trust.indexOf(SEP) > -1) trust = trust.replace(',', '_');
+        if (user.indexOf(SEP) > -1) user = user.replace(',', '_');
+
+        String data =
+                SIGNED + SEP + trust + SEP + user + SEP + expires + SEP + (admin ? ADMIN : "");
+        return data + SEP + sign(key, data);
+    }
+
+    /**
+     * Return the HMAC-SHA256 signature of the data as base64 string.
+     *
+     * @param key The key
+     * @param data The data
+     * @return The signature
+     */
+    public static String sign(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return Base64.encode(mac.doFinal(data.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new MRuntimeException(e);
+        }
+    }
+
     public static String createTicket(String user, String pass) {
         if (user == null) user = "";
         if (pass == null) pass = "";
@@ -13,7 +13,10 @@
  */
 package de.mhus.osgi.sop.impl.aaa;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.service.component.ComponentContext;
 
@@ -23,9 +26,13 @@ import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
 
+import de.mhus.lib.core.MCast;
 import de.mhus.lib.core.MLog;
 import de.mhus.lib.core.MPassword;
 import de.mhus.lib.core.MString;
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgInt;
+import de.mhus.lib.core.cfg.CfgLong;
 import de.mhus.lib.core.security.Account;
 import de.mhus.lib.core.security.AccountSource;
 import de.mhus.lib.core.security.AuthorizationSource;
@@ -52,10 +59,28 @@ import de.mhus.osgi.sop.impl.aaa.util.AccountFile;
 // @Component
 public class AccessApiImpl extends MLog implements AccessApi {
 
+    /**
+     * Create signed trust tickets. They are reused by the sender and verified once by the
+     * receiver. Disable if nodes of older versions are in the cluster.
+     */
+    public static final CfgBoolean CFG_SIGNED_TICKETS =
+            new CfgBoolean(AccessApi.class, "signedTickets", true);
+    /** Lifetime in ms of created signed tickets, they are renewed after the half */
+    public static final CfgLong CFG_SIGNED_TICKET_TTL =
+            new CfgLong(AccessApi.class, "signedTicketTtl", 300000);
+    /** Maximum accepted lifetime in ms of received signed tickets */
+    public static final CfgLong CFG_SIGNED_TICKET_MAX_TTL =
+            new CfgLong(AccessApi.class, "signedTicketMaxTtl", 1800000);
+    /** Maximum number of created and of verified tickets in the caches */
+    public static final CfgInt CFG_TICKET_CACHE_SIZE =
+            new CfgInt(AccessApi.class, "ticketCacheSize", 1000);
+
     private static AaaContextImpl ROOT_CONTEXT = new RootContext();
     private static AaaContextImpl GUEST_CONTEXT = new GuestContext();
     protected SoftHashMap<String, Account> accountCache = new SoftHashMap<String, Account>();
     protected SoftHashMap<String, Trust> trustCache = new SoftHashMap<String, Trust>();
+    protected ConcurrentHashMap<String, SignedTicket> sentTickets = new ConcurrentHashMap<>();
+    protected ConcurrentHashMap<String, SignedTicket> verifiedTickets = new ConcurrentHashMap<>();
 
     private AccountSource accountSource;
     private TrustSource trustSource;
@@ -98,6 +123,10 @@ public class AccessApiImpl extends MLog implements AccessApi {
     public AaaContext process(String ticket, Locale locale) {
 
         if (ticket == null) throw new AccessDeniedException("null");
+        if (ticket.startsWith(TicketUtil.SIGNED + TicketUtil.SEP)) {
+            SignedTicket signed = verifySignedTicket(ticket);
+            return process(signed.account, signed.trust, signed.admin, locale);
+        }
         boolean admin = false;
         String account = null;
         Account info = null;
@@ -165,6 +194,68 @@ public class AccessApiImpl extends MLog implements AccessApi {
         return process(info, trustInfo, admin, locale);
     }
 
+    /**
+     * Verify the signature of the ticket and load the account. Verified tickets are cached until
+     * they expire, changes of the trust or the account are not recognized before.
+     *
+     * @param ticket The signed ticket
+     * @return The verified ticket
+     */
+    protected SignedTicket verifySignedTicket(String ticket) {
+        long now = System.currentTimeMillis();
+        SignedTicket out = verifiedTickets.get(ticket);
+        if (out != null) {
+            if (out.expires > now) return out;
+            verifiedTickets.remove(ticket);
+            throw new AccessDeniedException("expired", out.account.getName());
+        }
+
+        String[] parts = ticket.split(TicketUtil.SEP, -1);
+        if (parts.length != 6) throw new AccessDeniedException("malformed ticket");
+        String trust = parts[1];
+        String account = parts[2];
+        long expires = MCast.tolong(parts[3], 0);
+        boolean admin = parts[4].equals(TicketUtil.ADMIN);
+        if (expires <= now) throw new AccessDeniedException("expired", account);
+        if (expires > now + CFG_SIGNED_TICKET_MAX_TTL.value())
+            throw new AccessDeniedException("lifetime", account);
+
+        Trust trustInfo = getTrust(trust);
+        if (!trustInfo.isValid()) throw new AccessDeniedException("invalid", account);
+        byte[] key = trustInfo.getSigningKey();
+        if (key == null) throw new AccessDeniedException("signature not supported", trust);
+        String signature =
+                TicketUtil.sign(key, ticket.substring(0, ticket.lastIndexOf(TicketUtil.SEP)));
+        if (!MessageDigest.isEqual(
+                signature.getBytes(StandardCharsets.UTF_8),
+                parts[5].getBytes(StandardCharsets.UTF_8)))
+            throw new AccessDeniedException("signature", account);
+
+        Account info = null;
+        try {
+            info = getAccountUnsecure(account);
+        } catch (MException e) {
+            log().d(account, e);
+        }
+        if (info == null) throw new AccessDeniedException("null", account);
+        if (!info.isValid()) throw new AccessDeniedException("invalid", account);
+        if (!info.isActive()) throw new AccessDeniedException("disabled", account);
+
+        out = new SignedTicket(ticket, trustInfo, info, admin, expires);
+        putTicket(verifiedTickets, ticket, out);
+        return out;
+    }
+
+    private void putTicket(
+            ConcurrentHashMap<String, SignedTicket> cache, String key, SignedTicket ticket) {
+        if (cache.size() >= CFG_TICKET_CACHE_SIZE.value()) {
+            long now = System.currentTimeMillis();
+            cache.values().removeIf(t -> t.expires <= now);
+            if (cache.size() >= CFG_TICKET_CACHE_SIZE.value()) cache.clear();
+        }
+        cache.put(key, ticket);
+    }
+
     @Override
     public AaaContext process(Account info, Trust trust, boolean admin, Locale locale) {
         AaaContextImpl c = null;
@@ -250,6 +341,9 @@ public class AccessApiImpl extends MLog implements AccessApi {
         if (MString.isEmpty(ticket)) return current;
         String account = null;
 
+        SignedTicket signed = verifiedTickets.get(ticket);
+        if (signed != null) return release(signed.account);
+
         String[] parts = ticket.split(TicketUtil.SEP);
         if (parts.length > 0 && parts[0].equals(TicketUtil.ACCOUNT)) {
             if (parts.length > 2) {
@@ -259,6 +353,10 @@ public class AccessApiImpl extends MLog implements AccessApi {
             if (parts.length > 3) {
                 account = parts[3];
             }
+        } else if (parts.length > 0 && parts[0].equals(TicketUtil.SIGNED)) {
+            if (parts.length > 2) {
+                account = parts[2];
+            }
         } else throw new AccessDeniedException("unknown ticket type", parts[0]);
 
         log().d("release", account);
@@ -344,6 +442,33 @@ public class AccessApiImpl extends MLog implements AccessApi {
     @Override
     public String createTrustTicket(String name, AaaContext user) {
         if (trustSource == null) return null;
+
+        if (user != null && CFG_SIGNED_TICKETS.value()) {
+            String key =
+                    name
+                            + TicketUtil.SEP
+                            + user.getAccountId()
+                            + TicketUtil.SEP
+                            + user.isAdminMode();
+            long now = System.currentTimeMillis();
+            // reuse the ticket until the half of the lifetime
+            SignedTicket cached = sentTickets.get(key);
+            if (cached != null && cached.renew > now) return cached.ticket;
+            Trust trust = getTrust(name);
+            byte[] secret = trust.getSigningKey();
+            if (secret != null) {
+                long ttl = CFG_SIGNED_TICKET_TTL.value();
+                String ticket =
+                        TicketUtil.createSignedTicket(
+                                name, secret, user.getAccountId(), user.isAdminMode(), now + ttl);
+                SignedTicket signed =
+                        new SignedTicket(ticket, trust, null, user.isAdminMode(), now + ttl);
+                signed.renew = now + ttl / 2;
+                putTicket(sentTickets, key, signed);
+                return ticket;
+            }
+        }
+
         Trust trust = getTrust(name);
         if (trust == null) return null;
 
@@ -525,4 +650,23 @@ public class AccessApiImpl extends MLog implements AccessApi {
     public void setFallbackToGuest(boolean fallbackToGuest) {
         this.fallbackToGuest = fallbackToGuest;
     }
+
+    protected static class SignedTicket {
+
+        private String ticket;
+        private Trust trust;
+        private Account account;
+        private boolean admin;
+        private long expires;
+        private long renew;
+
+        public SignedTicket(
+                String ticket, Trust trust, Account account, boolean admin, long expires) {
+            this.ticket = ticket;
+            this.trust = trust;
+            this.account = account;
+            this.admin = admin;
+            this.expires = expires;
+        }
+    }
 }
@@ -33,5 +33,8 @@ public class AccountCacheService extends AbstractCacheControl {
     @Override
     public void clear() {
         AccessApiImpl.instance.accountCache.clear();
+        // tickets refer to the cached objects
+        AccessApiImpl.instance.sentTickets.clear();
+        AccessApiImpl.instance.verifiedTickets.clear();
     }
 }
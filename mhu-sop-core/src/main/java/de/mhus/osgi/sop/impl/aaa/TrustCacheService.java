@@ -33,5 +33,8 @@ public class TrustCacheService extends AbstractCacheControl {
     @Override
     public void clear() {
         AccessApiImpl.instance.trustCache.clear();
+        // tickets refer to the cached objects
+        AccessApiImpl.instance.sentTickets.clear();
+        AccessApiImpl.instance.verifiedTickets.clear();
     }
 }
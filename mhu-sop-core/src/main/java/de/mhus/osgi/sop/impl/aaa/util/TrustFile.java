@@ -16,6 +16,7 @@ package de.mhus.osgi.sop.impl.aaa.util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -113,6 +114,11 @@ public class TrustFile implements Trust {
         return Base64.encode(p) + "-" + Base64.encode(b);
     }
 
+    @Override
+    public byte[] getSigningKey() {
+        return password.getBytes(StandardCharsets.UTF_8);
+    }
+
     @Override
     public boolean isChanged() {
         return modified != file.lastModified();
@@ -26,6 +26,8 @@ public class ClusterApiViaRegistry extends MLog implements ClusterApi {
     public static CfgLong CFG_LOCK_SLEEP = new CfgLong(ClusterApi.class, "lockSleep", 200);
     public static CfgBoolean CFG_LOCK_VALIDATE =
             new CfgBoolean(ClusterApi.class, "lockValidate", false);
+    public static CfgLong CFG_LOCK_VALIDATE_DEADLINE =
+            new CfgLong(ClusterApi.class, "lockValidateDeadline", 10000);
 
     HashMap<String, ValueEventHandler> valueListeners = new HashMap<>();
     LockEventHandler lockListeners = new LockEventHandler();
@@ -1,7 +1,5 @@
 package de.mhus.osgi.sop.impl.cluster;
 
-import java.util.List;
-
 import de.mhus.lib.core.M;
 import de.mhus.lib.core.MCast;
 import de.mhus.lib.core.MLog;
@@ -11,8 +9,8 @@ import de.mhus.lib.core.MThread;
 import de.mhus.lib.core.concurrent.Lock;
 import de.mhus.lib.core.concurrent.LockWithExtend;
 import de.mhus.lib.core.strategy.OperationResult;
-import de.mhus.lib.errors.NotFoundException;
 import de.mhus.lib.errors.WrongStateException;
+import de.mhus.osgi.sop.api.operation.OperationFanOut;
 import de.mhus.osgi.sop.api.operation.OperationsSelector;
 import de.mhus.osgi.sop.api.operation.SelectorProvider;
 import de.mhus.osgi.sop.api.registry.RegistryApi;
@@ -108,20 +106,22 @@ public class RegistryLock extends MLog implements LockWithExtend {
         if (!ClusterApiViaRegistry.CFG_LOCK_VALIDATE.value()) return true;
         MProperties properties = new MProperties();
         properties.setString("name", getName());
-        try {
-
-            OperationsSelector selector = new OperationsSelector();
-            selector.setFilter(RegisterLockOperation.class.getCanonicalName());
-            selector.addSelector(SelectorProvider.NOT_LOCAL_SELECTOR);
-            List<OperationResult> results = selector.doExecuteAll(properties);
 
-            for (OperationResult res : results)
-                if (res.isSuccessful() && res.getReturnCode() == 1) {
-                    log().w("Lock already given", name, res.getResult());
-                    return false;
-                }
-        } catch (NotFoundException e) {
+        OperationsSelector selector = new OperationsSelector();
+        selector.setFilter(RegisterLockOperation.class.getCanonicalName());
+        selector.addSelector(SelectorProvider.NOT_LOCAL_SELECTOR);
+        OperationFanOut fanOut = selector.doExecuteParallel(properties);
+
+        // the first node holding the lock is enough
+        OperationResult res =
+                fanOut.awaitFirst(
+                        r -> r.isSuccessful() && r.getReturnCode() == 1,
+                        ClusterApiViaRegistry.CFG_LOCK_VALIDATE_DEADLINE.value());
+        if (res != null) {
+            log().w("Lock already given", name, res.getResult());
+            return false;
         }
+        if (!fanOut.isComplete()) log().d("lock validation incomplete", name, fanOut.getMissing());
         return true;
     }
 
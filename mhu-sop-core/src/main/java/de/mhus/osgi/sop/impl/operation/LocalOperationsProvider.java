@@ -45,6 +45,7 @@ import de.mhus.lib.errors.NotFoundException;
 import de.mhus.osgi.sop.api.aaa.AccessApi;
 import de.mhus.osgi.sop.api.operation.OperationAddress;
 import de.mhus.osgi.sop.api.operation.OperationDescriptor;
+import de.mhus.osgi.sop.api.operation.OperationFilter;
 import de.mhus.osgi.sop.api.operation.OperationException;
 import de.mhus.osgi.sop.api.operation.OperationUtil;
 import de.mhus.osgi.sop.api.operation.OperationsProvider;
@@ -58,6 +59,7 @@ public class LocalOperationsProvider extends MLog implements OperationsProvider
     private BundleContext context;
     private ServiceTracker<Operation, Operation> nodeTracker;
     private HashMap<UUID, LocalOperationDescriptor> register = new HashMap<>();
+    private volatile long revision;
     public static LocalOperationsProvider instance;
 
     @Activate
@@ -93,6 +95,7 @@ public class LocalOperationsProvider extends MLog implements OperationsProvider
                         LocalOperationDescriptor descriptor = createDescriptor(reference, service);
                         if (register.put(desc.getUuid(), descriptor) != null)
                             log().w("Operation already defined", desc.getPath());
+                        revision++;
                     }
                 } else {
                     log().w(
@@ -160,6 +163,7 @@ public class LocalOperationsProvider extends MLog implements OperationsProvider
                     synchronized (register) {
                         LocalOperationDescriptor descriptor = createDescriptor(reference, service);
                         register.put(desc.getUuid(), descriptor);
+                        revision++;
                     }
                 }
             }
@@ -174,6 +178,7 @@ public class LocalOperationsProvider extends MLog implements OperationsProvider
                     log().i("unregister", desc);
                     synchronized (register) {
                         register.remove(desc.getUuid());
+                        revision++;
                     }
                 }
             }
@@ -186,9 +191,10 @@ public class LocalOperationsProvider extends MLog implements OperationsProvider
             String filter,
             VersionRange version,
             Collection<String> providedTags) {
+        OperationFilter matcher = OperationFilter.compile(filter, version, providedTags);
         synchronized (register) {
             for (OperationDescriptor desc : register.values()) {
-                if (OperationUtil.matches(desc, filter, version, providedTags)) list.add(desc);
+                if (matcher.matches(desc)) list.add(desc);
             }
         }
     }
@@ -202,9 +208,10 @@ public class LocalOperationsProvider extends MLog implements OperationsProvider
             String... executeOptions)
             throws NotFoundException {
         OperationDescriptor d = null;
+        OperationFilter matcher = OperationFilter.compile(filter, version, providedTags);
         synchronized (register) {
             for (OperationDescriptor desc : register.values()) {
-                if (OperationUtil.matches(desc, filter, version, providedTags)) {
+                if (matcher.matches(desc)) {
                     d = desc;
                     break;
                 }
@@ -316,6 +323,11 @@ public class LocalOperationsProvider extends MLog implements OperationsProvider
         }
     }
 
+    @Override
+    public long getRevision() {
+        return revision;
+    }
+
     @Override
     public void synchronize() {
         // already up to date
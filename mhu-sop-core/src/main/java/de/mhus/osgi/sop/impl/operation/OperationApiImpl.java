@@ -13,10 +13,18 @@
  */
 package de.mhus.osgi.sop.impl.operation;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -38,15 +46,19 @@ import de.mhus.lib.core.MPeriod;
 import de.mhus.lib.core.MTimerTask;
 import de.mhus.lib.core.base.service.TimerFactory;
 import de.mhus.lib.core.base.service.TimerIfc;
+import de.mhus.lib.core.cfg.CfgInt;
 import de.mhus.lib.core.cfg.CfgLong;
 import de.mhus.lib.core.lang.Value;
+import de.mhus.lib.core.strategy.NotSuccessful;
 import de.mhus.lib.core.strategy.OperationResult;
 import de.mhus.lib.core.strategy.util.OperationResultProxy;
 import de.mhus.lib.core.util.VersionRange;
 import de.mhus.lib.errors.NotFoundException;
 import de.mhus.osgi.sop.api.operation.OperationAddress;
 import de.mhus.osgi.sop.api.operation.OperationApi;
+import de.mhus.osgi.sop.api.operation.OperationCall;
 import de.mhus.osgi.sop.api.operation.OperationDescriptor;
+import de.mhus.osgi.sop.api.operation.OperationStats;
 import de.mhus.osgi.sop.api.operation.OperationUtil;
 import de.mhus.osgi.sop.api.operation.OperationsProvider;
 
@@ -60,6 +72,11 @@ public class OperationApiImpl extends MLog implements OperationApi {
     private TimerIfc timer;
     private MTimerTask timerTask;
     private CfgLong CFG_OPERATION_SYNC = new CfgLong(OperationApi.class, "syncInterval", 300000);
+    /** Maximum number of cached lookups, 0 disables the cache */
+    public static final CfgInt CFG_LOOKUP_CACHE_SIZE =
+            new CfgInt(OperationApi.class, "lookupCacheSize", 1000);
+    private volatile OperationsProvider[] providers = new OperationsProvider[0];
+    private ConcurrentHashMap<String, Lookup> lookups = new ConcurrentHashMap<>();
 
     @Activate
     public void doActivate(ComponentContext ctx) {
@@ -122,6 +139,7 @@ public class OperationApiImpl extends MLog implements OperationApi {
                 synchronized (register) {
                     OperationsProvider o = register.put(name, service);
                     if (o != null) log().w("Provider was already registered", name);
+                    updateProviders();
                 }
             }
             return service;
@@ -136,6 +154,7 @@ public class OperationApiImpl extends MLog implements OperationApi {
                 log().i("modified", name);
                 synchronized (register) {
                     register.put(name, service);
+                    updateProviders();
                 }
             }
         }
@@ -149,11 +168,18 @@ public class OperationApiImpl extends MLog implements OperationApi {
                 log().i("unregister", name);
                 synchronized (register) {
                     register.remove(name);
+                    updateProviders();
                 }
             }
         }
     }
 
+    // the lookups are invalid with a new list of providers
+    private void updateProviders() {
+        providers = register.values().toArray(new OperationsProvider[register.size()]);
+        lookups.clear();
+    }
+
     public OperationsProvider getProvider(String name) {
         synchronized (register) {
             return register.get(name);
@@ -182,30 +208,79 @@ public class OperationApiImpl extends MLog implements OperationApi {
     @Override
     public List<OperationDescriptor> findOperations(
             String filter, VersionRange version, Collection<String> providedTags) {
-        LinkedList<OperationDescriptor> list = new LinkedList<>();
-        for (OperationsProvider provider : getProviders())
-            try {
-                provider.collectOperations(list, filter, version, providedTags);
-            } catch (Throwable t) {
-                log().d(filter, version, providedTags, t);
-            }
-        return list;
+        return new LinkedList<>(lookup(filter, version, providedTags));
     }
 
     @Override
     public OperationDescriptor findOperation(
             String filter, VersionRange version, Collection<String> providedTags)
             throws NotFoundException {
-        LinkedList<OperationDescriptor> list = new LinkedList<>();
-        for (OperationsProvider provider : getProviders()) {
+        List<OperationDescriptor> list = lookup(filter, version, providedTags);
+        if (list.isEmpty())
+            throw new NotFoundException("operation not found", filter, version, providedTags);
+        return list.get(0);
+    }
+
+    /**
+     * Return the operations of all providers matching the filter. The result is cached until the
+     * list of providers or the revision of one of the providers changes.
+     */
+    protected List<OperationDescriptor> lookup(
+            String filter, VersionRange version, Collection<String> providedTags) {
+        OperationsProvider[] current = providers;
+        long[] revisions = new long[current.length];
+        boolean cacheable = CFG_LOOKUP_CACHE_SIZE.value() > 0;
+        for (int i = 0; i < current.length; i++) {
+            revisions[i] = current[i].getRevision();
+            if (revisions[i] < 0) cacheable = false;
+        }
+
+        String key = null;
+        if (cacheable) {
+            key = getLookupKey(filter, version, providedTags);
+            Lookup cached = lookups.get(key);
+            if (cached != null
+                    && cached.providers == current
+                    && Arrays.equals(cached.revisions, revisions)) return cached.result;
+        }
+
+        ArrayList<OperationDescriptor> list = new ArrayList<>();
+        for (OperationsProvider provider : current)
             try {
                 provider.collectOperations(list, filter, version, providedTags);
             } catch (Throwable t) {
                 log().d(filter, version, providedTags, t);
             }
-            if (list.size() > 0) return list.getFirst();
+        List<OperationDescriptor> result = Collections.unmodifiableList(list);
+
+        if (cacheable) {
+            if (lookups.size() >= CFG_LOOKUP_CACHE_SIZE.value()) lookups.clear();
+            lookups.put(key, new Lookup(current, revisions, result));
+        }
+        return result;
+    }
+
+    private static String getLookupKey(
+            String filter, VersionRange version, Collection<String> providedTags) {
+        StringBuilder key = new StringBuilder();
+        if (filter != null) key.append(filter);
+        key.append('\n');
+        if (version != null) key.append(version);
+        key.append('\n');
+        // the order of the tags is not relevant, null and empty are not the same
+        if (providedTags != null) {
+            key.append('#');
+            for (String tag : new TreeSet<>(providedTags)) key.append(tag).append('\n');
         }
-        throw new NotFoundException("operation not found", filter, version, providedTags);
+        return key.toString();
+    }
+
+    public int getLookupCacheSize() {
+        return lookups.size();
+    }
+
+    public void clearLookupCache() {
+        lookups.clear();
     }
 
     @Override
@@ -226,6 +301,26 @@ public class OperationApiImpl extends MLog implements OperationApi {
                         executeOptions);
             }
         } else {
+            // execute the first operation of the cached lookup
+            List<OperationDescriptor> list = lookup(filter, version, providedTags);
+            if (!list.isEmpty()) {
+                // prefer the first operation with closed circuit
+                OperationDescriptor desc = list.get(0);
+                for (OperationDescriptor item : list)
+                    if (OperationStats.get(item).getCircuit().isAvailable()) {
+                        desc = item;
+                        break;
+                    }
+                OperationsProvider provider = getProvider(desc.getProvider());
+                if (provider != null)
+                    try {
+                        return unwrap(
+                                execute(provider, desc, properties, executeOptions),
+                                executeOptions);
+                    } catch (NotFoundException nfe) {
+                        log().d("cached operation not found", desc);
+                    }
+            }
             for (OperationsProvider provider : getProviders()) {
                 try {
                     return unwrap(
@@ -248,7 +343,87 @@ public class OperationApiImpl extends MLog implements OperationApi {
         OperationsProvider provider = getProvider(desc.getProvider());
         if (provider == null)
             throw new NotFoundException("provider for operation not found", desc, executeOptions);
-        return unwrap(provider.doExecute(desc, properties), executeOptions);
+        return unwrap(execute(provider, desc, properties, executeOptions), executeOptions);
+    }
+
+    // execute and collect the statistics for the load aware selectors
+    private OperationResult execute(
+            OperationsProvider provider,
+            OperationDescriptor desc,
+            IProperties properties,
+            String... executeOptions)
+            throws NotFoundException {
+        OperationStats stats = OperationStats.get(desc);
+        long start = stats.begin();
+        OperationResult res = null;
+        try {
+            res = provider.doExecute(desc, properties, executeOptions);
+        } finally {
+            stats.end(start, res);
+        }
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<OperationResult> doExecuteAsync(
+            OperationDescriptor desc, IProperties properties, String... executeOptions) {
+        OperationsProvider provider = getProvider(desc.getProvider());
+        if (provider == null) {
+            CompletableFuture<OperationResult> future = new CompletableFuture<>();
+            future.completeExceptionally(
+                    new NotFoundException(
+                            "provider for operation not found", desc, executeOptions));
+            return future;
+        }
+        OperationStats stats = OperationStats.get(desc);
+        long start = stats.begin();
+        CompletableFuture<OperationResult> future;
+        try {
+            future = provider.doExecuteAsync(desc, properties, executeOptions);
+        } catch (RuntimeException e) {
+            stats.end(start, false);
+            throw e;
+        }
+        return future.whenComplete((res, t) -> stats.end(start, t == null ? res : null))
+                .thenApply(res -> unwrap(res, executeOptions));
+    }
+
+    @Override
+    public List<OperationResult> doExecuteBatch(
+            List<OperationCall> calls, String... executeOptions) {
+        OperationResult[] results = new OperationResult[calls.size()];
+        // group the calls by provider, the providers group the calls by target
+        LinkedHashMap<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < calls.size(); i++)
+            groups.computeIfAbsent(
+                            calls.get(i).getDescriptor().getProvider(), k -> new ArrayList<>())
+                    .add(i);
+        for (Entry<String, List<Integer>> group : groups.entrySet()) {
+            OperationsProvider provider = getProvider(group.getKey());
+            ArrayList<OperationCall> part = new ArrayList<>(group.getValue().size());
+            for (int index : group.getValue()) part.add(calls.get(index));
+            List<OperationResult> res = null;
+            if (provider != null)
+                try {
+                    res = provider.doExecuteBatch(part, executeOptions);
+                } catch (Throwable t) {
+                    log().d(group.getKey(), t);
+                }
+            for (int i = 0; i < part.size(); i++) {
+                OperationCall call = part.get(i);
+                OperationResult r = res == null || res.size() <= i ? null : res.get(i);
+                if (r == null)
+                    r =
+                            new NotSuccessful(
+                                    call.getDescriptor().getPath(),
+                                    provider == null ? "provider not found" : "no result",
+                                    provider == null
+                                            ? OperationResult.NOT_FOUND
+                                            : OperationResult.INTERNAL_ERROR);
+                results[group.getValue().get(i)] = unwrap(r, call.getExecuteOptions());
+            }
+        }
+        return Arrays.asList(results);
     }
 
     protected OperationResult unwrap(OperationResult res, String[] executeOptions) {
@@ -280,4 +455,20 @@ public class OperationApiImpl extends MLog implements OperationApi {
         nodeTracker.close();
         nodeTracker.open(true);
     }
+
+    private static class Lookup {
+
+        private OperationsProvider[] providers;
+        private long[] revisions;
+        private List<OperationDescriptor> result;
+
+        private Lookup(
+                OperationsProvider[] providers,
+                long[] revisions,
+                List<OperationDescriptor> result) {
+            this.providers = providers;
+            this.revisions = revisions;
+            this.result = result;
+        }
+    }
 }
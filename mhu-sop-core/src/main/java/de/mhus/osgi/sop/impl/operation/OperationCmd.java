@@ -16,6 +16,8 @@ package de.mhus.osgi.sop.impl.operation;
 import java.io.File;
 import java.io.FileInputStream;
 import java.util.LinkedList;
+import java.util.Map.Entry;
+import java.util.TreeMap;
 
 import org.apache.karaf.shell.api.action.Argument;
 import org.apache.karaf.shell.api.action.Command;
@@ -36,6 +38,7 @@ import de.mhus.osgi.sop.api.jms.JmsApi;
 import de.mhus.osgi.sop.api.operation.OperationAddress;
 import de.mhus.osgi.sop.api.operation.OperationApi;
 import de.mhus.osgi.sop.api.operation.OperationDescriptor;
+import de.mhus.osgi.sop.api.operation.OperationStats;
 import de.mhus.osgi.sop.api.operation.OperationUtil;
 import de.mhus.osgi.sop.impl.util.PingOperation;
 
@@ -54,6 +57,7 @@ public class OperationCmd extends AbstractCmd {
                             + " info <path>\n"
                             + " execute <path> [key=value]*\n"
                             + " search\n"
+                            + " stats [address filter]\n"
                             + " ping [ident]",
             multiValued = false)
     String cmd;
@@ -194,6 +198,24 @@ public class OperationCmd extends AbstractCmd {
             for (String p : api.getProviderNames()) {
                 System.out.println(p);
             }
+        } else if (cmd.equals("stats")) {
+            ConsoleTable out = new ConsoleTable(tblOpt);
+            out.setHeaderValues(
+                    "address", "outstanding", "latency", "p95", "executed", "failed", "circuit");
+            for (Entry<String, OperationStats> entry :
+                    new TreeMap<>(OperationStats.getAll()).entrySet()) {
+                if (path != null && !entry.getKey().contains(path)) continue;
+                OperationStats stats = entry.getValue();
+                out.addRowValues(
+                        entry.getKey(),
+                        stats.getOutstanding(),
+                        Math.round(stats.getLatency()),
+                        Math.round(stats.getPercentile(95)),
+                        stats.getExecuted(),
+                        stats.getFailed(),
+                        stats.getCircuit().getState());
+            }
+            out.print(System.out);
         } else if (cmd.equals("reset")) {
             api.reset();
             System.out.println("OK");
@@ -16,15 +16,27 @@ package de.mhus.osgi.sop.impl.registry;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
 
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
@@ -36,12 +48,12 @@ import org.osgi.service.component.annotations.Reference;
 import de.mhus.lib.core.MApi;
 import de.mhus.lib.core.MCast;
 import de.mhus.lib.core.MLog;
-import de.mhus.lib.core.MProperties;
 import de.mhus.lib.core.MSystem;
 import de.mhus.lib.core.MThread;
 import de.mhus.lib.core.MTimerTask;
 import de.mhus.lib.core.base.service.TimerFactory;
 import de.mhus.lib.core.base.service.TimerIfc;
+import de.mhus.lib.core.cfg.CfgInt;
 import de.mhus.lib.core.cfg.CfgLong;
 import de.mhus.lib.core.cfg.CfgProvider;
 import de.mhus.lib.core.config.IConfig;
@@ -49,11 +61,15 @@ import de.mhus.lib.core.directory.ResourceNode;
 import de.mhus.lib.core.directory.WritableResourceNode;
 import de.mhus.lib.errors.AccessDeniedException;
 import de.mhus.lib.errors.MException;
+import de.mhus.lib.errors.MRuntimeException;
 import de.mhus.lib.errors.NotSupportedException;
 import de.mhus.lib.errors.UsageException;
 import de.mhus.osgi.api.services.MOsgi;
 import de.mhus.osgi.api.util.MServiceTracker;
+import de.mhus.osgi.sop.api.operation.OperationStats;
 import de.mhus.osgi.sop.api.registry.RegistryApi;
+import de.mhus.osgi.sop.api.registry.RegistryDigest;
+import de.mhus.osgi.sop.api.registry.RegistryListener;
 import de.mhus.osgi.sop.api.registry.RegistryManager;
 import de.mhus.osgi.sop.api.registry.RegistryPathControl;
 import de.mhus.osgi.sop.api.registry.RegistryProvider;
@@ -66,14 +82,30 @@ import de.mhus.osgi.sop.api.util.SopUtil;
 public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManager, CfgProvider {
 
     public static final int DEFAULT_PRIORITY = 100;
-    private boolean ready = false;
+    private static final ControlDescriptor[] EMPTY_CONTROLLERS = new ControlDescriptor[0];
+    private volatile boolean ready = false;
+    private volatile boolean published = false;
+    private Object syncLock = new Object();
     private IConfig configProxy = new MyConfig();
-    private TreeMap<String, RegistryValue> registry = new TreeMap<>();
+    // readers access the map without locking, writers synchronize on the map to keep
+    // check-and-set operations consistent
+    private ConcurrentSkipListMap<String, RegistryValue> registry = new ConcurrentSkipListMap<>();
     private TimerIfc timer;
     private MTimerTask timerTask;
     private CfgLong CFG_UPDATE_INTERVAL =
             new CfgLong(RegistryApiImpl.class, "updateInterval", 10000);
+    private CfgInt CFG_CONTROLLER_CACHE_SIZE =
+            new CfgInt(RegistryApiImpl.class, "controllerCacheSize", 10000);
     private TreeSet<ControlDescriptor> pathControllers = new TreeSet<>();
+    private volatile ControllerIndex controllerIndex = new ControllerIndex();
+    private RegistryJournal journal;
+    private RegistryDispatcher dispatcher = new RegistryDispatcher();
+    // timed entries ordered by the time they expire
+    private PriorityQueue<Expiry> expiry = new PriorityQueue<>();
+    // paths by source
+    private ConcurrentHashMap<String, Set<String>> sources = new ConcurrentHashMap<>();
+    // digests by source and depth, created on request and updated in the registry lock
+    private HashMap<String, HashMap<Integer, RegistryDigest>> digests = new HashMap<>();
     private MServiceTracker<RegistryPathControl> pathControllerTracker =
             new MServiceTracker<RegistryPathControl>(RegistryPathControl.class) {
 
@@ -84,7 +116,8 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
                     String path = (String) reference.getProperty("path");
                     if (path == null) return;
                     synchronized (pathControllers) {
-                        pathControllers.remove(new ControlDescriptor(path));
+                        pathControllers.removeIf(d -> d.service == service);
+                        updateControllerIndex();
                     }
                 }
 
@@ -101,40 +134,58 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
                     else path = validateNodePath(path);
                     synchronized (pathControllers) {
                         pathControllers.add(new ControlDescriptor(reference, service));
+                        updateControllerIndex();
                     }
                 }
             };
 
+    private MServiceTracker<RegistryProvider> providerTracker =
+            new MServiceTracker<RegistryProvider>(RegistryProvider.class) {
+
+                @Override
+                protected void removeService(
+                        ServiceReference<RegistryProvider> reference, RegistryProvider service) {}
+
+                @Override
+                protected void addService(
+                        ServiceReference<RegistryProvider> reference, RegistryProvider service) {
+                    // publish and request again using the new provider
+                    MThread.asynchron(
+                            () -> {
+                                synchronized (syncLock) {
+                                    ready = false;
+                                    published = false;
+                                }
+                                synchronize();
+                            });
+                }
+            };
+
     @Activate
     public void doActivate(ComponentContext ctx) {
         MApi.get().getCfgManager().registerCfgProvider(RegistryApi.class.getCanonicalName(), this);
         pathControllerTracker.start(ctx);
+        journal =
+                new RegistryJournal(
+                        getSnapshotFile(),
+                        getFile(),
+                        getJournalFile(),
+                        () -> getPersistentEntries());
+        dispatcher.start();
         load(false);
-        MThread.asynchron(
-                new Runnable() {
-
-                    @Override
-                    public void run() {
-                        MThread.sleep(10000);
-                        while (MOsgi.getServices(RegistryProvider.class, null).size() == 0) {
-                            log().d("RegistryProvider not found");
-                            MThread.sleep(10000);
-                        }
-                        while (!publishAll()) {
-                            MThread.sleep(10000);
-                        }
-                        while (!requestAll()) {
-                            MThread.sleep(10000);
-                        }
-                        ready = true;
-                    }
-                });
+        journal.start();
+        // synchronize as soon as a provider is available
+        providerTracker.start(ctx);
     }
 
     @Deactivate
     public void doDeactivate(ComponentContext ctx) {
         if (timer != null) timer.cancel();
         pathControllerTracker.stop();
+        providerTracker.stop();
+        if (journal != null) journal.close();
+        journal = null;
+        dispatcher.close();
     }
 
     @Reference(service = TimerFactory.class)
@@ -154,6 +205,9 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
 
     protected void checkUpdate() {
 
+        // retry if the last synchronization failed
+        if (!ready) synchronize();
+
         // send worker update
         setParameter(
                 PATH_WORKER + getServerIdent() + "@pid",
@@ -163,67 +217,247 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
                 false,
                 false);
 
-        final long now = System.currentTimeMillis();
-        LinkedList<RegistryValue> values = null;
-        synchronized (registry) {
-            values = new LinkedList<>(registry.values());
+        // publish the load for the load aware selectors
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        if (load >= 0) {
+            // rounded to avoid publishing of small changes
+            load = Math.round(load * 10 / Runtime.getRuntime().availableProcessors()) / 10d;
+            setParameter(
+                    OperationStats.getLoadPath(getServerIdent()),
+                    String.valueOf(load),
+                    CFG_UPDATE_INTERVAL.value() * 2,
+                    true,
+                    false,
+                    false);
         }
 
         // remove all out timed entries
         HashSet<String> lostWorkers = new HashSet<>();
-        for (RegistryValue value : values) {
-            boolean remove =
-                    !value.isLocal()
-                            && value.getTimeout() > 0
-                            && now - value.getUpdated() > value.getTimeout();
-            if (remove) {
-                String path = value.getPath();
-                if (path.startsWith(PATH_WORKER)
-                        && path.endsWith("@pid")
-                        && path.indexOf('/', PATH_WORKER.length() + 1) < 0)
-                    lostWorkers.add(path.substring(PATH_WORKER.length(), path.length() - 4));
-                removeLocalParameter(path, value.getSource(), true);
-            }
-        }
-        if (lostWorkers.size() > 0) {
-            for (RegistryValue value : values) {
+        for (RegistryValue value : pollExpired(System.currentTimeMillis())) {
+            String path = value.getPath();
+            if (path.startsWith(PATH_WORKER)
+                    && path.endsWith("@pid")
+                    && path.indexOf('/', PATH_WORKER.length() + 1) < 0)
+                lostWorkers.add(path.substring(PATH_WORKER.length(), path.length() - 4));
+            removeLocalParameter(path, value.getSource(), true);
+        }
+        // remove all entries of lost workers
+        for (String worker : lostWorkers) {
+            Set<String> paths = sources.remove(worker);
+            if (paths == null) continue;
+            for (String path : paths) {
+                RegistryValue value = registry.get(path);
+                if (value == null) continue;
                 if (value.isLocal()) {
                     RegistryValue remote = value.getRemoteValue();
-                    if (remote != null && lostWorkers.contains(remote.getSource())) {
-                        removeLocalParameter(value.getPath(), remote.getSource(), true);
+                    if (remote != null && worker.equals(remote.getSource())) {
+                        removeLocalParameter(path, remote.getSource(), true);
                     }
-                } else if (lostWorkers.contains(value.getSource())) {
-                    removeLocalParameter(value.getPath(), value.getSource(), true);
+                } else if (worker.equals(value.getSource())) {
+                    removeLocalParameter(path, value.getSource(), true);
                 }
             }
+            synchronized (registry) {
+                digests.remove(worker);
+            }
+        }
+    }
+
+    /**
+     * Remove and return all entries from the expiry index with a timeout before now. Entries
+     * already replaced or removed in the registry are ignored.
+     *
+     * @param now Current time
+     * @return List of timed out entries
+     */
+    protected List<RegistryValue> pollExpired(long now) {
+        LinkedList<RegistryValue> out = new LinkedList<>();
+        synchronized (expiry) {
+            while (!expiry.isEmpty() && expiry.peek().expires < now) {
+                RegistryValue value = expiry.poll().value;
+                if (registry.get(value.getPath()) == value) out.add(value);
+            }
+        }
+        return out;
+    }
+
+    private void putEntry(String path, RegistryValue value) {
+        RegistryValue old = registry.put(path, value);
+        if (old != null) {
+            digest(old, false);
+            if (old.isLocal()) digest(old.getRemoteValue(), false);
+        }
+        digest(value, true);
+        if (value.isLocal()) digest(value.getRemoteValue(), true);
+        if (old != null && !old.isLocal() && !old.getSource().equals(value.getSource()))
+            unindexSource(path, old);
+        if (value.isLocal()) {
+            if (value.getRemoteValue() != null) indexSource(path, value.getRemoteValue());
+        } else {
+            indexSource(path, value);
+            if (value.getTimeout() > 0)
+                synchronized (expiry) {
+                    expiry.add(new Expiry(value));
+                }
+        }
+    }
+
+    private RegistryValue removeEntry(String path) {
+        RegistryValue old = registry.remove(path);
+        if (old != null) {
+            digest(old, false);
+            if (old.isLocal()) {
+                digest(old.getRemoteValue(), false);
+                if (old.getRemoteValue() != null) unindexSource(path, old.getRemoteValue());
+            } else unindexSource(path, old);
+        }
+        return old;
+    }
+
+    // the source index can contain paths no more owned by the source, check the registry before use
+    private void indexSource(String path, RegistryValue value) {
+        sources.computeIfAbsent(value.getSource(), k -> ConcurrentHashMap.newKeySet()).add(path);
+    }
+
+    private void unindexSource(String path, RegistryValue value) {
+        Set<String> paths = sources.get(value.getSource());
+        if (paths != null) paths.remove(path);
+    }
+
+    /** Replace the remote value overwritten by the local entry. */
+    private void setRemoteEntry(RegistryValue local, RegistryValue remote) {
+        synchronized (registry) {
+            // ignore the digests if the local entry was replaced in the meantime
+            boolean current = registry.get(local.getPath()) == local;
+            if (current) digest(local.getRemoteValue(), false);
+            local.setRemoteValue(remote);
+            if (remote != null) {
+                if (current) digest(remote, true);
+                indexSource(remote.getPath(), remote);
+            }
+        }
+    }
+
+    private void digest(RegistryValue value, boolean add) {
+        if (value == null || value.getPath().startsWith(PATH_LOCAL)) return;
+        HashMap<Integer, RegistryDigest> map = digests.get(value.getSource());
+        if (map == null) return;
+        for (RegistryDigest digest : map.values()) {
+            if (add) digest.add(value);
+            else digest.remove(value);
         }
     }
 
     @Override
-    public RegistryValue getParameter(String path) {
-        path = validateParameterPath(path);
+    public RegistryDigest getDigest(String source, int depth) {
         synchronized (registry) {
-            return registry.get(path);
+            HashMap<Integer, RegistryDigest> map =
+                    digests.computeIfAbsent(source, k -> new HashMap<>());
+            RegistryDigest digest = map.get(depth);
+            if (digest == null) {
+                // created once, updated by every change later
+                digest = new RegistryDigest(depth);
+                for (RegistryValue value : registry.values()) {
+                    if (value.getPath().startsWith(PATH_LOCAL)) continue;
+                    if (source.equals(value.getSource())) digest.add(value);
+                    RegistryValue remote = value.isLocal() ? value.getRemoteValue() : null;
+                    if (remote != null && source.equals(remote.getSource())) digest.add(remote);
+                }
+                map.put(depth, digest);
+            }
+            return new RegistryDigest(digest);
+        }
+    }
+
+    private static class Expiry implements Comparable<Expiry> {
+
+        private long expires;
+        private RegistryValue value;
+
+        private Expiry(RegistryValue value) {
+            this.value = value;
+            expires = value.getUpdated() + value.getTimeout();
+        }
+
+        @Override
+        public int compareTo(Expiry o) {
+            return Long.compare(expires, o.expires);
+        }
+    }
+
+    /**
+     * Collects the side effects of mutations. The journal records are queued in the registry lock
+     * to keep the order of the mutations, the other effects are applied together after the
+     * mutations are done: synced and published in one call per provider.
+     */
+    private class Changes {
+
+        private LinkedHashMap<String, String> states = new LinkedHashMap<>();
+        private LinkedList<RegistryJournal.Commit> commits = new LinkedList<>();
+        private LinkedList<RegistryValue> publish = new LinkedList<>();
+        private LinkedList<String> remove = new LinkedList<>();
+
+        // remember the current state of the path for the journal, call it in the registry lock
+        private void persist(String path) {
+            RegistryValue entry = registry.get(path);
+            states.put(path, entry != null && isPersistent(entry) ? encode(entry) : null);
+        }
+
+        // queue the remembered states in the journal, call it in the registry lock
+        private void queue() {
+            if (states.isEmpty()) return;
+            RegistryJournal j = journal;
+            if (j != null) commits.add(j.queue(states));
+            states = new LinkedHashMap<>();
+        }
+
+        private void commit() {
+            IOException failed = null;
+            RegistryJournal j = journal;
+            if (j != null)
+                for (RegistryJournal.Commit c : commits)
+                    try {
+                        j.await(c);
+                    } catch (IOException e) {
+                        log().e("registry entries not persisted", e);
+                        failed = e;
+                    }
+            if (!publish.isEmpty() || !remove.isEmpty()) {
+                for (RegistryProvider provider : MOsgi.getServices(RegistryProvider.class, null)) {
+                    try {
+                        if (!remove.isEmpty()) provider.remove(remove);
+                        if (!publish.isEmpty()) provider.publish(publish);
+                    } catch (Throwable t) {
+                        log().d(provider, t);
+                    }
+                }
+            }
+            if (failed != null) throw new MRuntimeException(failed);
         }
     }
 
+    @Override
+    public RegistryValue getParameter(String path) {
+        path = validateParameterPath(path);
+        return registry.get(path);
+    }
+
     @Override
     public Set<String> getNodeChildren(String path) {
         path = validateNodePath(path);
         final TreeSet<String> out = new java.util.TreeSet<>();
         final String pathx = path.equals("/") ? path : path + "/";
-        final int posx = pathx.length() + 1;
-        synchronized (registry) {
-            for (Entry<String, RegistryValue> entry : registry.entrySet()) {
-                if (entry.getKey().startsWith(pathx)) {
-                    String k = entry.getKey();
-                    int p = k.indexOf('@');
-                    if (p > 0) k = k.substring(0, p);
-                    p = k.indexOf('/', posx);
-                    if (p > 0) out.add(k.substring(posx - 1, p));
-                    else out.add(k.substring(posx - 1));
-                } else if (out.size() > 0 || entry.getKey().compareTo(pathx) > 0)
-                    break; // in ordered TreeHash we found one and now it's the end of the block
+        final int len = pathx.length();
+        String key = registry.ceilingKey(pathx);
+        while (key != null && key.startsWith(pathx)) {
+            int end = len;
+            while (end < key.length() && key.charAt(end) != '/' && key.charAt(end) != '@') end++;
+            out.add(key.substring(len, end));
+            if (end >= key.length()) {
+                key = registry.higherKey(key);
+            } else {
+                // seek behind the sub tree or the parameters of the child
+                key = registry.ceilingKey(key.substring(0, end) + (char) (key.charAt(end) + 1));
             }
         }
         return out;
@@ -234,34 +468,54 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
         path = validateNodePath(path);
         final TreeSet<String> out = new java.util.TreeSet<>();
         final String pathx = path + "@";
-        final int posx = pathx.length() + 1;
-        synchronized (registry) {
-            for (Entry<String, RegistryValue> entry : registry.entrySet()) {
-                if (entry.getKey().startsWith(pathx)) {
-                    out.add(entry.getKey().substring(posx));
-                } else if (out.size() > 0 || entry.getKey().compareTo(pathx) > 0)
-                    break; // in ordered TreeHash we found one and now it's the end of the block
-            }
-        }
+        final int posx = pathx.length();
+        for (String key : getRange(pathx).keySet()) out.add(key.substring(posx));
         return out;
     }
 
     @Override
     public Set<RegistryValue> getParameters(String path) {
         path = validateNodePath(path);
-        final TreeSet<RegistryValue> out = new java.util.TreeSet<>();
-        final String pathx = path + "@";
-        synchronized (registry) {
-            for (Entry<String, RegistryValue> entry : registry.entrySet()) {
-                if (entry.getKey().startsWith(pathx)) {
-                    out.add(entry.getValue());
-                } else if (out.size() > 0 || entry.getKey().compareTo(pathx) > 0)
-                    break; // in ordered TreeHash we found one and now it's the end of the block
-            }
+        return new TreeSet<>(getRange(path + "@").values());
+    }
+
+    @Override
+    public int countParameters(String prefix) {
+        return getRange(validatePrefix(prefix)).size();
+    }
+
+    @Override
+    public Stream<RegistryValue> streamParameters(String prefix) {
+        return getRange(validatePrefix(prefix)).values().stream();
+    }
+
+    @Override
+    public List<RegistryValue> getParameters(String prefix, String cursor, int size) {
+        prefix = validatePrefix(prefix);
+        NavigableMap<String, RegistryValue> range = getRange(prefix);
+        if (cursor != null && cursor.compareTo(prefix) >= 0) range = range.tailMap(cursor, false);
+        LinkedList<RegistryValue> out = new LinkedList<>();
+        for (RegistryValue value : range.values()) {
+            if (out.size() >= size) break;
+            out.add(value);
         }
         return out;
     }
 
+    /**
+     * Return a view of all entries starting with the given prefix. The view is backed by the
+     * registry and is iterated in key order.
+     *
+     * @param prefix Path prefix
+     * @return Map view of the range
+     */
+    protected NavigableMap<String, RegistryValue> getRange(String prefix) {
+        if (prefix.length() == 0) return registry;
+        char last = prefix.charAt(prefix.length() - 1);
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+        return registry.subMap(prefix, true, end, false);
+    }
+
     @Override
     public boolean setParameter(
             String path,
@@ -270,6 +524,62 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
             boolean readOnly,
             boolean persistent,
             boolean local) {
+        RegistryValue[] set =
+                prepareSetParameter(path, value, timeout, readOnly, persistent, local);
+        if (set == null) return false;
+        Changes changes = new Changes();
+        synchronized (registry) {
+            putEntry(set[0].getPath(), set[0]);
+            persistSetParameter(changes, set[0], set[1]);
+            changes.queue();
+        }
+        afterSetParameter(changes, set[0], set[1]);
+        changes.commit();
+        return true;
+    }
+
+    @Override
+    public int setParameters(Collection<RegistryValue> values) {
+        // the controllers are called without lock, the registry is locked only to put the entries
+        ArrayList<RegistryValue[]> sets = new ArrayList<>(values.size());
+        for (RegistryValue value : values) {
+            RegistryValue[] set =
+                    prepareSetParameter(
+                            value.getPath(),
+                            value.getValue(),
+                            value.getTimeout(),
+                            value.isReadOnly(),
+                            value.isPersistent(),
+                            value.isLocal());
+            if (set != null) sets.add(set);
+        }
+        if (sets.isEmpty()) return 0;
+        Changes changes = new Changes();
+        synchronized (registry) {
+            for (RegistryValue[] set : sets) {
+                putEntry(set[0].getPath(), set[0]);
+                persistSetParameter(changes, set[0], set[1]);
+            }
+            changes.queue();
+        }
+        for (RegistryValue[] set : sets) afterSetParameter(changes, set[0], set[1]);
+        changes.commit();
+        return sets.size();
+    }
+
+    /**
+     * Check the new value and create the entry, the registry is not locked while the controller is
+     * called.
+     *
+     * @return The new and the current entry or null if nothing is to put
+     */
+    private RegistryValue[] prepareSetParameter(
+            String path,
+            String value,
+            long timeout,
+            boolean readOnly,
+            boolean persistent,
+            boolean local) {
         path = validateParameterPath(path);
         if (value == null) throw new NullPointerException("null value not allowed");
         String source = getServerIdent();
@@ -296,13 +606,13 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
                         && timeout == 0
                         && MSystem.equals(c.getValue(), value)
                         && c.isReadOnly() == readOnly
-                        && c.isPersistent() == persistent) return false;
+                        && c.isPersistent() == persistent) return null;
                 if (c.isReadOnly() && !c.getSource().equals(source))
                     throw new AccessDeniedException("The entry is read only");
             }
             if (!local && current.isLocal()) {
-                current.setRemoteValue(entry);
-                return false;
+                setRemoteEntry(current, entry);
+                return null;
             }
             if (entry.isLocal()) {
                 entry.setRemoteValue(c);
@@ -314,93 +624,178 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
             RegistryPathControl controller = getPathController(path);
             if (controller != null) {
                 entry = controller.checkSetParameter(this, entry);
-                if (entry == null) return false;
+                if (entry == null) return null;
                 if (!path.equals(entry.getPath()))
                     throw new NotSupportedException(
                             "Controller can't change the path of the entry", path);
             }
         }
+        return new RegistryValue[] {entry, current};
+    }
 
-        // Put into registry
-        synchronized (registry) {
-            registry.put(path, entry);
-        }
-
+    // call with lock on registry
+    private void persistSetParameter(Changes changes, RegistryValue entry, RegistryValue current) {
         // save to file if/was persistent
         if (entry.isPersistent() || current != null && current.isPersistent())
-            try {
-                save();
-            } catch (IOException e) {
-                log().d(e);
-            }
+            changes.persist(entry.getPath());
+    }
+
+    private void afterSetParameter(Changes changes, RegistryValue entry, RegistryValue current) {
+        String path = entry.getPath();
         // publish to other nodes
-        if (!path.startsWith(RegistryApi.PATH_LOCAL) && !entry.isLocal()) {
-            for (RegistryProvider provider : MOsgi.getServices(RegistryProvider.class, null)) {
-                try {
-                    provider.publish(entry);
-                } catch (Throwable t) {
-                    log().d(provider, t);
-                }
+        if (!path.startsWith(RegistryApi.PATH_LOCAL) && !entry.isLocal())
+            changes.publish.add(entry);
+        // fire events
+        dispatcher.fire(path, entry);
+    }
+
+    @Override
+    public RegistryPathControl getPathController(String path) {
+        // candidates are ordered by priority and reverse path, use the first one matching
+        for (ControlDescriptor desc : controllerIndex.getCandidates(path))
+            if (desc.service.isTakeControl(path)) return desc.service;
+        return null;
+    }
+
+    // call with lock on pathControllers
+    private void updateControllerIndex() {
+        ControllerIndex index = new ControllerIndex();
+        for (ControlDescriptor desc : pathControllers) {
+            ControlDescriptor[] list = index.byPath.get(desc.path);
+            if (list == null) list = new ControlDescriptor[] {desc};
+            else {
+                list = Arrays.copyOf(list, list.length + 1);
+                list[list.length - 1] = desc;
             }
+            index.byPath.put(desc.path, list);
         }
-        // fire Cfg events
-        if (!path.startsWith(RegistryApi.PATH_SYSTEM)
-                && !path.startsWith(RegistryApi.PATH_WORKER)) {
-            try {
-                MApi.getCfgUpdater().doUpdate(RegistryApi.class.getCanonicalName(), path);
-            } catch (Throwable t) {
-                log().d(t);
+        controllerIndex = index;
+    }
+
+    /**
+     * Immutable index of the path controllers by path. Controller paths always end with '/' or
+     * '@', so the candidates for a path are found by looking up all prefixes ending with one of
+     * these characters. The candidates are cached by the longest of these prefixes. The index is
+     * replaced as a whole if the controllers change.
+     */
+    private class ControllerIndex {
+
+        private HashMap<String, ControlDescriptor[]> byPath = new HashMap<>();
+        private ConcurrentHashMap<String, ControlDescriptor[]> cache = new ConcurrentHashMap<>();
+
+        private ControlDescriptor[] getCandidates(String path) {
+            if (byPath.isEmpty()) return EMPTY_CONTROLLERS;
+            int end = path.length() - 1;
+            while (end >= 0 && path.charAt(end) != '/' && path.charAt(end) != '@') end--;
+            String key = path.substring(0, end + 1);
+            ControlDescriptor[] out = cache.get(key);
+            if (out != null) return out;
+
+            TreeSet<ControlDescriptor> candidates = new TreeSet<>();
+            for (int i = 0; i <= end; i++) {
+                char c = path.charAt(i);
+                if (c == '/' || c == '@') {
+                    ControlDescriptor[] list = byPath.get(path.substring(0, i + 1));
+                    if (list != null) candidates.addAll(Arrays.asList(list));
+                }
             }
+            out = candidates.toArray(new ControlDescriptor[candidates.size()]);
+            if (cache.size() >= CFG_CONTROLLER_CACHE_SIZE.value()) cache.clear();
+            cache.put(key, out);
+            return out;
         }
-        return true;
     }
 
     @Override
-    public RegistryPathControl getPathController(String path) {
-        synchronized (pathControllers) {
-            // pathControllers is ordered by priority and reverse path, use the first one matching
-            for (ControlDescriptor desc : pathControllers)
-                if (path.startsWith(desc.path)) {
-                    if (desc.service.isTakeControl(path)) return desc.service;
+    public boolean removeParameter(String path) {
+        Changes changes = new Changes();
+        boolean removed = removeParameter(changes, path);
+        changes.commit();
+        return removed;
+    }
+
+    @Override
+    public int removeParameters(Collection<String> paths) {
+        Changes changes = new Changes();
+        int cnt = 0;
+        try {
+            // the controllers are called without lock, the registry is locked only to remove
+            ArrayList<String> removes = new ArrayList<>(paths.size());
+            for (String path : paths) {
+                path = validateParameterPath(path);
+                RegistryValue current = getParameter(path);
+                if (current == null) continue;
+                if (current.isLocal()) {
+                    if (removeLocalEntry(changes, path, current)) cnt++;
+                } else if (checkRemoveParameter(path, current)) removes.add(path);
+            }
+            if (!removes.isEmpty()) {
+                RegistryValue[] entries = new RegistryValue[removes.size()];
+                synchronized (registry) {
+                    for (int i = 0; i < entries.length; i++) {
+                        entries[i] = removeEntry(removes.get(i));
+                        // save to disk if was persistent
+                        if (entries[i] != null && entries[i].isPersistent())
+                            changes.persist(removes.get(i));
+                    }
+                    changes.queue();
                 }
+                for (int i = 0; i < entries.length; i++)
+                    afterRemoveParameter(changes, removes.get(i), entries[i]);
+                cnt += entries.length;
+            }
+        } finally {
+            changes.commit();
         }
-        return null;
+        return cnt;
     }
 
-    @Override
-    public boolean removeParameter(String path) {
+    private boolean removeParameter(Changes changes, String path) {
         path = validateParameterPath(path);
         RegistryValue current = getParameter(path);
         if (current == null) return false;
 
         // in case of local ...
-        if (current.isLocal()) {
-            RegistryValue entry = current.getRemoteValue();
-            synchronized (registry) {
-                registry.remove(path);
-            }
-            if (entry != null) {
-                setParameterFromRemote(entry);
-                if (entry != null && entry.isPersistent())
-                    try {
-                        save();
-                    } catch (IOException e) {
-                        log().d(e);
-                    }
-                return true;
-            } else {
-                // send Cfg events
-                if (!path.startsWith(RegistryApi.PATH_SYSTEM)) {
-                    try {
-                        MApi.getCfgUpdater().doUpdate(RegistryApi.class.getCanonicalName(), path);
-                    } catch (Throwable t) {
-                        log().d(t);
-                    }
+        if (current.isLocal()) return removeLocalEntry(changes, path, current);
+
+        if (!checkRemoveParameter(path, current)) return false;
+
+        // update memory registry
+        RegistryValue entry = null;
+        synchronized (registry) {
+            entry = removeEntry(path);
+            // save to disk if was persistent
+            if (entry != null && entry.isPersistent()) changes.persist(path);
+            changes.queue();
+        }
+        afterRemoveParameter(changes, path, entry);
+        return true;
+    }
+
+    // remove the local entry and fall back to the remote value
+    private boolean removeLocalEntry(Changes changes, String path, RegistryValue current) {
+        RegistryValue entry = current.getRemoteValue();
+        synchronized (registry) {
+            removeEntry(path);
+            if (current.isPersistent()) changes.persist(path);
+            changes.queue();
+        }
+        if (entry != null) {
+            setParameterFromRemote(entry);
+            if (entry.isPersistent())
+                synchronized (registry) {
+                    changes.persist(path);
+                    changes.queue();
                 }
-                return true;
-            }
+        } else {
+            // fire events
+            dispatcher.fire(path, null);
         }
+        return true;
+    }
 
+    // call without lock on registry
+    private boolean checkRemoveParameter(String path, RegistryValue current) {
         if (current.isReadOnly() && !current.getSource().equals(getServerIdent()))
             throw new AccessDeniedException("The entry is readOnly");
 
@@ -411,37 +806,14 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
                 if (!controller.checkRemoveParameter(this, current)) return false;
             }
         }
+        return true;
+    }
 
-        // update memory registry
-        RegistryValue entry = null;
-        synchronized (registry) {
-            entry = registry.remove(path);
-        }
-        // save to disk if was persistent
-        if (entry != null && entry.isPersistent())
-            try {
-                save();
-            } catch (IOException e) {
-                log().d(e);
-            }
+    private void afterRemoveParameter(Changes changes, String path, RegistryValue entry) {
         // publish to other nodes
-        for (RegistryProvider provider : MOsgi.getServices(RegistryProvider.class, null)) {
-            try {
-                provider.remove(path);
-            } catch (Throwable t) {
-                log().d(provider, t);
-            }
-        }
-        // send Cfg events
-        if (!path.startsWith(RegistryApi.PATH_SYSTEM)
-                && !path.startsWith(RegistryApi.PATH_WORKER)) {
-            try {
-                MApi.getCfgUpdater().doUpdate(RegistryApi.class.getCanonicalName(), path);
-            } catch (Throwable t) {
-                log().d(t);
-            }
-        }
-        return true;
+        changes.remove.add(path);
+        // fire events
+        dispatcher.fire(path, null);
     }
 
     @Override
@@ -463,22 +835,14 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
             RegistryValue cur = registry.get(value.getPath());
             if (cur != null) {
                 if (cur.isLocal()) {
-                    cur.setRemoteValue(value);
+                    setRemoteEntry(cur, value);
                     return;
                 }
                 if (cur.isReadOnly() && !cur.getSource().equals(value.getSource())) return;
             }
-            registry.put(value.getPath(), value);
-        }
-        if (!value.getPath().startsWith(RegistryApi.PATH_SYSTEM)
-                && !value.getPath().startsWith(RegistryApi.PATH_WORKER)) {
-            try {
-                MApi.getCfgUpdater()
-                        .doUpdate(RegistryApi.class.getCanonicalName(), value.getPath());
-            } catch (Throwable t) {
-                log().d(t);
-            }
+            putEntry(value.getPath(), value);
         }
+        dispatcher.fire(value.getPath(), value);
     }
 
     @Override
@@ -490,10 +854,7 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
         if (path == null) return;
         if (intern && path.startsWith(RegistryApi.PATH_LOCAL)) return;
 
-        RegistryValue cur = null;
-        synchronized (registry) {
-            cur = registry.get(path);
-        }
+        RegistryValue cur = registry.get(path);
         if (cur == null) return; // path not exists
 
         // let the controller check the action
@@ -508,30 +869,52 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
             if (cur.isLocal()) {
                 RegistryValue c = cur.getRemoteValue();
                 if (c != null && !intern && c.isReadOnly() && !c.getSource().equals(source)) return;
-                cur.setRemoteValue(null);
+                setRemoteEntry(cur, null);
                 return;
             }
             if (source != null) {
                 if (cur != null && !intern && cur.isReadOnly() && !cur.getSource().equals(source))
                     return;
             }
-            registry.remove(path);
+            removeEntry(path);
         }
-        if (!path.startsWith(RegistryApi.PATH_SYSTEM)
-                && !path.startsWith(RegistryApi.PATH_WORKER)) {
-            try {
-                MApi.getCfgUpdater().doUpdate(RegistryApi.class.getCanonicalName(), path);
-            } catch (Throwable t) {
-                log().d(t);
+        dispatcher.fire(path, null);
+    }
+
+    /**
+     * Publish the own entries and request the entries of the other nodes. Failed steps are retried
+     * by the next update check.
+     */
+    private void synchronize() {
+        synchronized (syncLock) {
+            if (ready || MOsgi.getServices(RegistryProvider.class, null).isEmpty()) return;
+            if (!published) {
+                if (!publishAll()) return;
+                published = true;
             }
+            if (!requestAll()) return;
+            ready = true;
+            log().d("registry synchronized");
         }
     }
 
     @Override
     public Collection<RegistryValue> getAll() {
-        synchronized (registry) {
-            return Collections.unmodifiableCollection(new LinkedList<>(registry.values()));
-        }
+        return Collections.unmodifiableCollection(new LinkedList<>(registry.values()));
+    }
+
+    @Override
+    public void watch(String prefix, RegistryListener listener) {
+        dispatcher.watch(validatePrefix(prefix), listener);
+    }
+
+    @Override
+    public void unwatch(RegistryListener listener) {
+        dispatcher.unwatch(listener);
+    }
+
+    public RegistryDispatcher getDispatcher() {
+        return dispatcher;
     }
 
     @Override
@@ -563,42 +946,82 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
     }
 
     private String validateParameterPath(String name) {
-        if (name == null) throw new NullPointerException();
-        if (!name.startsWith("/")) name = "/" + name;
-
-        if (name.indexOf('\\') >= 0) name = name.replaceAll("\\\\", "/");
-        if (name.indexOf('*') >= 0) name = name.replaceAll("\\*", "_");
-        if (name.indexOf('?') >= 0) name = name.replaceAll("\\?", "_");
-        if (name.indexOf(':') >= 0) name = name.replaceAll(":", "_");
-        if (name.indexOf(' ') >= 0) name = name.replaceAll(" ", "_");
-        if (name.indexOf("..") >= 0) name = name.replaceAll("..", "_");
-        if (name.indexOf('~') >= 0) name = name.replace('~', '_');
-        while (name.indexOf("//") >= 0) name = name.replace("//", "/");
-
+        name = normalizePath(name);
         if (name.indexOf('@') < 0) throw new UsageException("Parameter is not defined in path");
-
         return name;
     }
 
     private String validateNodePath(String name) {
-        if (name == null) throw new NullPointerException();
-        if (!name.startsWith("/")) name = "/" + name;
-
-        if (name.indexOf('\\') >= 0) name = name.replaceAll("\\\\", "/");
-        if (name.indexOf('*') >= 0) name = name.replaceAll("\\*", "_");
-        if (name.indexOf('?') >= 0) name = name.replaceAll("\\?", "_");
-        if (name.indexOf(':') >= 0) name = name.replaceAll(":", "_");
-        if (name.indexOf(' ') >= 0) name = name.replaceAll(" ", "_");
-        if (name.indexOf("..") >= 0) name = name.replaceAll("..", "_");
-        if (name.indexOf('~') >= 0) name = name.replace('~', '_');
-        while (name.indexOf("//") >= 0) name = name.replace("//", "/");
-
+        name = normalizePath(name);
         if (name.indexOf('@') >= 0)
             throw new UsageException("Parameter can't be defined in node path");
-
         return name;
     }
 
+    private String validatePrefix(String name) {
+        if (name == null) return "";
+        return normalizePath(name);
+    }
+
+    private String normalizePath(String name) {
+        if (name == null) throw new NullPointerException();
+        if (isNormalized(name)) return name;
+
+        StringBuilder out = new StringBuilder(name.length() + 1);
+        if (name.isEmpty() || name.charAt(0) != '/') out.append('/');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            switch (c) {
+                case '\\':
+                    c = '/';
+                    break;
+                case '*':
+                case '?':
+                case ':':
+                case ' ':
+                case '~':
+                    c = '_';
+                    break;
+                case '.':
+                    if (i + 1 < name.length() && name.charAt(i + 1) == '.') {
+                        c = '_';
+                        i++;
+                    }
+                    break;
+                default:
+            }
+            // collapse multiple slashes
+            if (c == '/' && out.length() > 0 && out.charAt(out.length() - 1) == '/') continue;
+            out.append(c);
+        }
+        return out.toString();
+    }
+
+    // fast path for the common case, a path without anything to replace
+    private static boolean isNormalized(String name) {
+        if (name.isEmpty() || name.charAt(0) != '/') return false;
+        char last = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            switch (c) {
+                case '\\':
+                case '*':
+                case '?':
+                case ':':
+                case ' ':
+                case '~':
+                    return false;
+                case '.':
+                case '/':
+                    if (last == c) return false;
+                    break;
+                default:
+            }
+            last = c;
+        }
+        return true;
+    }
+
     @Override
     public IConfig getConfig() {
         return configProxy;
@@ -807,21 +1230,30 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
 
     @Override
     public void save() throws IOException {
-        MProperties p = new MProperties();
-        for (RegistryValue entry : getAll())
-            if ((entry.getSource().equals(getServerIdent()) || entry.isLocal())
-                    && entry.isPersistent()) {
-                p.setString(
-                        entry.getPath(),
-                        entry.isReadOnly()
-                                + "|"
-                                + entry.getTimeout()
-                                + "|"
-                                + entry.getSource()
-                                + "|"
-                                + entry.getValue());
-            }
-        p.save(getFile());
+        if (journal == null) return;
+        journal.compact();
+    }
+
+    private boolean isPersistent(RegistryValue entry) {
+        return (entry.getSource().equals(getServerIdent()) || entry.isLocal())
+                && entry.isPersistent();
+    }
+
+    private String encode(RegistryValue entry) {
+        return entry.isReadOnly()
+                + "|"
+                + entry.getTimeout()
+                + "|"
+                + entry.getSource()
+                + "|"
+                + entry.getValue();
+    }
+
+    private Map<String, String> getPersistentEntries() {
+        TreeMap<String, String> out = new TreeMap<>();
+        for (RegistryValue entry : registry.values())
+            if (isPersistent(entry)) out.put(entry.getPath(), encode(entry));
+        return out;
     }
 
     @Override
@@ -830,27 +1262,52 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
     }
 
     public void load(boolean push) {
-        File file = getFile();
-        if (!file.exists()) return;
-        MProperties prop = MProperties.load(file);
+        if (journal == null) return;
+        Map<String, String> entries = journal.load();
         long updated = System.currentTimeMillis();
-        for (Entry<String, Object> entry : prop.entrySet()) {
-            String[] split = entry.getValue().toString().split("\\|", 4);
-            if (!SOURCE_LOCAL.equals(split[2])) {
-                split[2] = getServerIdent();
-                setParameterFromRemote(
-                        new RegistryValue(
-                                split[3],
-                                split[2],
-                                updated,
-                                entry.getKey(),
-                                MCast.tolong(split[1], 0),
-                                MCast.toboolean(split[0], true),
-                                true));
-            } else {
-                setParameter(entry.getKey(), split[3], 0, true, true, true);
+        String ident = getServerIdent();
+        LinkedList<RegistryValue> loaded = new LinkedList<>();
+        // the entries are checked before they have been stored, put them directly into the
+        // registry and fire the events at once
+        synchronized (registry) {
+            for (Entry<String, String> entry : entries.entrySet()) {
+                String path = entry.getKey();
+                String v = entry.getValue();
+                int p1 = v.indexOf('|');
+                int p2 = v.indexOf('|', p1 + 1);
+                int p3 = v.indexOf('|', p2 + 1);
+                if (p1 < 0 || p2 < 0 || p3 < 0) {
+                    log().w("invalid persistent entry", path, v);
+                    continue;
+                }
+                boolean readOnly = MCast.toboolean(v.substring(0, p1), true);
+                String value = v.substring(p3 + 1);
+                RegistryValue current = registry.get(path);
+                RegistryValue item;
+                if (SOURCE_LOCAL.equals(v.substring(p2 + 1, p3))) {
+                    item = new RegistryValue(value, SOURCE_LOCAL, updated, path, 0, readOnly, true);
+                    if (current != null)
+                        item.setRemoteValue(current.isLocal() ? current.getRemoteValue() : current);
+                } else {
+                    item =
+                            new RegistryValue(
+                                    value,
+                                    ident,
+                                    updated,
+                                    path,
+                                    MCast.tolong(v.substring(p1 + 1, p2), 0),
+                                    readOnly,
+                                    true);
+                    if (current != null && current.isLocal()) {
+                        setRemoteEntry(current, item);
+                        continue;
+                    }
+                }
+                putEntry(path, item);
+                loaded.add(item);
             }
         }
+        dispatcher.fire(loaded);
         if (push) publishAll();
     }
 
@@ -858,6 +1315,14 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
         return MApi.getFile(MApi.SCOPE.DATA, RegistryApi.class.getCanonicalName() + ".properties");
     }
 
+    private File getSnapshotFile() {
+        return MApi.getFile(MApi.SCOPE.DATA, RegistryApi.class.getCanonicalName() + ".snapshot");
+    }
+
+    private File getJournalFile() {
+        return MApi.getFile(MApi.SCOPE.DATA, RegistryApi.class.getCanonicalName() + ".journal");
+    }
+
     private class ControlDescriptor implements Comparable<ControlDescriptor> {
 
         private String orgPath;
@@ -866,10 +1331,6 @@ public class RegistryApiImpl extends MLog implements RegistryApi, RegistryManage
         private long bundleId;
         private RegistryPathControl service;
 
-        public ControlDescriptor(String path) {
-            orgPath = path;
-        }
-
         public ControlDescriptor(
                 ServiceReference<RegistryPathControl> reference, RegistryPathControl service) {
             orgPath = (String) reference.getProperty("path");
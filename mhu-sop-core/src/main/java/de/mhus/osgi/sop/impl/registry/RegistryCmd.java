@@ -14,7 +14,8 @@
 package de.mhus.osgi.sop.impl.registry;
 
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import org.apache.karaf.shell.api.action.Argument;
 import org.apache.karaf.shell.api.action.Command;
@@ -43,12 +44,15 @@ public class RegistryCmd extends AbstractCmd {
             description =
                     "Command:\n"
                             + " list [path]\n"
+                            + " browse <prefix> [cursor] - list a page of parameters\n"
+                            + " count <prefix>\n"
                             + " set/add <path> <value>\n"
                             + " remove <path>\n"
                             + " publish\n"
                             + " request\n"
                             + " save\n"
                             + " load\n"
+                            + " dispatcher - show event dispatcher statistics\n"
                             + "",
             multiValued = false)
     String cmd;
@@ -93,6 +97,9 @@ public class RegistryCmd extends AbstractCmd {
     @Option(name = "-l", aliases = "--local", description = "Local overwrite", required = false)
     boolean local = false;
 
+    @Option(name = "-s", aliases = "--size", description = "Page size", required = false)
+    int size = 100;
+
     @Override
     public Object execute2() throws Exception {
         RegistryApi api = M.l(RegistryApi.class);
@@ -118,12 +125,14 @@ public class RegistryCmd extends AbstractCmd {
                             value.isPersistent());
                 out.print(System.out);
             } else {
-                RegistryManager manager = M.l(RegistryManager.class);
-                LinkedList<RegistryValue> list = new LinkedList<>(manager.getAll());
-                list.sort(
-                        (a, b) -> {
-                            return a.getPath().compareTo(b.getPath());
-                        });
+                // only scan the range in front of the first wildcard
+                String prefix = path == null ? "/" : path;
+                int p = prefix.indexOf('*');
+                if (p >= 0) prefix = prefix.substring(0, p);
+                p = prefix.indexOf('?');
+                if (p >= 0) prefix = prefix.substring(0, p);
+                List<RegistryValue> list =
+                        api.streamParameters(prefix).collect(Collectors.toList());
                 ConsoleTable out = new ConsoleTable(tblOpt);
                 out.setHeaderValues(
                         "Path", "Value", "Source", "Updated", "TTL", "RO", "Persistent");
@@ -148,6 +157,25 @@ public class RegistryCmd extends AbstractCmd {
                 }
                 out.print(System.out);
             }
+        } else if (cmd.equals("browse")) {
+            String cursor = parameters == null || parameters.length == 0 ? null : parameters[0];
+            ConsoleTable out = new ConsoleTable(tblOpt);
+            out.setHeaderValues("Path", "Value", "Source", "Updated", "TTL", "RO", "Persistent");
+            List<RegistryValue> list = api.getParameters(path, cursor, size);
+            for (RegistryValue value : list)
+                out.addRowValues(
+                        value.getPath(),
+                        value.getValue(),
+                        value.getSource(),
+                        new Date(value.getUpdated()),
+                        value.getTimeout() > 0 ? MPeriod.getIntervalAsString(value.getTTL()) : "",
+                        value.isReadOnly(),
+                        value.isPersistent());
+            out.print(System.out);
+            if (list.size() >= size)
+                System.out.println("Next cursor: " + list.get(list.size() - 1).getPath());
+        } else if (cmd.equals("count")) {
+            System.out.println(api.countParameters(path));
         } else if (cmd.equals("get")) {
             RegistryValue entry = api.getParameter(path);
             System.out.println("Path      : " + entry.getPath());
@@ -230,6 +258,16 @@ public class RegistryCmd extends AbstractCmd {
         } else if (cmd.equals("load")) {
             api.load();
             System.out.println("LOADED");
+        } else if (cmd.equals("dispatcher")) {
+            RegistryDispatcher dispatcher = ((RegistryApiImpl) api).getDispatcher();
+            System.out.println("Watches       : " + dispatcher.getWatchCount());
+            System.out.println("Queue size    : " + dispatcher.getQueueSize());
+            System.out.println("Max queue size: " + dispatcher.getMaxQueueSize());
+            System.out.println("Dispatched    : " + dispatcher.getDispatched());
+            System.out.println("Coalesced     : " + dispatcher.getCoalesced());
+            System.out.println("Last latency  : " + dispatcher.getLastLatency() + " ms");
+            System.out.println("Avg latency   : " + dispatcher.getAverageLatency() + " ms");
+            System.out.println("Max latency   : " + dispatcher.getMaxLatency() + " ms");
         }
         return null;
     }
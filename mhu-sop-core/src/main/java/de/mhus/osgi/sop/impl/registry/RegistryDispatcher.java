@@ -0,0 +1,270 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.impl.registry;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.mhus.lib.core.MApi;
+import de.mhus.lib.core.MLog;
+import de.mhus.osgi.sop.api.registry.RegistryApi;
+import de.mhus.osgi.sop.api.registry.RegistryListener;
+import de.mhus.osgi.sop.api.registry.RegistryValue;
+
+/**
+ * Delivers registry changes to the watchers and the config system in a separate thread. Changes of
+ * the same path which are not delivered yet are collapsed to the last change. All events are
+ * delivered by one thread, this guarantees the order of changes per path.
+ *
+ * <p>All changes delivered together produce one config update event.
+ */
+public class RegistryDispatcher extends MLog implements Runnable {
+
+    private CopyOnWriteArrayList<Watch> watches = new CopyOnWriteArrayList<>();
+    private Object lock = new Object();
+    private LinkedHashMap<String, Event> pending = new LinkedHashMap<>();
+    private volatile boolean running;
+    private Thread thread;
+
+    private volatile long dispatched;
+    private volatile long coalesced;
+    private volatile long maxQueueSize;
+    private volatile long lastLatency;
+    private volatile long maxLatency;
+    private volatile long latencySum;
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this, "RegistryDispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void close() {
+        if (!running) return;
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    public void watch(String prefix, RegistryListener listener) {
+        watches.add(new Watch(prefix, listener));
+    }
+
+    public void unwatch(RegistryListener listener) {
+        watches.removeIf(w -> w.listener == listener);
+    }
+
+    /**
+     * Queue a change for delivery. If the dispatcher is not running the change is delivered
+     * directly.
+     *
+     * @param path Path of the parameter
+     * @param value New value or null if removed
+     */
+    public void fire(String path, RegistryValue value) {
+        if (!isConfigPath(path) && !isWatched(path)) return;
+        Event event = new Event(path, value);
+        if (!running) {
+            LinkedHashMap<String, Event> batch = new LinkedHashMap<>();
+            batch.put(path, event);
+            dispatch(batch);
+            return;
+        }
+        synchronized (lock) {
+            Event old = pending.put(path, event);
+            if (old != null) {
+                // keep the time of the first undelivered change to measure the real latency
+                event.created = old.created;
+                coalesced++;
+            }
+            if (pending.size() > maxQueueSize) maxQueueSize = pending.size();
+            if (pending.size() == 1) lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue changes of multiple parameters at once.
+     *
+     * @param values The new values
+     */
+    public void fire(Collection<RegistryValue> values) {
+        if (!running) {
+            for (RegistryValue value : values) fire(value.getPath(), value);
+            return;
+        }
+        synchronized (lock) {
+            for (RegistryValue value : values) {
+                String path = value.getPath();
+                if (!isConfigPath(path) && !isWatched(path)) continue;
+                Event event = new Event(path, value);
+                Event old = pending.put(path, event);
+                if (old != null) {
+                    event.created = old.created;
+                    coalesced++;
+                }
+            }
+            if (pending.size() > maxQueueSize) maxQueueSize = pending.size();
+            if (!pending.isEmpty()) lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            LinkedHashMap<String, Event> batch = null;
+            synchronized (lock) {
+                try {
+                    while (running && pending.isEmpty()) lock.wait();
+                } catch (InterruptedException e) {
+                }
+                if (pending.isEmpty()) continue;
+                batch = pending;
+                pending = new LinkedHashMap<>();
+            }
+            dispatch(batch);
+        }
+        LinkedHashMap<String, Event> batch = null;
+        synchronized (lock) {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+        if (!batch.isEmpty()) dispatch(batch);
+    }
+
+    private void dispatch(LinkedHashMap<String, Event> batch) {
+        LinkedList<String> cfg = new LinkedList<>();
+        for (Event event : batch.values()) {
+            for (Watch watch : watches) {
+                if (!event.path.startsWith(watch.prefix)) continue;
+                try {
+                    watch.listener.event(event.path, event.value);
+                } catch (Throwable t) {
+                    log().d(watch.listener, event.path, t);
+                }
+            }
+            if (isConfigPath(event.path)) cfg.add(event.path);
+        }
+        if (!cfg.isEmpty()) {
+            try {
+                MApi.getCfgUpdater()
+                        .doUpdate(RegistryApi.class.getCanonicalName(), getCommonPath(cfg));
+            } catch (Throwable t) {
+                log().d(t);
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Event event : batch.values()) {
+            long latency = now - event.created;
+            latencySum += latency;
+            if (latency > maxLatency) maxLatency = latency;
+            lastLatency = latency;
+        }
+        dispatched += batch.size();
+    }
+
+    private boolean isConfigPath(String path) {
+        return !path.startsWith(RegistryApi.PATH_SYSTEM)
+                && !path.startsWith(RegistryApi.PATH_WORKER);
+    }
+
+    private boolean isWatched(String path) {
+        for (Watch watch : watches) if (path.startsWith(watch.prefix)) return true;
+        return false;
+    }
+
+    // the path itself or the deepest node containing all paths
+    private static String getCommonPath(List<String> paths) {
+        String first = paths.get(0);
+        int len = first.length();
+        boolean equal = true;
+        for (String path : paths) {
+            if (path.equals(first)) continue;
+            equal = false;
+            int max = Math.min(len, path.length());
+            int i = 0;
+            while (i < max && first.charAt(i) == path.charAt(i)) i++;
+            len = i;
+        }
+        if (equal) return first;
+        int pos = len - 1;
+        while (pos > 0 && first.charAt(pos) != '/' && first.charAt(pos) != '@') pos--;
+        return pos <= 0 ? "/" : first.substring(0, pos);
+    }
+
+    public int getQueueSize() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    public long getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    public long getDispatched() {
+        return dispatched;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public long getAverageLatency() {
+        long cnt = dispatched;
+        return cnt == 0 ? 0 : latencySum / cnt;
+    }
+
+    public int getWatchCount() {
+        return watches.size();
+    }
+
+    private static class Watch {
+        private String prefix;
+        private RegistryListener listener;
+
+        private Watch(String prefix, RegistryListener listener) {
+            this.prefix = prefix;
+            this.listener = listener;
+        }
+    }
+
+    private static class Event {
+        private String path;
+        private RegistryValue value;
+        private long created = System.currentTimeMillis();
+
+        private Event(String path, RegistryValue value) {
+            this.path = path;
+            this.value = value;
+        }
+    }
+}
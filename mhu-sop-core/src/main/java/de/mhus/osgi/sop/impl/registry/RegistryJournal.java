@@ -0,0 +1,424 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.impl.registry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.MProperties;
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgLong;
+import de.mhus.osgi.sop.api.registry.RegistryApi;
+
+/**
+ * Append only journal for the persistent registry entries. Mutations are queued and written by a
+ * background thread, all mutations collected while the previous batch was written are written and
+ * synced to disk together (group commit). The callers wait until their batch is synced. If
+ * journalSync is disabled the callers return at once and the mutations of the last batch are lost
+ * by a crash. If the journal grows too large it will be compacted into the snapshot file.
+ *
+ * <p>The snapshot is a binary file: a magic number, the number of entries and for each entry the
+ * length prefixed UTF-8 path and encoded value. It is read in one pass, optionally memory mapped. A
+ * properties snapshot of older versions is read if no binary snapshot exists, it is renamed to
+ * .migrated after the binary snapshot is written. The journal is a sequence of binary records. A
+ * truncated record at the end of the journal (e.g. after a crash) is ignored.
+ */
+public class RegistryJournal extends MLog implements Runnable {
+
+    private static final byte OP_SET = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int SNAPSHOT_MAGIC = 0x52475331; // RGS1
+
+    private static CfgLong CFG_COMPACT_SIZE =
+            new CfgLong(RegistryApi.class, "journalCompactSize", 1000);
+    /** Wait until the mutations are synced to disk */
+    private static CfgBoolean CFG_SYNC = new CfgBoolean(RegistryApi.class, "journalSync", true);
+    private static CfgLong CFG_SYNC_TIMEOUT =
+            new CfgLong(RegistryApi.class, "journalSyncTimeout", 10000);
+    // a mapped snapshot can't be replaced on windows until the mapping is released by the gc
+    private static CfgBoolean CFG_SNAPSHOT_MAPPED =
+            new CfgBoolean(RegistryApi.class, "snapshotMapped", false);
+
+    private File snapshotFile;
+    private File legacyFile;
+    private File journalFile;
+    private Supplier<Map<String, String>> state;
+    private LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private Object fileLock = new Object();
+    private FileOutputStream fos;
+    private DataOutputStream out;
+    private long records;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param snapshotFile The binary snapshot file
+     * @param legacyFile The properties snapshot file of older versions
+     * @param journalFile The journal file
+     * @param state Provides the current state of all persistent entries for compaction
+     */
+    public RegistryJournal(
+            File snapshotFile,
+            File legacyFile,
+            File journalFile,
+            Supplier<Map<String, String>> state) {
+        this.snapshotFile = snapshotFile;
+        this.legacyFile = legacyFile;
+        this.journalFile = journalFile;
+        this.state = state;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this, "RegistryJournal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void close() {
+        if (running) {
+            running = false;
+            queue.add(new Record(OP_REMOVE, null, null)); // wake up
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+            }
+        }
+        synchronized (fileLock) {
+            closeJournal();
+        }
+    }
+
+    /**
+     * Write the mutations and wait until all are synced to disk.
+     *
+     * @param mutations Path to encoded value, null values remove the path
+     * @throws IOException If the mutations could not be written
+     */
+    public void write(Map<String, String> mutations) throws IOException {
+        await(queue(mutations));
+    }
+
+    /**
+     * Queue the mutations without waiting. The records are written in the order they are queued,
+     * the caller must hold the lock of the entries to keep the order of the journal.
+     *
+     * @param mutations Path to encoded value, null values remove the path
+     * @return The queued records to wait for
+     */
+    public Commit queue(Map<String, String> mutations) {
+        Record[] records = new Record[mutations.size()];
+        int i = 0;
+        for (Entry<String, String> entry : mutations.entrySet()) {
+            records[i] =
+                    entry.getValue() == null
+                            ? new Record(OP_REMOVE, entry.getKey(), null)
+                            : new Record(OP_SET, entry.getKey(), entry.getValue());
+            queue.add(records[i]);
+            i++;
+        }
+        return new Commit(records);
+    }
+
+    /**
+     * Wait until the queued records are synced to disk.
+     *
+     * @param commit The queued records
+     * @throws IOException If a record could not be written
+     */
+    public void await(Commit commit) throws IOException {
+        if (commit.records.length == 0 || !running || !CFG_SYNC.value()) return;
+        // the batches are written in order, the last record is synced with or after the others
+        Record last = commit.records[commit.records.length - 1];
+        try {
+            if (!last.synced.await(CFG_SYNC_TIMEOUT.value(), TimeUnit.MILLISECONDS)) {
+                log().w("journal sync timeout", last.path);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (Record record : commit.records)
+            if (record.failed) throw new IOException("journal write failed: " + record.path);
+    }
+
+    /**
+     * Read the snapshot and replay the journal. If the journal contains records a new snapshot will
+     * be written and the journal is cleared.
+     *
+     * @return The persistent entries, path to encoded value
+     */
+    public Map<String, String> load() {
+        synchronized (fileLock) {
+            TreeMap<String, String> entries = new TreeMap<>();
+            boolean migrate = false;
+            if (snapshotFile.exists()) {
+                try {
+                    readSnapshot(entries);
+                } catch (IOException | BufferUnderflowException e) {
+                    log().e("corrupt snapshot", snapshotFile, e);
+                    // keep the broken file, it will be replaced by the next compaction
+                    File copy =
+                            new File(
+                                    snapshotFile.getParentFile(),
+                                    snapshotFile.getName() + ".corrupt");
+                    try {
+                        Files.copy(
+                                snapshotFile.toPath(),
+                                copy.toPath(),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException e2) {
+                        log().w(copy, e2);
+                    }
+                }
+            } else if (legacyFile != null && legacyFile.exists()) {
+                MProperties prop = MProperties.load(legacyFile);
+                for (Entry<String, Object> entry : prop.entrySet())
+                    entries.put(entry.getKey(), String.valueOf(entry.getValue()));
+                migrate = true;
+            }
+            long cnt = 0;
+            if (journalFile.exists() && journalFile.length() > 0) {
+                try (DataInputStream is =
+                        new DataInputStream(
+                                new BufferedInputStream(new FileInputStream(journalFile)))) {
+                    while (true) {
+                        int op = is.read();
+                        if (op < 0) break;
+                        String path = is.readUTF();
+                        if (op == OP_SET) {
+                            int len = is.readInt();
+                            if (len < 0 || len > journalFile.length()) {
+                                log().w("corrupt journal record", journalFile, cnt);
+                                break;
+                            }
+                            byte[] value = new byte[len];
+                            is.readFully(value);
+                            entries.put(path, new String(value, StandardCharsets.UTF_8));
+                        } else if (op == OP_REMOVE) {
+                            entries.remove(path);
+                        } else {
+                            log().w("corrupt journal record", journalFile, cnt);
+                            break;
+                        }
+                        cnt++;
+                    }
+                } catch (EOFException e) {
+                    log().w("truncated journal record", journalFile, cnt);
+                } catch (IOException e) {
+                    log().w(journalFile, e);
+                }
+            }
+            if (migrate || cnt > 0 || journalFile.exists() && journalFile.length() > 0)
+                try {
+                    writeSnapshot(entries);
+                    // keep the old file for a roll back
+                    if (migrate) {
+                        File migrated =
+                                new File(
+                                        legacyFile.getParentFile(),
+                                        legacyFile.getName() + ".migrated");
+                        Files.move(
+                                legacyFile.toPath(),
+                                migrated.toPath(),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } catch (IOException e) {
+                    log().e(snapshotFile, e);
+                }
+            return entries;
+        }
+    }
+
+    /**
+     * Write a new snapshot from the current state and clear the journal.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        synchronized (fileLock) {
+            writeSnapshot(state.get());
+        }
+    }
+
+    private void readSnapshot(Map<String, String> entries) throws IOException {
+        ByteBuffer buf;
+        if (CFG_SNAPSHOT_MAPPED.value()) {
+            try (FileChannel channel =
+                    FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        } else buf = ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath()));
+        if (buf.getInt() != SNAPSHOT_MAGIC) throw new IOException("not a registry snapshot");
+        int cnt = buf.getInt();
+        for (int i = 0; i < cnt; i++) {
+            String path = readString(buf);
+            entries.put(path, readString(buf));
+        }
+    }
+
+    private static String readString(ByteBuffer buf) throws IOException {
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining()) throw new IOException("corrupt string length " + len);
+        if (buf.hasArray()) {
+            String out =
+                    new String(
+                            buf.array(),
+                            buf.arrayOffset() + buf.position(),
+                            len,
+                            StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+            return out;
+        }
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private void writeSnapshot(Map<String, String> entries) throws IOException {
+        File tmp = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp");
+        try (FileOutputStream tfos = new FileOutputStream(tmp)) {
+            DataOutputStream tout = new DataOutputStream(new BufferedOutputStream(tfos));
+            tout.writeInt(SNAPSHOT_MAGIC);
+            tout.writeInt(entries.size());
+            for (Entry<String, String> entry : entries.entrySet()) {
+                writeString(tout, entry.getKey());
+                writeString(tout, entry.getValue());
+            }
+            tout.flush();
+            tfos.getFD().sync();
+        }
+        Files.move(
+                tmp.toPath(),
+                snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        // all records are in the snapshot now, start a new journal
+        closeJournal();
+        fos = new FileOutputStream(journalFile, false);
+        out = new DataOutputStream(new BufferedOutputStream(fos));
+        fos.getFD().sync();
+        records = 0;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] b = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private void closeJournal() {
+        if (fos == null) return;
+        try {
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+        } catch (IOException e) {
+            log().d(journalFile, e);
+        }
+        fos = null;
+        out = null;
+    }
+
+    @Override
+    public void run() {
+        LinkedList<Record> batch = new LinkedList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            // collect all records queued in the meantime and write them with one sync
+            queue.drainTo(batch);
+            synchronized (fileLock) {
+                try {
+                    if (fos == null) {
+                        fos = new FileOutputStream(journalFile, true);
+                        out = new DataOutputStream(new BufferedOutputStream(fos));
+                    }
+                    for (Record record : batch) {
+                        if (record.path == null) continue;
+                        out.writeByte(record.op);
+                        out.writeUTF(record.path);
+                        if (record.op == OP_SET) {
+                            byte[] value = record.value.getBytes(StandardCharsets.UTF_8);
+                            out.writeInt(value.length);
+                            out.write(value);
+                        }
+                        records++;
+                    }
+                    out.flush();
+                    fos.getFD().sync();
+                    if (records >= CFG_COMPACT_SIZE.value()) writeSnapshot(state.get());
+                } catch (Throwable t) {
+                    log().e("journal write failed", journalFile, batch.size(), t);
+                    for (Record record : batch) record.failed = true;
+                    closeJournal();
+                }
+            }
+            // release the waiting callers, also on failure
+            for (Record record : batch) record.synced.countDown();
+            batch.clear();
+        }
+    }
+
+    /** Records queued together. */
+    public static class Commit {
+        private Record[] records;
+
+        private Commit(Record[] records) {
+            this.records = records;
+        }
+    }
+
+    private static class Record {
+        private byte op;
+        private String path;
+        private String value;
+        private CountDownLatch synced = new CountDownLatch(1);
+        private volatile boolean failed;
+
+        private Record(byte op, String path, String value) {
+            this.op = op;
+            this.path = path;
+            this.value = value;
+        }
+    }
+}
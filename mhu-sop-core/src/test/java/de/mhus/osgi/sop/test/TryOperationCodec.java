@@ -0,0 +1,71 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+
+import de.mhus.lib.core.MProperties;
+import de.mhus.osgi.sop.api.codec.BinaryCodec;
+import de.mhus.osgi.sop.api.codec.CodecUtil;
+
+/**
+ * Compares size and encoding time of typical operation parameters with java serialization (used
+ * for object messages) and the binary codec.
+ */
+public class TryOperationCodec {
+
+    private static final int ROUNDS = 100000;
+
+    public static void main(String[] args) throws IOException {
+        MProperties properties = new MProperties();
+        properties.setString("name", "operation parameter");
+        properties.setInt("count", 42);
+        properties.setLong("id", 4711L);
+        properties.put("created", new Date());
+        properties.setBoolean("enabled", true);
+        for (int i = 0; i < 20; i++) properties.setString("key" + i, "value " + i);
+
+        BinaryCodec codec = new BinaryCodec();
+        System.out.println("serialized: " + serialize(properties).length + " bytes");
+        byte[] binary = CodecUtil.encode(codec, properties, 0);
+        System.out.println("binary    : " + binary.length + " bytes");
+
+        for (int loop = 0; loop < 3; loop++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) serialize(properties);
+            long serialized = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++)
+                CodecUtil.decode(codec, CodecUtil.encode(codec, properties, 0));
+            long encoded = System.nanoTime() - start;
+            System.out.println(
+                    "serialize "
+                            + serialized / ROUNDS
+                            + " ns, binary encode and decode "
+                            + encoded / ROUNDS
+                            + " ns");
+        }
+    }
+
+    private static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(value);
+        }
+        return bos.toByteArray();
+    }
+}
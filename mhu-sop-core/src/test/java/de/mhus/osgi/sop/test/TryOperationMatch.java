@@ -0,0 +1,119 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import de.mhus.lib.core.MString;
+import de.mhus.lib.core.strategy.OperationDescription;
+import de.mhus.lib.core.util.VersionRange;
+import de.mhus.osgi.sop.api.operation.OperationAddress;
+import de.mhus.osgi.sop.api.operation.OperationDescriptor;
+import de.mhus.osgi.sop.api.operation.OperationFilter;
+
+/**
+ * Compares the lookup of operations by pattern and tags with string compares (the former
+ * OperationUtil.matches) and with the compiled filter for 5000 registered operations.
+ */
+public class TryOperationMatch {
+
+    private static final int OPERATIONS = 5000;
+    private static final int ROUNDS = 200;
+
+    public static void main(String[] args) {
+        ArrayList<OperationDescriptor> list = new ArrayList<>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            String path = "de.mhus.group" + i % 50 + ".Operation" + i;
+            OperationAddress address = new OperationAddress("local://" + path + ":1.0.0");
+            OperationDescription description =
+                    new OperationDescription(
+                            UUID.randomUUID(),
+                            address.getGroup(),
+                            address.getName(),
+                            address.getVersion(),
+                            null,
+                            "Operation " + i);
+            TreeSet<String> tags = new TreeSet<>();
+            tags.add("host=node" + i % 10);
+            tags.add("remote=jms");
+            if (i % 3 == 0) tags.add("acl=admin");
+            if (i % 7 == 0) tags.add("!public");
+            list.add(new OperationDescriptor(UUID.randomUUID(), address, description, tags, ""));
+        }
+
+        VersionRange version = new VersionRange("[1.0.0,2.0.0)");
+        Object[][] lookups = {
+            {"de.mhus.group7.Operation507", null, null},
+            {"de.mhus.group7.*", null, null},
+            {"*", version, Arrays.asList("host=node3", "!acl=admin")},
+            {"de.mhus.*.Operation4*", null, Arrays.asList("remote=jms", "public")}
+        };
+
+        for (int loop = 0; loop < 3; loop++) {
+            for (Object[] lookup : lookups) {
+                String filter = (String) lookup[0];
+                VersionRange range = (VersionRange) lookup[1];
+                @SuppressWarnings("unchecked")
+                Collection<String> tags = (Collection<String>) lookup[2];
+
+                int found = 0;
+                long start = System.nanoTime();
+                for (int r = 0; r < ROUNDS; r++) found = matchStrings(list, filter, range, tags);
+                long strings = System.nanoTime() - start;
+
+                int compiled = 0;
+                start = System.nanoTime();
+                for (int r = 0; r < ROUNDS; r++) {
+                    OperationFilter matcher = OperationFilter.compile(filter, range, tags);
+                    compiled = 0;
+                    for (OperationDescriptor desc : list) if (matcher.matches(desc)) compiled++;
+                }
+                long bits = System.nanoTime() - start;
+
+                System.out.println(
+                        filter
+                                + " "
+                                + tags
+                                + ": found "
+                                + found
+                                + "/"
+                                + compiled
+                                + ", strings "
+                                + strings / ROUNDS / 1000
+                                + " us, compiled "
+                                + bits / ROUNDS / 1000
+                                + " us");
+                if (found != compiled) System.out.println("*** different results");
+            }
+        }
+    }
+
+    private static int matchStrings(
+            List<OperationDescriptor> list,
+            String filter,
+            VersionRange version,
+            Collection<String> providedTags) {
+        int found = 0;
+        for (OperationDescriptor desc : list)
+            if ((filter == null || MString.compareFsLikePattern(desc.getPath(), filter))
+                    && (version == null || version.includes(desc.getVersion()))
+                    && (providedTags == null || desc.compareTags(providedTags))) found++;
+        return found;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.mhus.osgi.sop.api.registry.RegistryValue;
+import de.mhus.osgi.sop.impl.registry.RegistryApiImpl;
+
+/**
+ * Measures read throughput of the registry while a writer thread permanently updates entries
+ * from remote. Read throughput should grow with the number of reader threads.
+ */
+public class TryRegistryContention {
+
+    private static final int ENTRIES = 20000;
+    private static final long DURATION = 3000;
+
+    public static void main(String[] args) throws InterruptedException {
+        RegistryApiImpl api = new RegistryApiImpl();
+        for (int i = 0; i < ENTRIES; i++) api.setParameterFromRemote(createValue(i, 0));
+
+        int max = Runtime.getRuntime().availableProcessors() * 2;
+        for (int threads = 1; threads <= max; threads = threads * 2) {
+            System.out.println(threads + " readers: " + run(api, threads) + " reads/s");
+        }
+    }
+
+    private static long run(RegistryApiImpl api, int threads) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder reads = new LongAdder();
+
+        Thread writer =
+                new Thread(
+                        () -> {
+                            long cnt = 0;
+                            while (running.get()) {
+                                api.setParameterFromRemote(createValue((int) (cnt % ENTRIES), cnt));
+                                cnt++;
+                            }
+                        });
+
+        Thread[] readers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            readers[t] =
+                    new Thread(
+                            () -> {
+                                int i = offset;
+                                while (running.get()) {
+                                    api.getParameter(getPath(i % ENTRIES));
+                                    if (i % 100 == 0) api.getParameters("/system/try/" + (i % 10));
+                                    reads.increment();
+                                    i++;
+                                }
+                            });
+        }
+
+        writer.start();
+        for (Thread reader : readers) reader.start();
+        Thread.sleep(DURATION);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) reader.join();
+
+        return reads.sum() * 1000 / DURATION;
+    }
+
+    private static String getPath(int i) {
+        return "/system/try/" + (i % 10) + "@p" + i;
+    }
+
+    private static RegistryValue createValue(int i, long version) {
+        return new RegistryValue(
+                String.valueOf(version),
+                "try",
+                System.currentTimeMillis(),
+                getPath(i),
+                0,
+                false,
+                false);
+    }
+}
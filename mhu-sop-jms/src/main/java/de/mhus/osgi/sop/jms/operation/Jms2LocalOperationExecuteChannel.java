@@ -18,9 +18,17 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.BytesMessage;
 import javax.jms.JMSException;
@@ -36,13 +44,17 @@ import org.osgi.service.component.annotations.Reference;
 
 import de.mhus.lib.core.IProperties;
 import de.mhus.lib.core.M;
+import de.mhus.lib.core.MCast;
 import de.mhus.lib.core.MProperties;
 import de.mhus.lib.core.MString;
 import de.mhus.lib.core.MSystem;
 import de.mhus.lib.core.MThread;
 import de.mhus.lib.core.base.service.ServerIdent;
 import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgInt;
+import de.mhus.lib.core.cfg.CfgLong;
 import de.mhus.lib.core.cfg.CfgString;
+import de.mhus.lib.core.definition.DefRoot;
 import de.mhus.lib.core.lang.SerializedValue;
 import de.mhus.lib.core.pojo.DefaultFilter;
 import de.mhus.lib.core.pojo.MPojo;
@@ -57,12 +69,16 @@ import de.mhus.lib.core.strategy.util.MapValue;
 import de.mhus.lib.core.util.VersionRange;
 import de.mhus.lib.errors.NotFoundException;
 import de.mhus.lib.jms.JmsChannel;
+import de.mhus.lib.jms.JmsConnection;
 import de.mhus.lib.jms.JmsDestination;
 import de.mhus.lib.jms.MJms;
 import de.mhus.lib.jms.ServerJms;
 import de.mhus.osgi.api.jms.JmsDataChannel;
+import de.mhus.osgi.api.jms.JmsUtil;
 import de.mhus.osgi.jms.services.AbstractJmsDataChannel;
 import de.mhus.osgi.sop.api.Sop;
+import de.mhus.osgi.sop.api.codec.CodecUtil;
+import de.mhus.osgi.sop.api.codec.OperationCodec;
 import de.mhus.osgi.sop.api.jms.JmsApi;
 import de.mhus.osgi.sop.api.jms.TicketAccessInterceptor;
 import de.mhus.osgi.sop.api.operation.OperationApi;
@@ -78,19 +94,128 @@ public class Jms2LocalOperationExecuteChannel extends AbstractJmsDataChannel {
                     "sop.operation." + M.l(ServerIdent.class));
     private static CfgBoolean CFG_IS_ACCESS_CONTROL =
             new CfgBoolean(Jms2LocalOperationExecuteChannel.class, "accessControl", true);
+    /** Number of threads executing incoming operations, 0 executes in the JMS listener thread */
+    public static final CfgInt CFG_WORKERS =
+            new CfgInt(
+                    Jms2LocalOperationExecuteChannel.class,
+                    "workers",
+                    Runtime.getRuntime().availableProcessors());
+    /** Maximum number of operations waiting for a worker per lane, more are answered busy */
+    public static final CfgInt CFG_WORK_QUEUE_SIZE =
+            new CfgInt(Jms2LocalOperationExecuteChannel.class, "workQueueSize", 100);
+
+    /** Weights of the priority lanes low (0-3), normal (4-6) and high (7-9) */
+    public static final CfgString CFG_LANE_WEIGHTS =
+            new CfgString(Jms2LocalOperationExecuteChannel.class, "laneWeights", "1,4,16");
+    /**
+     * Number of threads executing the calls of an envelope in parallel, if all are busy the calls
+     * are executed by the worker of the envelope. 0 disables parallel execution.
+     */
+    public static final CfgInt CFG_BATCH_THREADS =
+            new CfgInt(
+                    Jms2LocalOperationExecuteChannel.class,
+                    "batchThreads",
+                    Runtime.getRuntime().availableProcessors());
+
+    /** Size in bytes of the chunks of a streamed result */
+    public static final CfgInt CFG_STREAM_CHUNK_SIZE =
+            new CfgInt(Jms2LocalOperationExecuteChannel.class, "streamChunkSize", 64 * 1024);
+    /** Time in ms to wait for the caller to request more chunks */
+    public static final CfgLong CFG_STREAM_TIMEOUT =
+            new CfgLong(Jms2LocalOperationExecuteChannel.class, "streamTimeout", 60000);
+    /** Maximum number of results sent as stream at the same time, 0 disables streaming */
+    public static final CfgInt CFG_STREAM_THREADS =
+            new CfgInt(Jms2LocalOperationExecuteChannel.class, "streamThreads", 16);
+
+    /** Minimum size in bytes to compress encoded results, 0 disables compression */
+    public static final CfgInt CFG_CODEC_COMPRESS_THRESHOLD =
+            new CfgInt(Jms2LocalOperationExecuteChannel.class, "codecCompressThreshold", 8192);
+
     private String ident = M.l(ServerIdent.class).getIdent();
 
     static Jms2LocalOperationExecuteChannel instance;
     private JmsApi jmsApi;
+    private volatile JmsOperationWorkers workers;
+    private volatile ThreadPoolExecutor batchExecutor;
+    private volatile ThreadPoolExecutor streamExecutor;
+    private TicketAccessInterceptor accessInterceptor = new TicketAccessInterceptor();
 
     @Activate
     public void doActivate(ComponentContext ctx) {
         instance = this;
+        if (CFG_WORKERS.value() > 0)
+            workers =
+                    new JmsOperationWorkers(
+                            "JmsOperationWorker",
+                            CFG_WORKERS.value(),
+                            CFG_WORK_QUEUE_SIZE.value(),
+                            getLaneWeights());
+        if (CFG_BATCH_THREADS.value() > 0) {
+            batchExecutor =
+                    new ThreadPoolExecutor(
+                            0,
+                            CFG_BATCH_THREADS.value(),
+                            60,
+                            TimeUnit.SECONDS,
+                            new SynchronousQueue<>(),
+                            r -> {
+                                Thread thread = new Thread(r, "JmsOperationBatch");
+                                thread.setDaemon(true);
+                                return thread;
+                            },
+                            new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        if (CFG_STREAM_THREADS.value() > 0) {
+            streamExecutor =
+                    new ThreadPoolExecutor(
+                            0,
+                            CFG_STREAM_THREADS.value(),
+                            60,
+                            TimeUnit.SECONDS,
+                            new SynchronousQueue<>(),
+                            r -> {
+                                Thread thread = new Thread(r, "JmsStreamSender");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+        }
     }
 
     @Deactivate
     public void doDeactivate(ComponentContext ctx) {
         instance = null;
+        if (workers != null) workers.close();
+        workers = null;
+        if (batchExecutor != null) batchExecutor.shutdown();
+        batchExecutor = null;
+        if (streamExecutor != null) streamExecutor.shutdown();
+        streamExecutor = null;
+    }
+
+    private int[] getLaneWeights() {
+        String[] parts = CFG_LANE_WEIGHTS.value().split(",");
+        int[] weights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) weights[i] = MCast.toint(parts[i].trim(), 1);
+        return weights;
+    }
+
+    /**
+     * Return the priority of the operation call. The priority property set by the caller is used
+     * before the JMS priority.
+     */
+    protected int getPriority(Message message) {
+        try {
+            if (message.propertyExists(Sop.PARAM_PRIORITY))
+                return message.getIntProperty(Sop.PARAM_PRIORITY);
+            return message.getJMSPriority();
+        } catch (JMSException e) {
+            log().d(e);
+            return 4;
+        }
+    }
+
+    public JmsOperationWorkers getWorkers() {
+        return workers;
     }
 
     @Override
@@ -112,7 +237,7 @@ public class Jms2LocalOperationExecuteChannel extends AbstractJmsDataChannel {
                 };
 
         if (out != null && CFG_IS_ACCESS_CONTROL.value())
-            ((ServerJms) out).setInterceptorIn(new TicketAccessInterceptor());
+            ((ServerJms) out).setInterceptorIn(accessInterceptor);
         return out;
     }
 
@@ -180,75 +305,27 @@ public class Jms2LocalOperationExecuteChannel extends AbstractJmsDataChannel {
     }
 
     /** Receive operation calls and return the answer */
-    @SuppressWarnings("rawtypes")
     protected Message received(Message msg) throws JMSException {
 
         String path = msg.getStringProperty(Sop.PARAM_OPERATION_PATH);
         if (path == null) return null;
         String version = msg.getStringProperty(Sop.PARAM_OPERATION_VERSION);
-        IProperties properties = null;
-        if (msg instanceof MapMessage) {
-            properties = MJms.getMapProperties((MapMessage) msg);
-        } else if (msg instanceof ObjectMessage) {
-            Serializable obj = ((ObjectMessage) msg).getObject();
-            if (obj == null) {
 
-            } else if (obj instanceof MProperties) {
-                properties = (MProperties) obj;
-            } else if (obj instanceof Map) {
-                properties = new MProperties((Map) obj);
-            }
-        }
-
-        if (properties == null) properties = new MProperties(); // empty
-
-        OperationResult res = null;
-        if (path.equals(Sop.OPERATION_LIST)) {
-            String list = MString.join(getPublicOperations().iterator(), ",");
-            res = new Successful(Sop.OPERATION_LIST, "list", OperationResult.OK, "list", list);
-        } else if (path.equals(Sop.OPERATION_INFO)) {
-            String id = properties.getString(Sop.PARAM_OPERATION_ID, null);
-            if (id == null)
-                res = new NotSuccessful(Sop.OPERATION_INFO, "not found", OperationResult.NOT_FOUND);
-            else {
-                try {
-                    OperationDescriptor des =
-                            getOperationDescription(
-                                    id, version == null ? null : new VersionRange(version));
-                    res =
-                            new Successful(
-                                    Sop.OPERATION_INFO,
-                                    "list",
-                                    OperationResult.OK,
-                                    "group",
-                                    des.getAddress().getGroup(),
-                                    "id",
-                                    des.getAddress().getName(),
-                                    "form",
-                                    des.getForm() == null ? "" : des.getForm().toString(),
-                                    "title",
-                                    des.getTitle());
-                } catch (NotFoundException nfe) {
-                    res =
-                            new NotSuccessful(
-                                    Sop.OPERATION_INFO, "not found", OperationResult.NOT_FOUND);
-                }
-            }
-        } else
-            try {
-                res =
-                        doExecute(
-                                path,
-                                version == null ? null : new VersionRange(version),
-                                properties);
-            } catch (NotFoundException nfe) {
-                res = new NotSuccessful(path, "not found", OperationResult.NOT_FOUND);
-            }
+        OperationResult res = execute(msg, path, version);
         Message ret = null;
         boolean consumed = false;
 
+        // encode the result with the codec of the request
+        if (res != null && res.getResult() != null) {
+            ret = createCodecAnswer(msg, res.getResult());
+            consumed = ret != null;
+        }
+
         // check if map message is possible and create a result message if possible
-        if (res != null && res.getResult() != null && res.getResult() instanceof Map) {
+        if (!consumed
+                && res != null
+                && res.getResult() != null
+                && res.getResult() instanceof Map) {
             // Map Message is allowed if all values are primitives. If not use object Message
             consumed = true;
             ret = getServer().createMapMessage();
@@ -268,6 +345,12 @@ public class Jms2LocalOperationExecuteChannel extends AbstractJmsDataChannel {
             }
         }
 
+        // send binary results as stream of chunks if the caller supports it
+        if (!consumed && res != null && res.getResult() != null) {
+            ret = createStreamAnswer(msg, res.getResult());
+            consumed = ret != null;
+        }
+
         // create result message and fill with result data from operation
         if (consumed) {
             // already done
@@ -329,24 +412,7 @@ public class Jms2LocalOperationExecuteChannel extends AbstractJmsDataChannel {
                 ret = getServer().createMapMessage();
                 ret.setStringProperty("_encoding", "pojo");
                 try {
-                    IProperties prop =
-                            MPojo.pojoToProperties(
-                                    res.getResult(),
-                                    new PojoModelFactory() {
-
-                                        @Override
-                                        public PojoModel createPojoModel(Class<?> pojoClass) {
-                                            PojoModel model =
-                                                    new PojoParser()
-                                                            .parse(pojoClass, "_", null)
-                                                            .filter(
-                                                                    new DefaultFilter(
-                                                                            true, false, false,
-                                                                            false, true))
-                                                            .getModel();
-                                            return model;
-                                        }
-                                    });
+                    IProperties prop = pojoToProperties(res.getResult());
                     MJms.setMapProperties(prop, (MapMessage) ret);
                 } catch (IOException e) {
                     log().w(path, res, e);
@@ -383,6 +449,397 @@ public class Jms2LocalOperationExecuteChannel extends AbstractJmsDataChannel {
         return ret;
     }
 
+    /**
+     * Execute the request in a worker and wait for the result. The JMS session is used by the
+     * listener thread only and the message is acknowledged after the execution. If the lane is
+     * full the request is answered busy without decoding the parameters.
+     */
+    private OperationResult execute(Message msg, String path, String version)
+            throws JMSException {
+        JmsOperationWorkers w = workers;
+        if (w == null) return executeRequest(msg, path, version);
+        CompletableFuture<OperationResult> future = new CompletableFuture<>();
+        boolean access = CFG_IS_ACCESS_CONTROL.value();
+        Runnable task =
+                () -> {
+                    // the access context is bound to the thread of the listener
+                    if (access) accessInterceptor.begin(msg);
+                    try {
+                        future.complete(executeRequest(msg, path, version));
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    } finally {
+                        if (access) accessInterceptor.end(msg);
+                    }
+                };
+        if (!w.execute(getPriority(msg), task))
+            return new NotSuccessful(path, "busy", OperationResult.INTERNAL_ERROR);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException(e.toString());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof JMSException) throw (JMSException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new JMSException(String.valueOf(e.getCause()));
+        }
+    }
+
+    /** Decode the parameters and execute the request. */
+    @SuppressWarnings("rawtypes")
+    protected OperationResult executeRequest(Message msg, String path, String version)
+            throws JMSException {
+        IProperties properties = null;
+        if (msg instanceof MapMessage) {
+            properties = MJms.getMapProperties((MapMessage) msg);
+        } else if (msg instanceof ObjectMessage) {
+            Serializable obj = ((ObjectMessage) msg).getObject();
+            if (obj == null) {
+
+            } else if (obj instanceof MProperties) {
+                properties = (MProperties) obj;
+            } else if (obj instanceof Map) {
+                properties = new MProperties((Map) obj);
+            }
+        } else if (msg instanceof BytesMessage && msg.propertyExists(Sop.PARAM_CODEC)) {
+            Object obj = decode(msg);
+            if (obj instanceof IProperties) {
+                properties = (IProperties) obj;
+            } else if (obj instanceof Map) {
+                properties = new MProperties((Map) obj);
+            }
+        }
+
+        if (properties == null) properties = new MProperties(); // empty
+
+        OperationResult res = null;
+        if (path.equals(Sop.OPERATION_BATCH)) {
+            res = doExecuteBatch(msg, properties);
+        } else if (path.equals(Sop.OPERATION_LIST)) {
+            String list = MString.join(getPublicOperations().iterator(), ",");
+            res = new Successful(Sop.OPERATION_LIST, "list", OperationResult.OK, "list", list);
+        } else if (path.equals(Sop.OPERATION_INFO)) {
+            String id = properties.getString(Sop.PARAM_OPERATION_ID, null);
+            if (id == null)
+                res = new NotSuccessful(Sop.OPERATION_INFO, "not found", OperationResult.NOT_FOUND);
+            else {
+                try {
+                    OperationDescriptor des =
+                            getOperationDescription(
+                                    id, version == null ? null : new VersionRange(version));
+                    if (des == null) throw new NotFoundException("operation not found", id);
+                    DefRoot form = des.getForm();
+                    String formXml = null;
+                    try {
+                        formXml = JmsApiImpl.toFormXml(form);
+                    } catch (Exception e) {
+                        log().d("serialize form failed", id, e);
+                    }
+                    res =
+                            new Successful(
+                                    Sop.OPERATION_INFO,
+                                    "list",
+                                    OperationResult.OK,
+                                    "group",
+                                    des.getAddress().getGroup(),
+                                    "id",
+                                    des.getAddress().getName(),
+                                    "form",
+                                    form == null ? "" : form.toString(),
+                                    "formXml",
+                                    formXml == null ? "" : formXml,
+                                    "title",
+                                    des.getTitle());
+                } catch (NotFoundException nfe) {
+                    res =
+                            new NotSuccessful(
+                                    Sop.OPERATION_INFO, "not found", OperationResult.NOT_FOUND);
+                }
+            }
+        } else
+            try {
+                res =
+                        doExecute(
+                                path,
+                                version == null ? null : new VersionRange(version),
+                                properties);
+            } catch (NotFoundException nfe) {
+                res = new NotSuccessful(path, "not found", OperationResult.NOT_FOUND);
+            }
+        return res;
+    }
+
+    protected IProperties pojoToProperties(Object pojo) throws IOException {
+        return MPojo.pojoToProperties(
+                pojo,
+                new PojoModelFactory() {
+
+                    @Override
+                    public PojoModel createPojoModel(Class<?> pojoClass) {
+                        PojoModel model =
+                                new PojoParser()
+                                        .parse(pojoClass, "_", null)
+                                        .filter(new DefaultFilter(true, false, false, false, true))
+                                        .getModel();
+                        return model;
+                    }
+                });
+    }
+
+    /**
+     * Execute the calls of an envelope and return the results of all calls as one result.
+     *
+     * @param msg The request
+     * @param properties The envelope
+     * @return The combined result
+     */
+    protected OperationResult doExecuteBatch(Message msg, IProperties properties) {
+        Object calls = properties.get(Sop.PARAM_BATCH_CALLS);
+        if (!(calls instanceof List))
+            return new NotSuccessful(
+                    Sop.OPERATION_BATCH, "calls not found", OperationResult.INTERNAL_ERROR);
+        List<?> list = (List<?>) calls;
+        MProperties[] results = new MProperties[list.size()];
+
+        ThreadPoolExecutor executor = batchExecutor;
+        if (executor == null
+                || list.size() < 2
+                || !properties.getBoolean(Sop.PARAM_BATCH_PARALLEL, false)) {
+            for (int i = 0; i < list.size(); i++) results[i] = executeBatchCall(list.get(i));
+        } else {
+            Thread caller = Thread.currentThread();
+            LinkedList<Future<?>> futures = new LinkedList<>();
+            for (int i = 0; i < list.size(); i++) {
+                int index = i;
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    // the access context is bound to the thread of the listener
+                                    boolean other =
+                                            Thread.currentThread() != caller
+                                                    && CFG_IS_ACCESS_CONTROL.value();
+                                    if (other) accessInterceptor.begin(msg);
+                                    try {
+                                        results[index] = executeBatchCall(list.get(index));
+                                    } finally {
+                                        if (other) accessInterceptor.end(msg);
+                                    }
+                                }));
+            }
+            for (Future<?> future : futures)
+                try {
+                    future.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    log().d(e);
+                }
+        }
+
+        ArrayList<MProperties> out = new ArrayList<>(results.length);
+        for (MProperties result : results) {
+            if (result == null) {
+                result = new MProperties();
+                result.setBoolean(Sop.PARAM_SUCCESSFUL, false);
+                result.setLong(Sop.PARAM_RC, OperationResult.INTERNAL_ERROR);
+                result.setString(Sop.PARAM_MSG, "not executed");
+            }
+            out.add(result);
+        }
+        MProperties answer = new MProperties();
+        answer.put(Sop.PARAM_BATCH_RESULTS, out);
+
+        OperationResult res = new OperationResult();
+        res.setOperationPath(Sop.OPERATION_BATCH);
+        res.setSuccessful(true);
+        res.setReturnCode(OperationResult.OK);
+        res.setMsg("batch");
+        res.setResult(answer);
+        return res;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private MProperties executeBatchCall(Object item) {
+        MProperties out = new MProperties();
+        OperationResult res = null;
+        String path = null;
+        if (item instanceof Map) {
+            Map<?, ?> call = (Map<?, ?>) item;
+            path = (String) call.get(Sop.PARAM_OPERATION_PATH);
+            String version = (String) call.get(Sop.PARAM_OPERATION_VERSION);
+            Object parameters = call.get(Sop.PARAM_BATCH_PARAMETERS);
+            IProperties properties =
+                    parameters instanceof IProperties
+                            ? (IProperties) parameters
+                            : parameters instanceof Map
+                                    ? new MProperties((Map) parameters)
+                                    : new MProperties();
+            try {
+                res =
+                        path == null
+                                ? new NotSuccessful(
+                                        "", "path not found", OperationResult.NOT_FOUND)
+                                : doExecute(
+                                        path,
+                                        version == null ? null : new VersionRange(version),
+                                        properties);
+            } catch (NotFoundException nfe) {
+                res = new NotSuccessful(path, "not found", OperationResult.NOT_FOUND);
+            } catch (Throwable t) {
+                log().d(path, t);
+                res = new NotSuccessful(path, String.valueOf(t), OperationResult.INTERNAL_ERROR);
+            }
+        }
+        if (res == null) {
+            out.setBoolean(Sop.PARAM_SUCCESSFUL, false);
+            out.setLong(Sop.PARAM_RC, OperationResult.INTERNAL_ERROR);
+            out.setString(Sop.PARAM_MSG, "null");
+            return out;
+        }
+        out.setBoolean(Sop.PARAM_SUCCESSFUL, res.isSuccessful());
+        out.setLong(Sop.PARAM_RC, res.getReturnCode());
+        out.setString(Sop.PARAM_MSG, res.getMsg());
+
+        // the results are transported in one message, use the types of the single calls
+        Object result = res.getResult();
+        if (result instanceof InputStream || result instanceof File) {
+            if (result instanceof InputStream)
+                try {
+                    ((InputStream) result).close();
+                } catch (IOException e) {
+                    log().d(e);
+                }
+            out.setBoolean(Sop.PARAM_SUCCESSFUL, false);
+            out.setLong(Sop.PARAM_RC, OperationResult.INTERNAL_ERROR);
+            out.setString(Sop.PARAM_MSG, "binary results are not supported in batch calls");
+            result = null;
+        } else if (result instanceof SerializedValue) {
+            result = ((SerializedValue) result).getValue();
+        } else if (result instanceof MapValue) {
+            result = new MProperties((Map) ((MapValue) result).getValue());
+        } else if (result != null && !(result instanceof Serializable)) {
+            try {
+                result = pojoToProperties(result);
+            } catch (IOException e) {
+                log().w(path, res, e);
+                out.setString(Sop.PARAM_ERROR, e.getMessage());
+                result = null;
+            }
+        }
+        out.put(Sop.PARAM_BATCH_RESULT, result);
+        return out;
+    }
+
+    // decode the parameters of the request
+    private Object decode(Message msg) throws JMSException {
+        String name = msg.getStringProperty(Sop.PARAM_CODEC);
+        OperationCodec codec = CodecUtil.getCodec(name);
+        if (codec == null) throw new JMSException("codec not found: " + name);
+        BytesMessage bytes = (BytesMessage) msg;
+        byte[] data = new byte[(int) bytes.getBodyLength()];
+        bytes.readBytes(data);
+        try {
+            return CodecUtil.decode(codec, data);
+        } catch (IOException e) {
+            throw new JMSException(e.toString());
+        }
+    }
+
+    /**
+     * Encode the result with the codec used by the request. Binary results are not encoded.
+     *
+     * @param msg The request
+     * @param result The result of the operation
+     * @return The answer or null if the result can't be encoded
+     * @throws JMSException
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    protected Message createCodecAnswer(Message msg, Object result) throws JMSException {
+        if (result instanceof InputStream
+                || result instanceof File
+                || result instanceof byte[]
+                || !msg.propertyExists(Sop.PARAM_CODEC)) return null;
+        OperationCodec codec = CodecUtil.getCodec(msg.getStringProperty(Sop.PARAM_CODEC));
+        if (codec == null) return null;
+
+        // the caller gets the same types as with the other encodings
+        Object value = result;
+        if (result instanceof SerializedValue) value = ((SerializedValue) result).getValue();
+        else if (result instanceof MapValue)
+            value = new MProperties((Map) ((MapValue) result).getValue());
+        else if (result instanceof Map && !(result instanceof IProperties)) {
+            boolean primitive = true;
+            for (Object item : ((Map) result).values())
+                if (!MJms.isMapProperty(item)) primitive = false;
+            if (primitive) value = new MProperties((Map) result);
+        }
+        if (!codec.canEncode(value)) return null;
+
+        byte[] data;
+        try {
+            data = CodecUtil.encode(codec, value, CFG_CODEC_COMPRESS_THRESHOLD.value());
+        } catch (IOException e) {
+            log().d("can't encode result", codec.getName(), e);
+            return null;
+        }
+        BytesMessage ret = getServer().createBytesMessage();
+        ret.setStringProperty("_encoding", "codec");
+        ret.setStringProperty(Sop.PARAM_CODEC, codec.getName());
+        ret.writeBytes(data);
+        return ret;
+    }
+
+    /**
+     * Start to send the result as stream of chunks and return the answer announcing the stream.
+     *
+     * @param msg The request
+     * @param result The result of the operation
+     * @return The answer or null if the result can't be streamed
+     * @throws JMSException
+     */
+    protected Message createStreamAnswer(Message msg, Object result) throws JMSException {
+        if (!(result instanceof InputStream || result instanceof File)
+                || !msg.propertyExists(Sop.PARAM_STREAM)
+                || !msg.getBooleanProperty(Sop.PARAM_STREAM)
+                || msg.getJMSReplyTo() == null
+                || msg.getJMSCorrelationID() == null) return null;
+
+        ThreadPoolExecutor executor = streamExecutor;
+        if (executor == null) return null;
+        JmsConnection con = JmsUtil.getConnection(getConnectionName());
+        if (con == null || !JmsStreamSender.isSupported(con)) return null;
+
+        InputStream is = null;
+        try {
+            is =
+                    result instanceof File
+                            ? new FileInputStream((File) result)
+                            : (InputStream) result;
+        } catch (IOException e) {
+            throw new JMSException(e.toString());
+        }
+        JmsStreamSender sender =
+                new JmsStreamSender(
+                        con,
+                        msg.getJMSReplyTo(),
+                        msg.getJMSCorrelationID(),
+                        is,
+                        CFG_STREAM_CHUNK_SIZE.value(),
+                        CFG_STREAM_TIMEOUT.value());
+
+        Message ret = getServer().createTextMessage(null);
+        ret.setStringProperty("_encoding", "chunked");
+        if (result instanceof File) ret.setStringProperty("_file", ((File) result).getName());
+        ret.setJMSReplyTo(sender.open());
+        // the sender waits for the first credit of the caller
+        try {
+            sender.start(executor);
+        } catch (RejectedExecutionException e) {
+            sender.close();
+            throw new JMSException("too many streams");
+        }
+        return ret;
+    }
+
     protected String getServiceName() {
         return getClass().getCanonicalName();
     }
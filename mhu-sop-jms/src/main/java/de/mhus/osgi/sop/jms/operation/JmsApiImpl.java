@@ -14,7 +14,11 @@
 package de.mhus.osgi.sop.jms.operation;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map.Entry;
+import java.util.TreeSet;
 import java.util.UUID;
 
 import javax.jms.MapMessage;
@@ -27,10 +31,11 @@ import org.w3c.dom.Document;
 
 import de.mhus.lib.core.M;
 import de.mhus.lib.core.MLog;
-import de.mhus.lib.core.MString;
 import de.mhus.lib.core.MSystem;
 import de.mhus.lib.core.MXml;
 import de.mhus.lib.core.base.service.ServerIdent;
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgLong;
 import de.mhus.lib.core.cfg.CfgString;
 import de.mhus.lib.core.definition.DefRoot;
 import de.mhus.lib.core.strategy.OperationDescription;
@@ -39,11 +44,13 @@ import de.mhus.lib.jms.ClientJms;
 import de.mhus.lib.jms.JmsConnection;
 import de.mhus.lib.jms.JmsDestination;
 import de.mhus.osgi.api.jms.JmsUtil;
+import de.mhus.osgi.sop.api.codec.CodecUtil;
 import de.mhus.osgi.sop.api.jms.JmsApi;
 import de.mhus.osgi.sop.api.operation.OperationAddress;
 import de.mhus.osgi.sop.api.operation.OperationApi;
 import de.mhus.osgi.sop.api.operation.OperationDescriptor;
 import de.mhus.osgi.sop.api.registry.RegistryApi;
+import de.mhus.osgi.sop.api.registry.RegistryDigest;
 import de.mhus.osgi.sop.api.registry.RegistryManager;
 import de.mhus.osgi.sop.api.registry.RegistryValue;
 
@@ -51,11 +58,29 @@ import de.mhus.osgi.sop.api.registry.RegistryValue;
 public class JmsApiImpl extends MLog implements JmsApi {
 
     public static CfgString connectionName = new CfgString(JmsApi.class, "connection", "sop");
+    /**
+     * Send only the hash or the changes of the operation catalog if it was sent before. Disable
+     * if nodes of older versions are in the cluster.
+     */
+    public static final CfgBoolean CFG_CATALOG_DELTA =
+            new CfgBoolean(JmsApi.class, "catalogDelta", true);
+    /** Do not send forms with the catalog, the receivers load them on demand */
+    public static final CfgBoolean CFG_CATALOG_LAZY_FORMS =
+            new CfgBoolean(JmsApi.class, "catalogLazyForms", true);
+    /** Minimum time in ms between two full catalogs with the same content */
+    public static final CfgLong CFG_CATALOG_FULL_INTERVAL =
+            new CfgLong(JmsApi.class, "catalogFullInterval", 2000);
     protected static JmsApiImpl instance;
 
     private ClientJms registerClient;
-    HashMap<String, JmsOperationDescriptor> register = new HashMap<>();
+    JmsRegistryPublisher registryPublisher;
+    private HashMap<String, Long> sentBuckets = new HashMap<>();
+    JmsOperationRegistry register = new JmsOperationRegistry();
     long lastRegistryRequest;
+    /** Known catalog hash and size of the remote queues */
+    HashMap<String, long[]> catalogs = new HashMap<>();
+    private JmsOperationCatalog sentCatalog;
+    private long lastFullCatalog;
 
     @Override
     public String getDefaultConnectionName() {
@@ -64,55 +89,138 @@ public class JmsApiImpl extends MLog implements JmsApi {
 
     @Override
     public void sendLocalOperations() {
+        sendLocalOperations(false);
+    }
+
+    /**
+     * Send the catalog of the local operations. If a catalog was sent before, only the hash or the
+     * changes are sent. Receivers not knowing the base of the changes request the full catalog.
+     *
+     * @param full Send the full catalog
+     */
+    public synchronized void sendLocalOperations(boolean full) {
         try {
             checkClient();
-            MapMessage msg = registerClient.createMapMessage();
-            msg.setStringProperty("type", "operations");
-            msg.setStringProperty("connection", M.l(JmsApi.class).getDefaultConnectionName());
-            msg.setStringProperty("queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
-
-            int cnt = 0;
-
+            LinkedList<OperationDescriptor> list = new LinkedList<>();
             for (OperationDescriptor desc :
                     M.l(OperationApi.class).findOperations("*", null, null)) {
-                if (!JmsOperationProvider.PROVIDER_NAME.equals(desc.getProvider())) {
-                    msg.setString("operation" + cnt, desc.getPath());
-                    msg.setString("version" + cnt, desc.getVersionString());
-                    String tags = MString.join(desc.getTags().iterator(), ";");
-                    if (tags.length() > 0) tags = tags + ";";
-                    tags =
-                            tags
-                                    + OperationDescriptor.TAG_REMOTE
-                                    + "=jms;"
-                                    + OperationDescriptor.TAG_HOST
-                                    + "="
-                                    + MSystem.getHostname()
-                                    + ";"
-                                    + OperationDescriptor.TAG_IDENT
-                                    + "="
-                                    + M.l(ServerIdent.class).toString();
-                    msg.setString("tags" + cnt, tags);
-                    msg.setString("acl" + cnt, desc.getAcl());
-                    msg.setString("title" + cnt, desc.getTitle());
-                    msg.setString("uuid" + cnt, desc.getUuid().toString());
-                    for (String key : desc.getParameterKeys()) {
-                        msg.setString("param" + cnt + "." + key, desc.getParameter(key));
-                    }
-                    DefRoot form = desc.getForm();
-                    if (form != null) {
-                        Document doc = ModelUtil.toXml(form);
-                        msg.setString("form" + cnt, MXml.toString(doc.getDocumentElement(), false));
-                    }
-                    cnt++;
+                if (!JmsOperationProvider.PROVIDER_NAME.equals(desc.getProvider())) list.add(desc);
+            }
+            String tags =
+                    OperationDescriptor.TAG_REMOTE
+                            + "=jms;"
+                            + OperationDescriptor.TAG_HOST
+                            + "="
+                            + MSystem.getHostname()
+                            + ";"
+                            + OperationDescriptor.TAG_IDENT
+                            + "="
+                            + M.l(ServerIdent.class).toString();
+            JmsOperationCatalog last = sentCatalog;
+            JmsOperationCatalog current =
+                    JmsOperationCatalog.create(list, tags, CodecUtil.getCodecNames(), last);
+
+            if (full || last == null || !CFG_CATALOG_DELTA.value()) {
+                // a lot of nodes could request the same catalog at once
+                if (full
+                        && last != null
+                        && last.getHash() == current.getHash()
+                        && System.currentTimeMillis() - lastFullCatalog
+                                < CFG_CATALOG_FULL_INTERVAL.value()) return;
+                sendCatalog("operations", "full", current, current.getEntries(), null, 0);
+                lastFullCatalog = System.currentTimeMillis();
+            } else if (last.getHash() == current.getHash()) {
+                sendCatalog("catalog", "hash", current, null, null, 0);
+            } else {
+                sendCatalog(
+                        "catalog",
+                        "delta",
+                        current,
+                        current.getChanged(last),
+                        current.getRemoved(last),
+                        last.getHash());
+            }
+            sentCatalog = current;
+        } catch (Throwable t) {
+            log().w(t);
+        }
+    }
+
+    private void sendCatalog(
+            String type,
+            String scope,
+            JmsOperationCatalog catalog,
+            Collection<JmsOperationCatalog.Entry> entries,
+            Collection<String> removed,
+            long base)
+            throws Exception {
+        MapMessage msg = registerClient.createMapMessage();
+        msg.setStringProperty("type", type);
+        msg.setStringProperty("connection", M.l(JmsApi.class).getDefaultConnectionName());
+        msg.setStringProperty("queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
+        msg.setStringProperty("scope", scope);
+        msg.setLongProperty("hash", catalog.getHash());
+        msg.setIntProperty("count", catalog.size());
+        msg.setLongProperty("base", base);
+
+        int cnt = 0;
+        if (entries != null) {
+            boolean lazy = CFG_CATALOG_LAZY_FORMS.value();
+            for (JmsOperationCatalog.Entry entry : entries) {
+                OperationDescriptor desc = entry.getDescriptor();
+                msg.setString("operation" + cnt, desc.getPath());
+                msg.setString("version" + cnt, desc.getVersionString());
+                msg.setString("tags" + cnt, entry.getTags());
+                msg.setString("acl" + cnt, desc.getAcl());
+                msg.setString("title" + cnt, desc.getTitle());
+                msg.setString("uuid" + cnt, desc.getUuid().toString());
+                for (Entry<String, String> param : entry.getParameters().entrySet())
+                    msg.setString("param" + cnt + "." + param.getKey(), param.getValue());
+                msg.setLong("entryhash" + cnt, entry.getHash());
+                msg.setBoolean("hasform" + cnt, entry.hasForm());
+                // forms are loaded by the receiver on demand
+                if (entry.hasForm() && !lazy) {
+                    String form = toFormXml(desc.getForm());
+                    if (form != null) msg.setString("form" + cnt, form);
                 }
+                cnt++;
+            }
+        }
+        if (removed != null) {
+            cnt = 0;
+            for (String key : removed) {
+                msg.setString("removed" + cnt, key);
+                cnt++;
             }
+        }
+        registerClient.sendJms(msg);
+    }
 
-            registerClient.sendJms(msg);
+    /**
+     * Ask the node behind the queue to send the full catalog.
+     *
+     * @param queue The queue of the node
+     */
+    public void requestCatalog(String queue) {
+        try {
+            checkClient();
+            MapMessage msg = registerClient.createMapMessage();
+            msg.setStringProperty("type", "catalogrequest");
+            msg.setStringProperty("connection", M.l(JmsApi.class).getDefaultConnectionName());
+            msg.setStringProperty("queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
+            msg.setStringProperty("target", queue);
+            registerClient.sendJmsOneWay(msg);
         } catch (Throwable t) {
             log().w(t);
         }
     }
 
+    static String toFormXml(DefRoot form) throws Exception {
+        if (form == null) return null;
+        Document doc = ModelUtil.toXml(form);
+        return MXml.toString(doc.getDocumentElement(), false);
+    }
+
     @Override
     public void requestOperationRegistry() {
         try {
@@ -138,12 +246,16 @@ public class JmsApiImpl extends MLog implements JmsApi {
     public void doActivate(ComponentContext ctx) {
         instance = this;
         registerClient = new ClientJms(new JmsDestination(JmsApi.REGISTRY_TOPIC, true));
+        registryPublisher = new JmsRegistryPublisher(this);
+        registryPublisher.start();
     }
 
     @Deactivate
     public void doDeactivate(ComponentContext ctx) {
         instance = null;
 
+        if (registryPublisher != null) registryPublisher.close();
+        registryPublisher = null;
         if (registerClient != null) registerClient.close();
         registerClient = null;
         register.clear();
@@ -152,6 +264,10 @@ public class JmsApiImpl extends MLog implements JmsApi {
     public static class JmsOperationDescriptor extends OperationDescriptor {
 
         private long lastUpdated;
+        private long catalogHash;
+        private volatile String formXml;
+        private volatile boolean hasForm;
+        private volatile boolean formLoaded = true;
 
         public JmsOperationDescriptor(
                 UUID uuid,
@@ -169,25 +285,94 @@ public class JmsApiImpl extends MLog implements JmsApi {
         public void setLastUpdated() {
             lastUpdated = System.currentTimeMillis();
         }
+
+        public long getCatalogHash() {
+            return catalogHash;
+        }
+
+        public void setCatalogHash(long catalogHash) {
+            this.catalogHash = catalogHash;
+        }
+
+        /**
+         * Set the form of the operation, the form is parsed or loaded from the remote node on
+         * first access.
+         *
+         * @param formXml The form as xml or null
+         * @param hasForm The remote operation provides a form
+         */
+        public void setFormXml(String formXml, boolean hasForm) {
+            this.formXml = formXml;
+            this.hasForm = hasForm || formXml != null;
+            formLoaded = !this.hasForm;
+        }
+
+        @Override
+        public DefRoot getForm() {
+            if (formLoaded) return super.getForm();
+            synchronized (this) {
+                if (!formLoaded) {
+                    String xml = formXml;
+                    if (xml == null && JmsOperationProvider.instance != null)
+                        xml = JmsOperationProvider.instance.loadFormXml(this);
+                    if (xml != null) {
+                        try {
+                            Document doc = MXml.loadXml(xml);
+                            adaptTo(OperationDescription.class)
+                                    .setForm(ModelUtil.toModel(doc.getDocumentElement()));
+                        } catch (Throwable t) {
+                        }
+                        formXml = null;
+                        formLoaded = true;
+                    }
+                }
+            }
+            return super.getForm();
+        }
     }
 
     public boolean registryPublish(RegistryValue entry) {
+        return registryPublish(Collections.singletonList(entry));
+    }
+
+    /**
+     * Publish the entries, the entries will be send in messages of maximum publishBatchSize
+     * entries.
+     *
+     * @param entries
+     * @return true if all messages are sent
+     */
+    public boolean registryPublish(Collection<RegistryValue> entries) {
         try {
             checkClient();
 
-            MapMessage msg = registerClient.createMapMessage();
-            msg.setStringProperty("type", "registrypublish");
-            msg.setStringProperty("connection", M.l(JmsApi.class).getDefaultConnectionName());
-            msg.setStringProperty("queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
-            msg.setStringProperty("ident", M.l(ServerIdent.class).getIdent());
-            msg.setStringProperty("scope", "single");
-
-            msg.setString("path0", entry.getPath());
-            msg.setString("value0", entry.getValue());
-            msg.setLong("timeout0", entry.getTimeout());
-            msg.setBoolean("readOnly0", entry.isReadOnly());
-            msg.setBoolean("persistent0", entry.isPersistent());
-            registerClient.sendJms(msg);
+            int max = Math.max(1, JmsRegistryProvider.CFG_PUBLISH_BATCH_SIZE.value());
+            MapMessage msg = null;
+            int cnt = 0;
+            for (RegistryValue entry : entries) {
+                if (msg == null) {
+                    msg = registerClient.createMapMessage();
+                    msg.setStringProperty("type", "registrypublish");
+                    msg.setStringProperty(
+                            "connection", M.l(JmsApi.class).getDefaultConnectionName());
+                    msg.setStringProperty(
+                            "queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
+                    msg.setStringProperty("ident", M.l(ServerIdent.class).getIdent());
+                    msg.setStringProperty("scope", "single");
+                    cnt = 0;
+                }
+                msg.setString("path" + cnt, entry.getPath());
+                msg.setString("value" + cnt, entry.getValue());
+                msg.setLong("timeout" + cnt, entry.getTimeout());
+                msg.setBoolean("readOnly" + cnt, entry.isReadOnly());
+                msg.setBoolean("persistent" + cnt, entry.isPersistent());
+                cnt++;
+                if (cnt >= max) {
+                    registerClient.sendJms(msg);
+                    msg = null;
+                }
+            }
+            if (msg != null) registerClient.sendJms(msg);
             return true;
         } catch (Throwable t) {
             log().w(t);
@@ -196,18 +381,41 @@ public class JmsApiImpl extends MLog implements JmsApi {
     }
 
     public boolean registryRemove(String path) {
+        return registryRemove(Collections.singletonList(path));
+    }
+
+    /**
+     * Remove the paths, the paths will be send in messages of maximum publishBatchSize entries.
+     *
+     * @param paths
+     * @return true if all messages are sent
+     */
+    public boolean registryRemove(Collection<String> paths) {
         try {
             checkClient();
 
-            MapMessage msg = registerClient.createMapMessage();
-            msg.setStringProperty("type", "registryremove");
-            msg.setStringProperty("connection", M.l(JmsApi.class).getDefaultConnectionName());
-            msg.setStringProperty("queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
-            msg.setStringProperty("ident", M.l(ServerIdent.class).getIdent());
-
-            msg.setString("path0", path);
-
-            registerClient.sendJms(msg);
+            int max = Math.max(1, JmsRegistryProvider.CFG_PUBLISH_BATCH_SIZE.value());
+            MapMessage msg = null;
+            int cnt = 0;
+            for (String path : paths) {
+                if (msg == null) {
+                    msg = registerClient.createMapMessage();
+                    msg.setStringProperty("type", "registryremove");
+                    msg.setStringProperty(
+                            "connection", M.l(JmsApi.class).getDefaultConnectionName());
+                    msg.setStringProperty(
+                            "queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
+                    msg.setStringProperty("ident", M.l(ServerIdent.class).getIdent());
+                    cnt = 0;
+                }
+                msg.setString("path" + cnt, path);
+                cnt++;
+                if (cnt >= max) {
+                    registerClient.sendJms(msg);
+                    msg = null;
+                }
+            }
+            if (msg != null) registerClient.sendJms(msg);
             return true;
         } catch (Throwable t) {
             log().w(t);
@@ -252,6 +460,173 @@ public class JmsApiImpl extends MLog implements JmsApi {
         return false;
     }
 
+    /**
+     * Send the digest of the local entries. Other nodes will request the buckets that differ from
+     * their view.
+     *
+     * @return true if sent
+     */
+    public boolean sendLocalDigest() {
+        try {
+            checkClient();
+
+            RegistryManager api = M.l(RegistryManager.class);
+            if (api == null) {
+                log().d("sendLocalDigest: API not found");
+                return false;
+            }
+            String ident = M.l(ServerIdent.class).getIdent();
+            int depth = JmsRegistryProvider.CFG_DIGEST_DEPTH.value();
+            RegistryDigest digest = api.getDigest(ident, depth);
+
+            MapMessage msg = registerClient.createMapMessage();
+            msg.setStringProperty("type", "registrydigest");
+            msg.setStringProperty("connection", M.l(JmsApi.class).getDefaultConnectionName());
+            msg.setStringProperty("queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
+            msg.setStringProperty("ident", ident);
+            msg.setIntProperty("depth", depth);
+            msg.setLongProperty("root", digest.getRoot());
+            int cnt = 0;
+            for (Entry<String, long[]> entry : digest.getBuckets().entrySet()) {
+                msg.setString("bucket" + cnt, entry.getKey());
+                msg.setLong("hash" + cnt, entry.getValue()[0]);
+                msg.setLong("count" + cnt, entry.getValue()[1]);
+                cnt++;
+            }
+            registerClient.sendJms(msg);
+            return true;
+        } catch (Throwable t) {
+            log().w(t);
+        }
+        return false;
+    }
+
+    /**
+     * Request the entries of the given buckets from the source.
+     *
+     * @param target Ident of the source
+     * @param depth Depth of the buckets
+     * @param buckets The buckets to request
+     * @return true if sent
+     */
+    public boolean requestRegistryBuckets(String target, int depth, Collection<String> buckets) {
+        try {
+            checkClient();
+            MapMessage msg = registerClient.createMapMessage();
+            msg.setStringProperty("type", "registrypull");
+            msg.setStringProperty("connection", M.l(JmsApi.class).getDefaultConnectionName());
+            msg.setStringProperty("queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
+            msg.setStringProperty("target", target);
+            msg.setIntProperty("depth", depth);
+            int cnt = 0;
+            for (String bucket : buckets) {
+                msg.setString("bucket" + cnt, bucket);
+                cnt++;
+            }
+            registerClient.sendJmsOneWay(msg);
+            return true;
+        } catch (Throwable t) {
+            log().w(t);
+        }
+        return false;
+    }
+
+    /**
+     * Send all local entries of the given buckets in messages of maximum publishBatchSize
+     * entries. Buckets sent recently will be ignored because the answer is received by all nodes.
+     *
+     * @param depth Depth of the buckets
+     * @param buckets Requested buckets
+     * @return true if sent
+     */
+    public boolean sendLocalRegistry(int depth, Collection<String> buckets) {
+        try {
+            checkClient();
+
+            RegistryManager api = M.l(RegistryManager.class);
+            if (api == null) {
+                log().d("sendLocalRegistry: API not found");
+                return false;
+            }
+
+            TreeSet<String> send = new TreeSet<>();
+            long now = System.currentTimeMillis();
+            synchronized (sentBuckets) {
+                sentBuckets
+                        .entrySet()
+                        .removeIf(
+                                e ->
+                                        now - e.getValue()
+                                                > JmsRegistryProvider.CFG_PULL_DEBOUNCE.value());
+                for (String bucket : buckets) {
+                    String key = depth + ":" + bucket;
+                    if (!sentBuckets.containsKey(key)) {
+                        sentBuckets.put(key, now);
+                        send.add(bucket);
+                    }
+                }
+            }
+            if (send.isEmpty()) return true;
+
+            String ident = M.l(ServerIdent.class).getIdent();
+            // buckets are path prefixes, read only the ranges of the requested buckets
+            LinkedList<RegistryValue> entries = new LinkedList<>();
+            for (String bucket : send) {
+                api.streamParameters(bucket)
+                        .filter(
+                                entry ->
+                                        entry.getSource().equals(ident)
+                                                && !entry.getPath()
+                                                        .startsWith(RegistryApi.PATH_LOCAL)
+                                                && bucket.equals(
+                                                        RegistryDigest.getBucket(
+                                                                entry.getPath(), depth)))
+                        .forEach(entries::add);
+            }
+
+            // send in parts of maximum publishBatchSize entries, the receivers remove old
+            // entries of the buckets after the last part
+            int max = Math.max(1, JmsRegistryProvider.CFG_PUBLISH_BATCH_SIZE.value());
+            int part = 0;
+            do {
+                MapMessage msg = registerClient.createMapMessage();
+                msg.setStringProperty("type", "registrypublish");
+                msg.setStringProperty(
+                        "connection", M.l(JmsApi.class).getDefaultConnectionName());
+                msg.setStringProperty(
+                        "queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
+                msg.setStringProperty("ident", ident);
+                msg.setStringProperty("scope", "buckets");
+                msg.setIntProperty("depth", depth);
+                msg.setIntProperty("part", part);
+                int cnt = 0;
+                while (cnt < max && !entries.isEmpty()) {
+                    RegistryValue entry = entries.removeFirst();
+                    msg.setString("path" + cnt, entry.getPath());
+                    msg.setString("value" + cnt, entry.getValue());
+                    msg.setLong("timeout" + cnt, entry.getTimeout());
+                    msg.setBoolean("readOnly" + cnt, entry.isReadOnly());
+                    msg.setBoolean("persistent" + cnt, entry.isPersistent());
+                    cnt++;
+                }
+                msg.setBooleanProperty("last", entries.isEmpty());
+                if (entries.isEmpty()) {
+                    cnt = 0;
+                    for (String bucket : send) {
+                        msg.setString("bucket" + cnt, bucket);
+                        cnt++;
+                    }
+                }
+                registerClient.sendJms(msg);
+                part++;
+            } while (!entries.isEmpty());
+            return true;
+        } catch (Throwable t) {
+            log().w(t);
+        }
+        return false;
+    }
+
     public boolean requestRegistry() {
         try {
             checkClient();
@@ -259,6 +634,8 @@ public class JmsApiImpl extends MLog implements JmsApi {
             msg.setStringProperty("type", "registryrequest");
             msg.setStringProperty("connection", M.l(JmsApi.class).getDefaultConnectionName());
             msg.setStringProperty("queue", Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME.value());
+            // ask for digests instead of the full registry
+            msg.setBooleanProperty("digest", JmsRegistryProvider.CFG_DELTA_SYNC.value());
             registerClient.sendJmsOneWay(msg);
             return true;
         } catch (Throwable t) {
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.jms.operation;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+
+import de.mhus.lib.core.console.ConsoleTable;
+import de.mhus.osgi.api.karaf.AbstractCmd;
+
+@Command(scope = "sop", name = "jms", description = "Sop JMS commands")
+@Service
+public class JmsCmd extends AbstractCmd {
+
+    private static final String[] LANE_NAMES = {"low", "normal", "high"};
+
+    @Argument(
+            index = 0,
+            name = "cmd",
+            required = true,
+            description = "Command:\n" + " workers - show statistics of the operation workers\n" + "",
+            multiValued = false)
+    String cmd;
+
+    @Argument(
+            index = 1,
+            name = "parameters",
+            required = false,
+            description = "More Parameters",
+            multiValued = true)
+    String[] parameters;
+
+    @Override
+    public Object execute2() throws Exception {
+
+        if (cmd.equals("workers")) {
+            Jms2LocalOperationExecuteChannel channel = Jms2LocalOperationExecuteChannel.instance;
+            JmsOperationWorkers workers = channel == null ? null : channel.getWorkers();
+            if (workers == null) {
+                System.out.println("Workers disabled");
+                return null;
+            }
+            System.out.println("Threads : " + workers.getThreads());
+            System.out.println("Active  : " + workers.getActive());
+            System.out.println("Queue   : " + workers.getQueueSize());
+            System.out.println("Executed: " + workers.getExecuted());
+            System.out.println("Rejected: " + workers.getRejected());
+            ConsoleTable table = new ConsoleTable(tblOpt);
+            table.setHeaderValues(
+                    "Lane",
+                    "Weight",
+                    "Queue",
+                    "Max Queue",
+                    "Executed",
+                    "Rejected",
+                    "Avg Wait",
+                    "Max Wait",
+                    "Avg Time",
+                    "Max Time");
+            for (int lane = workers.getLaneCount() - 1; lane >= 0; lane--)
+                table.addRowValues(
+                        LANE_NAMES[lane],
+                        workers.getWeight(lane),
+                        workers.getQueueSize(lane),
+                        workers.getMaxQueueSize(lane),
+                        workers.getExecuted(lane),
+                        workers.getRejected(lane),
+                        workers.getAverageWaitTime(lane),
+                        workers.getMaxWaitTime(lane),
+                        workers.getAverageExecutionTime(lane),
+                        workers.getMaxExecutionTime(lane));
+            table.print(System.out);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.jms.operation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.mhus.lib.core.MString;
+import de.mhus.osgi.sop.api.operation.OperationDescriptor;
+import de.mhus.osgi.sop.api.operation.OperationUtil;
+import de.mhus.osgi.sop.api.registry.RegistryDigest;
+
+/**
+ * Catalog of the local operations published to the other nodes. Every entry has a hash of the
+ * published information, the hash of the catalog is calculated over all entries independent of
+ * the order. Entries are reused from the previous catalog if the descriptor is the same instance,
+ * unchanged operations are not processed again.
+ */
+public class JmsOperationCatalog {
+
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private long hash;
+
+    /**
+     * Create the catalog of the descriptors.
+     *
+     * @param descriptors The local operations
+     * @param tags Tags added to the tags of every operation
+     * @param codecs Codecs accepted if the operation has no codec tag
+     * @param previous The previous catalog or null
+     * @return The catalog
+     */
+    public static JmsOperationCatalog create(
+            Collection<OperationDescriptor> descriptors,
+            String tags,
+            String codecs,
+            JmsOperationCatalog previous) {
+        JmsOperationCatalog catalog = new JmsOperationCatalog();
+        for (OperationDescriptor desc : descriptors) {
+            String key = desc.getPath() + "," + desc.getVersionString();
+            Entry entry = previous == null ? null : previous.entries.get(key);
+            if (entry == null
+                    || entry.desc != desc
+                    || !entry.extraTags.equals(tags)
+                    || !entry.codecs.equals(codecs)) entry = new Entry(desc, tags, codecs);
+            catalog.entries.put(key, entry);
+        }
+        long sum = 0;
+        for (Entry entry : catalog.entries.values()) sum += entry.hash;
+        catalog.hash = sum * 31 + catalog.entries.size();
+        return catalog;
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Return the entries added or changed since the base catalog.
+     *
+     * @param base The base catalog
+     * @return List of entries
+     */
+    public List<Entry> getChanged(JmsOperationCatalog base) {
+        ArrayList<Entry> out = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry b = base.entries.get(entry.getKey());
+            if (b == null || b.hash != entry.getValue().hash) out.add(entry.getValue());
+        }
+        return out;
+    }
+
+    /**
+     * Return the keys of the entries removed since the base catalog.
+     *
+     * @param base The base catalog
+     * @return List of keys (path,version)
+     */
+    public List<String> getRemoved(JmsOperationCatalog base) {
+        ArrayList<String> out = new ArrayList<>();
+        for (String key : base.entries.keySet()) if (!entries.containsKey(key)) out.add(key);
+        return out;
+    }
+
+    public static class Entry {
+
+        private OperationDescriptor desc;
+        private String extraTags;
+        private String codecs;
+        private String tags;
+        private TreeMap<String, String> parameters = new TreeMap<>();
+        private boolean form;
+        private long hash;
+
+        private Entry(OperationDescriptor desc, String extraTags, String codecs) {
+            this.desc = desc;
+            this.extraTags = extraTags;
+            this.codecs = codecs;
+            String tags = MString.join(desc.getTags().iterator(), ";");
+            if (tags.length() > 0) tags = tags + ";";
+            tags = tags + extraTags;
+            // publish the codecs accepted by this node
+            if (OperationUtil.getOption(desc.getTags(), OperationDescriptor.TAG_CODEC, null)
+                    == null) tags = tags + ";" + OperationDescriptor.TAG_CODEC + "=" + codecs;
+            this.tags = tags;
+            for (String key : desc.getParameterKeys()) parameters.put(key, desc.getParameter(key));
+            form = desc.getForm() != null;
+
+            long h = RegistryDigest.hash(desc.getPath());
+            h = h * 31 + RegistryDigest.hash(desc.getVersionString());
+            h = h * 31 + RegistryDigest.hash(tags);
+            h = h * 31 + RegistryDigest.hash(desc.getAcl());
+            h = h * 31 + RegistryDigest.hash(desc.getTitle());
+            h = h * 31 + RegistryDigest.hash(desc.getUuid().toString());
+            for (Map.Entry<String, String> p : parameters.entrySet()) {
+                h = h * 31 + RegistryDigest.hash(p.getKey());
+                h = h * 31 + RegistryDigest.hash(p.getValue());
+            }
+            // the content of the form is not hashed, a changed form is a new descriptor
+            h = h * 31 + (form ? 1 : 0);
+            hash = h;
+        }
+
+        public OperationDescriptor getDescriptor() {
+            return desc;
+        }
+
+        public String getTags() {
+            return tags;
+        }
+
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        public boolean hasForm() {
+            return form;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.jms.operation;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.core.cfg.CfgInt;
+import de.mhus.lib.jms.JmsConnection;
+
+/**
+ * Sends operation requests over one JMS connection. The message producers are kept open per
+ * destination queue and all answers are received by one long lived temporary reply queue. The
+ * answers are assigned to the waiting requests by the correlation id.
+ *
+ * <p>Binary results can be received as stream of chunks, the chunks are assigned to the open
+ * streams by the correlation id of the call.
+ *
+ * <p>If the session of the connection changes (reconnect) all resources are created again and the
+ * waiting requests fail, their answers can't be received any more.
+ *
+ * <p>The futures are completed by a separate executor, dependent stages of the callers never run
+ * in the reply listener or the timeout thread.
+ */
+public class JmsOperationClient extends MLog implements MessageListener {
+
+    private JmsConnection con;
+    private Session session;
+    private TemporaryQueue replyQueue;
+    private MessageConsumer consumer;
+    private ConcurrentHashMap<String, MessageProducer> producers = new ConcurrentHashMap<>();
+    // producer without destination for the control messages of streams
+    private MessageProducer controlProducer;
+    private ConcurrentHashMap<String, JmsStreamInputStream> streams = new ConcurrentHashMap<>();
+    // one thread for the timeouts of all clients
+    private static ScheduledThreadPoolExecutor timeouts = createTimeouts();
+    /** Maximum number of answers waiting for a completion thread */
+    private static CfgInt CFG_ANSWER_QUEUE_SIZE =
+            new CfgInt(JmsOperationClient.class, "answerQueueSize", 10000);
+    // one thread per cpu, dependent stages must not block
+    private static ThreadPoolExecutor completions = createCompletions();
+    private ConcurrentHashMap<String, CompletableFuture<Message>> pending =
+            new ConcurrentHashMap<>();
+    private ScheduledFuture<?> watcher;
+    private String prefix = UUID.randomUUID().toString() + "-";
+    private AtomicLong nextId = new AtomicLong();
+
+    public JmsOperationClient(JmsConnection con) {
+        this.con = con;
+    }
+
+    private static ScheduledThreadPoolExecutor createTimeouts() {
+        ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(
+                        1,
+                        r -> {
+                            Thread thread = new Thread(r, "JmsOperationClient Timeout");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    private static ThreadPoolExecutor createCompletions() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        threads,
+                        threads,
+                        60,
+                        TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(Math.max(1, CFG_ANSWER_QUEUE_SIZE.value())),
+                        r -> {
+                            Thread thread = new Thread(r, "JmsOperationClient Answer");
+                            thread.setDaemon(true);
+                            return thread;
+                        },
+                        // slows down the receiving thread if the completions can't keep up
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void complete(CompletableFuture<Message> future, Message msg, Throwable t) {
+        completions.execute(
+                () -> {
+                    if (t == null) future.complete(msg);
+                    else future.completeExceptionally(t);
+                });
+    }
+
+    /**
+     * Send the message and wait for the answer.
+     *
+     * @param queueName Destination queue
+     * @param msg The request
+     * @param timeout Timeout in milliseconds
+     * @return The answer or null if timed out
+     * @throws JMSException
+     */
+    public Message sendJms(String queueName, Message msg, long timeout) throws JMSException {
+        try {
+            return sendJmsAsync(queueName, msg, timeout).get();
+        } catch (InterruptedException e) {
+            throw new JMSException("interrupted");
+        } catch (ExecutionException e) {
+            throw new JMSException(String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * Send the message and return a future completed if the answer arrives. If no answer arrives
+     * in time the future is completed with null, if the connection is reset it fails.
+     *
+     * @param queueName Destination queue
+     * @param msg The request
+     * @param timeout Timeout in milliseconds
+     * @return Future of the answer
+     * @throws JMSException If the message can't be sent
+     */
+    public CompletableFuture<Message> sendJmsAsync(String queueName, Message msg, long timeout)
+            throws JMSException {
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        String id = prefix + nextId.incrementAndGet();
+        // open before the request is pending, a reset fails all pending requests
+        synchronized (this) {
+            open();
+        }
+        pending.put(id, future);
+        try {
+            msg.setJMSCorrelationID(id);
+            send(queueName, msg, true);
+        } catch (JMSException | RuntimeException e) {
+            pending.remove(id);
+            throw e;
+        }
+        ScheduledFuture<?> timer =
+                timeouts.schedule(
+                        () -> {
+                            if (pending.remove(id) != null) {
+                                log().d("answer timeout", queueName, id);
+                                complete(future, null, null);
+                            }
+                        },
+                        timeout,
+                        TimeUnit.MILLISECONDS);
+        future.whenComplete((m, t) -> timer.cancel(false));
+        return future;
+    }
+
+    /**
+     * Send the message without waiting for an answer.
+     *
+     * @param queueName Destination queue
+     * @param msg The message
+     * @throws JMSException
+     */
+    public void sendJmsOneWay(String queueName, Message msg) throws JMSException {
+        send(queueName, msg, false);
+    }
+
+    private void send(String queueName, Message msg, boolean reply) throws JMSException {
+        MessageProducer producer;
+        synchronized (this) {
+            open();
+            if (reply) msg.setJMSReplyTo(replyQueue);
+            producer = producers.get(queueName);
+            if (producer == null) {
+                Destination dest = con.createQueue(queueName).getDestination();
+                producer = session.createProducer(dest);
+                producers.put(queueName, producer);
+            }
+        }
+        try {
+            synchronized (producer) {
+                // the priority is ignored by send(msg), use the priority of the message
+                producer.send(
+                        msg,
+                        producer.getDeliveryMode(),
+                        msg.getJMSPriority(),
+                        producer.getTimeToLive());
+            }
+        } catch (JMSException e) {
+            // the resources are maybe broken, create new ones with the next request
+            reset();
+            throw e;
+        }
+    }
+
+    /**
+     * Open the result stream announced by the answer of an operation call.
+     *
+     * @param answer The answer, the reply destination is the control queue of the sender
+     * @param window Number of chunks to request in advance
+     * @param timeout Time in ms to wait for the next chunk
+     * @return The stream
+     * @throws JMSException
+     */
+    public JmsStreamInputStream openStream(Message answer, int window, long timeout)
+            throws JMSException {
+        String id = answer.getJMSCorrelationID();
+        Destination control = answer.getJMSReplyTo();
+        if (id == null || control == null) throw new JMSException("stream control not found");
+        JmsStreamInputStream stream = new JmsStreamInputStream(this, id, control, window, timeout);
+        streams.put(id, stream);
+        try {
+            stream.start();
+        } catch (JMSException | RuntimeException e) {
+            streams.remove(id);
+            throw e;
+        }
+        return stream;
+    }
+
+    void removeStream(String id) {
+        streams.remove(id);
+    }
+
+    void sendStreamControl(Destination control, String property, int value)
+            throws JMSException {
+        MessageProducer producer;
+        Message msg;
+        synchronized (this) {
+            open();
+            if (controlProducer == null) controlProducer = session.createProducer(null);
+            producer = controlProducer;
+            msg = session.createMessage();
+        }
+        msg.setIntProperty(property, value);
+        synchronized (producer) {
+            producer.send(control, msg);
+        }
+    }
+
+    private void open() throws JMSException {
+        Session current = con.getSession();
+        if (current == null) throw new JMSException("connection is not open");
+        if (current == session && replyQueue != null) return;
+        reset();
+        session = current;
+        replyQueue = session.createTemporaryQueue();
+        consumer = session.createConsumer(replyQueue);
+        consumer.setMessageListener(this);
+        if (watcher == null)
+            watcher = timeouts.scheduleWithFixedDelay(this::check, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // fail the waiting requests at once if the connection is lost or reconnected
+    private synchronized void check() {
+        if (session == null || con.getSession() == session) return;
+        log().d("connection reset", pending.size());
+        reset();
+    }
+
+    @Override
+    public void onMessage(Message message) {
+        try {
+            String id = message.getJMSCorrelationID();
+            if (message.propertyExists(JmsStreamSender.PROP_SEQ)) {
+                JmsStreamInputStream stream = id == null ? null : streams.get(id);
+                if (stream == null) log().d("unexpected chunk", id);
+                else stream.received(message);
+                return;
+            }
+            CompletableFuture<Message> future = id == null ? null : pending.remove(id);
+            if (future == null) log().d("unexpected answer", id);
+            else complete(future, message, null);
+        } catch (Throwable t) {
+            log().d(t);
+        }
+    }
+
+    public synchronized void reset() {
+        for (MessageProducer producer : producers.values())
+            try {
+                producer.close();
+            } catch (Throwable t) {
+                log().d(t);
+            }
+        producers.clear();
+        if (controlProducer != null)
+            try {
+                controlProducer.close();
+            } catch (Throwable t) {
+                log().d(t);
+            }
+        controlProducer = null;
+        // the reply queue is lost, open streams and requests can't be continued
+        for (JmsStreamInputStream stream : streams.values())
+            stream.fail(new IOException("connection reset"));
+        streams.clear();
+        failPending(new JMSException("connection reset"));
+        if (consumer != null)
+            try {
+                consumer.close();
+            } catch (Throwable t) {
+                log().d(t);
+            }
+        consumer = null;
+        if (replyQueue != null)
+            try {
+                replyQueue.delete();
+            } catch (Throwable t) {
+                log().d(t);
+            }
+        replyQueue = null;
+        session = null;
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (watcher != null) watcher.cancel(false);
+            watcher = null;
+        }
+        failPending(new JMSException("client closed"));
+        reset();
+    }
+
+    private void failPending(JMSException e) {
+        for (String id : pending.keySet()) {
+            CompletableFuture<Message> future = pending.remove(id);
+            if (future != null) complete(future, null, e);
+        }
+    }
+
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    public int getPendingSize() {
+        return pending.size();
+    }
+
+    public JmsConnection getConnection() {
+        return con;
+    }
+}
@@ -15,13 +15,21 @@ package de.mhus.osgi.sop.jms.operation;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jms.BytesMessage;
 import javax.jms.JMSException;
@@ -37,13 +45,16 @@ import org.osgi.service.component.annotations.Deactivate;
 
 import de.mhus.lib.core.IProperties;
 import de.mhus.lib.core.M;
+import de.mhus.lib.core.MCast;
 import de.mhus.lib.core.MDate;
 import de.mhus.lib.core.MLog;
 import de.mhus.lib.core.MPeriod;
 import de.mhus.lib.core.MProperties;
 import de.mhus.lib.core.MSystem;
-import de.mhus.lib.core.MThread;
 import de.mhus.lib.core.base.service.ServerIdent;
+import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgInt;
+import de.mhus.lib.core.cfg.CfgLong;
 import de.mhus.lib.core.lang.TempFile;
 import de.mhus.lib.core.strategy.NotSuccessful;
 import de.mhus.lib.core.strategy.OperationResult;
@@ -56,8 +67,11 @@ import de.mhus.lib.jms.MJms;
 import de.mhus.osgi.api.jms.JmsUtil;
 import de.mhus.osgi.sop.api.Sop;
 import de.mhus.osgi.sop.api.aaa.AccessApi;
+import de.mhus.osgi.sop.api.codec.CodecUtil;
+import de.mhus.osgi.sop.api.codec.OperationCodec;
 import de.mhus.osgi.sop.api.jms.JmsApi;
 import de.mhus.osgi.sop.api.operation.OperationAddress;
+import de.mhus.osgi.sop.api.operation.OperationCall;
 import de.mhus.osgi.sop.api.operation.OperationDescriptor;
 import de.mhus.osgi.sop.api.operation.OperationUtil;
 import de.mhus.osgi.sop.api.operation.OperationsProvider;
@@ -73,13 +87,59 @@ import de.mhus.osgi.sop.jms.operation.JmsApiImpl.JmsOperationDescriptor;
 public class JmsOperationProvider extends MLog implements OperationsProvider {
 
     protected static final String PROVIDER_NAME = "jms";
+    /**
+     * Use one long lived client per connection with cached producers and a shared reply queue,
+     * otherwise a new client is created for every call
+     */
+    public static final CfgBoolean CFG_SHARED_CLIENT =
+            new CfgBoolean(JmsOperationProvider.class, "sharedClient", true);
+    /**
+     * Receive binary results of all calls as stream of chunks, can also be requested per call by
+     * the stream option. Needs the shared client.
+     */
+    public static final CfgBoolean CFG_STREAM_RESULTS =
+            new CfgBoolean(JmsOperationProvider.class, "streamResults", false);
+    /** Number of chunks of a result stream requested in advance */
+    public static final CfgInt CFG_STREAM_WINDOW =
+            new CfgInt(JmsOperationProvider.class, "streamWindow", 8);
+    /** Time in ms to wait for the next chunk of a result stream */
+    public static final CfgLong CFG_STREAM_TIMEOUT =
+            new CfgLong(JmsOperationProvider.class, "streamTimeout", 60000);
+    /** Encode parameters with a codec accepted by the operation (codec tag) */
+    public static final CfgBoolean CFG_USE_CODEC =
+            new CfgBoolean(JmsOperationProvider.class, "useCodec", true);
+    /** Minimum size in bytes to compress encoded parameters, 0 disables compression */
+    public static final CfgInt CFG_CODEC_COMPRESS_THRESHOLD =
+            new CfgInt(JmsOperationProvider.class, "codecCompressThreshold", 8192);
+    /** Maximum number of calls in one envelope */
+    public static final CfgInt CFG_BATCH_SIZE =
+            new CfgInt(JmsOperationProvider.class, "batchSize", 100);
+    /** Time in ms to wait for the form of a remote operation */
+    public static final CfgLong CFG_FORM_TIMEOUT =
+            new CfgLong(JmsOperationProvider.class, "formTimeout", 10000);
+
+    /** Time in ms remote operations must answer a registry request before they are removed */
+    public static final CfgLong CFG_STALE_TIMEOUT =
+            new CfgLong(JmsOperationProvider.class, "staleTimeout", 30000);
+
+    protected static JmsOperationProvider instance;
+
     private String ident = M.l(ServerIdent.class).getIdent();
+    private volatile long staleSince;
+    private ConcurrentHashMap<JmsConnection, JmsOperationClient> clients =
+            new ConcurrentHashMap<>();
 
     @Activate
-    public void doActivate(ComponentContext ctx) {}
+    public void doActivate(ComponentContext ctx) {
+        instance = this;
+    }
 
     @Deactivate
-    public void doDeactivate(ComponentContext ctx) {}
+    public void doDeactivate(ComponentContext ctx) {
+        instance = null;
+        for (JmsOperationClient client : clients.values()) client.close();
+        clients.clear();
+    }
 
     @Override
     public void collectOperations(
@@ -88,11 +148,15 @@ public class JmsOperationProvider extends MLog implements OperationsProvider {
             VersionRange version,
             Collection<String> providedTags) {
         if (!JmsRegistryProvider.CFG_ENABLED.value()) return;
-        synchronized (JmsApiImpl.instance.register) {
-            HashMap<String, JmsOperationDescriptor> register = JmsApiImpl.instance.register;
-            for (JmsOperationDescriptor desc : register.values())
-                if (OperationUtil.matches(desc, filter, version, providedTags)) list.add(desc);
-        }
+        JmsApiImpl.instance.register.find(list, filter, version, providedTags, false);
+    }
+
+    @Override
+    public long getRevision() {
+        if (JmsApiImpl.instance == null) return -1;
+        // the enabled flag changes the result of the lookups as well
+        long revision = JmsApiImpl.instance.register.getRevision() * 2;
+        return JmsRegistryProvider.CFG_ENABLED.value() ? revision : revision + 1;
     }
 
     @Override
@@ -103,19 +167,10 @@ public class JmsOperationProvider extends MLog implements OperationsProvider {
             IProperties properties,
             String... executeOptions)
             throws NotFoundException {
-        OperationDescriptor d = null;
-        synchronized (JmsApiImpl.instance.register) {
-            HashMap<String, JmsOperationDescriptor> register = JmsApiImpl.instance.register;
-            for (OperationDescriptor desc : register.values()) {
-                if (OperationUtil.matches(desc, filter, version, providedTags)) {
-                    d = desc;
-                    break;
-                }
-            }
-        }
-        if (d == null)
+        LinkedList<OperationDescriptor> list = new LinkedList<>();
+        if (!JmsApiImpl.instance.register.find(list, filter, version, providedTags, true))
             throw new NotFoundException("operation not found", filter, version, providedTags);
-        return doExecute(d, properties);
+        return doExecute(list.getFirst(), properties, executeOptions);
     }
 
     @Override
@@ -126,50 +181,314 @@ public class JmsOperationProvider extends MLog implements OperationsProvider {
         if (!PROVIDER_NAME.equals(desc.getProvider()))
             throw new NotFoundException("description is from another provider", desc);
 
-        String conName =
-                desc.getAddress().partSize() > 1
-                        ? desc.getAddress().getPart(1)
-                        : JmsApiImpl.instance.getDefaultConnectionName();
+        return doExecuteAsync(desc, properties, executeOptions).join();
+    }
+
+    @Override
+    public CompletableFuture<OperationResult> doExecuteAsync(
+            OperationDescriptor desc, IProperties properties, String... executeOptions) {
+
+        if (!PROVIDER_NAME.equals(desc.getProvider())) {
+            CompletableFuture<OperationResult> future = new CompletableFuture<>();
+            future.completeExceptionally(
+                    new NotFoundException("description is from another provider", desc));
+            return future;
+        }
+
         String queueName = desc.getAddress().getPart(0);
         String path = desc.getPath();
         String version = desc.getVersionString();
 
-        JmsConnection con = JmsUtil.getConnection(conName);
+        JmsConnection con = JmsUtil.getConnection(getConnectionName(desc));
 
-        AccessApi api = M.l(AccessApi.class);
-
-        String ticket =
-                api == null
-                        ? null
-                        : api.createTrustTicket(
-                                SopUtil.TRUST_NAME.value(),
-                                api.getCurrent()); // TODO Configurable via execute options
-        Locale locale =
-                api == null || api.getCurrent() == null
-                        ? Locale.getDefault()
-                        : api.getCurrent().getLocale();
+        String ticket = createTicket();
+        Locale locale = getLocale();
         long timeout =
                 OperationUtil.getOption(
                         executeOptions,
                         JmsApi.OPT_TIMEOUT,
                         MPeriod.MINUTE_IN_MILLISECOUNDS); // TODO Configurable via execute options
+        // the priority tag of the operation is the default priority of the call
+        executeOptions =
+                addTagOption(
+                        desc,
+                        OperationDescriptor.TAG_PRIORITY,
+                        JmsApi.OPT_PRIORITY,
+                        executeOptions);
+        // use a codec accepted by the operation
+        if (CFG_USE_CODEC.value())
+            executeOptions =
+                    addTagOption(
+                            desc, OperationDescriptor.TAG_CODEC, JmsApi.OPT_CODEC, executeOptions);
 
         try {
-            return doExecuteOperation(
-                    con,
-                    queueName,
-                    path,
-                    version,
-                    properties,
-                    ticket,
-                    locale,
-                    timeout,
-                    executeOptions);
+            return doExecuteOperationAsync(
+                            con,
+                            queueName,
+                            path,
+                            version,
+                            properties,
+                            ticket,
+                            locale,
+                            timeout,
+                            executeOptions)
+                    .exceptionally(
+                            e -> {
+                                if (e instanceof CompletionException && e.getCause() != null)
+                                    e = e.getCause();
+                                return new NotSuccessful(
+                                        path, e.getMessage(), OperationResult.INTERNAL_ERROR);
+                            });
         } catch (Throwable e) {
-            return new NotSuccessful(path, e.getMessage(), OperationResult.INTERNAL_ERROR);
+            return CompletableFuture.completedFuture(
+                    new NotSuccessful(path, e.getMessage(), OperationResult.INTERNAL_ERROR));
+        }
+    }
+
+    @Override
+    public List<OperationResult> doExecuteBatch(
+            List<OperationCall> calls, String... executeOptions) {
+        OperationResult[] results = new OperationResult[calls.size()];
+        // group the calls by target queue
+        LinkedHashMap<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < calls.size(); i++) {
+            OperationDescriptor desc = calls.get(i).getDescriptor();
+            String key =
+                    PROVIDER_NAME.equals(desc.getProvider())
+                            ? getConnectionName(desc) + "," + desc.getAddress().getPart(0)
+                            : "";
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+        LinkedList<CompletableFuture<Void>> futures = new LinkedList<>();
+        int size = Math.max(1, CFG_BATCH_SIZE.value());
+        for (Entry<String, List<Integer>> group : groups.entrySet()) {
+            List<Integer> indexes = group.getValue();
+            for (int start = 0; start < indexes.size(); start += size) {
+                List<Integer> part = indexes.subList(start, Math.min(indexes.size(), start + size));
+                if (part.size() == 1 || group.getKey().isEmpty())
+                    futures.add(executeSingle(calls, part, results));
+                else futures.add(executeEnvelope(calls, part, results, executeOptions));
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+        return Arrays.asList(results);
+    }
+
+    // execute the calls one by one
+    private CompletableFuture<Void> executeSingle(
+            List<OperationCall> calls, List<Integer> part, OperationResult[] results) {
+        CompletableFuture<?>[] futures = new CompletableFuture[part.size()];
+        for (int i = 0; i < part.size(); i++) {
+            int index = part.get(i);
+            OperationCall call = calls.get(index);
+            futures[i] =
+                    doExecuteAsync(
+                                    call.getDescriptor(),
+                                    call.getProperties(),
+                                    call.getExecuteOptions())
+                            .handle(
+                                    (res, t) ->
+                                            results[index] =
+                                                    t == null
+                                                            ? res
+                                                            : new NotSuccessful(
+                                                                    call.getDescriptor().getPath(),
+                                                                    String.valueOf(t),
+                                                                    OperationResult
+                                                                            .INTERNAL_ERROR));
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    // send the calls to the same queue in one envelope
+    private CompletableFuture<Void> executeEnvelope(
+            List<OperationCall> calls,
+            List<Integer> part,
+            OperationResult[] results,
+            String... executeOptions) {
+
+        OperationDescriptor first = calls.get(part.get(0)).getDescriptor();
+        String queueName = first.getAddress().getPart(0);
+        JmsConnection con = JmsUtil.getConnection(getConnectionName(first));
+
+        MProperties envelope = new MProperties();
+        ArrayList<MProperties> list = new ArrayList<>(part.size());
+        int priority = 0;
+        for (int index : part) {
+            OperationCall call = calls.get(index);
+            OperationDescriptor desc = call.getDescriptor();
+            MProperties item = new MProperties();
+            item.setString(Sop.PARAM_OPERATION_PATH, desc.getPath());
+            item.setString(Sop.PARAM_OPERATION_VERSION, desc.getVersionString());
+            MProperties parameters = new MProperties();
+            if (call.getProperties() != null)
+                for (Entry<String, Object> entry : call.getProperties())
+                    parameters.put(entry.getKey(), entry.getValue());
+            item.put(Sop.PARAM_BATCH_PARAMETERS, parameters);
+            list.add(item);
+            // the envelope is executed with the highest priority of the calls
+            String[] options =
+                    addTagOption(
+                            desc,
+                            OperationDescriptor.TAG_PRIORITY,
+                            JmsApi.OPT_PRIORITY,
+                            call.getExecuteOptions());
+            priority = Math.max(priority, OperationUtil.getOption(options, JmsApi.OPT_PRIORITY, 4));
+        }
+        envelope.put(Sop.PARAM_BATCH_CALLS, list);
+        envelope.setBoolean(
+                Sop.PARAM_BATCH_PARALLEL,
+                OperationUtil.isOption(executeOptions, JmsApi.OPT_BATCH_PARALLEL));
+
+        String[] options =
+                executeOptions == null
+                        ? new String[1]
+                        : Arrays.copyOf(executeOptions, executeOptions.length + 1);
+        options[options.length - 1] = JmsApi.OPT_PRIORITY + "=" + priority;
+        if (CFG_USE_CODEC.value())
+            options = addTagOption(first, OperationDescriptor.TAG_CODEC, JmsApi.OPT_CODEC, options);
+        long timeout =
+                OperationUtil.getOption(
+                        executeOptions, JmsApi.OPT_TIMEOUT, MPeriod.MINUTE_IN_MILLISECOUNDS);
+
+        CompletableFuture<OperationResult> answer;
+        try {
+            answer =
+                    doExecuteOperationAsync(
+                            con,
+                            queueName,
+                            Sop.OPERATION_BATCH,
+                            null,
+                            envelope,
+                            createTicket(),
+                            getLocale(),
+                            timeout,
+                            options);
+        } catch (Throwable t) {
+            answer = new CompletableFuture<>();
+            answer.completeExceptionally(t);
+        }
+        return answer.handle(
+                        (res, t) -> {
+                            if (t == null
+                                    && res != null
+                                    && res.getReturnCode() == OperationResult.NOT_FOUND) {
+                                // the target node does not support envelopes
+                                log().d("envelope not supported", queueName);
+                                return executeSingle(calls, part, results);
+                            }
+                            if (t != null && t.getCause() != null) t = t.getCause();
+                            unpackEnvelope(calls, part, results, res, t);
+                            return CompletableFuture.<Void>completedFuture(null);
+                        })
+                .thenCompose(f -> f);
+    }
+
+    private void unpackEnvelope(
+            List<OperationCall> calls,
+            List<Integer> part,
+            OperationResult[] results,
+            OperationResult res,
+            Throwable error) {
+        Object list =
+                error == null && res != null && res.isSuccessful() && res.getResult() instanceof Map
+                        ? ((Map<?, ?>) res.getResult()).get(Sop.PARAM_BATCH_RESULTS)
+                        : null;
+        String msg =
+                error != null
+                        ? String.valueOf(error)
+                        : res == null ? "answer is null" : "envelope failed: " + res.getMsg();
+        for (int i = 0; i < part.size(); i++) {
+            int index = part.get(i);
+            String path = calls.get(index).getDescriptor().getPath();
+            Object item =
+                    list instanceof List && ((List<?>) list).size() > i
+                            ? ((List<?>) list).get(i)
+                            : null;
+            if (!(item instanceof Map)) {
+                results[index] = new NotSuccessful(path, msg, OperationResult.INTERNAL_ERROR);
+                continue;
+            }
+            Map<?, ?> map = (Map<?, ?>) item;
+            OperationResult out = new OperationResult();
+            out.setOperationPath(path);
+            out.setSuccessful(MCast.toboolean(map.get(Sop.PARAM_SUCCESSFUL), false));
+            out.setReturnCode(MCast.tolong(map.get(Sop.PARAM_RC), OperationResult.INTERNAL_ERROR));
+            Object m = map.get(Sop.PARAM_MSG);
+            out.setMsg(m == null ? null : String.valueOf(m));
+            out.setResult(map.get(Sop.PARAM_BATCH_RESULT));
+            results[index] = out;
+        }
+    }
+
+    /**
+     * Load the form of a remote operation from the providing node.
+     *
+     * @param desc The remote operation
+     * @return The form as xml or null
+     */
+    public String loadFormXml(OperationDescriptor desc) {
+        try {
+            JmsConnection con = JmsUtil.getConnection(getConnectionName(desc));
+            if (con == null) return null;
+            MProperties properties = new MProperties();
+            properties.setString(Sop.PARAM_OPERATION_ID, desc.getPath());
+            OperationResult res =
+                    doExecuteOperation(
+                            con,
+                            desc.getAddress().getPart(0),
+                            Sop.OPERATION_INFO,
+                            desc.getVersionString(),
+                            properties,
+                            createTicket(),
+                            getLocale(),
+                            CFG_FORM_TIMEOUT.value());
+            if (res == null || !res.isSuccessful() || !(res.getResult() instanceof Map))
+                return null;
+            Object xml = ((Map<?, ?>) res.getResult()).get("formXml");
+            return xml == null || "".equals(xml) ? null : String.valueOf(xml);
+        } catch (Throwable t) {
+            log().d("load form failed", desc, t);
+            return null;
         }
     }
 
+    private String getConnectionName(OperationDescriptor desc) {
+        return desc.getAddress().partSize() > 1
+                ? desc.getAddress().getPart(1)
+                : JmsApiImpl.instance.getDefaultConnectionName();
+    }
+
+    private String createTicket() {
+        AccessApi api = M.l(AccessApi.class);
+        return api == null
+                ? null
+                : api.createTrustTicket(
+                        SopUtil.TRUST_NAME.value(),
+                        api.getCurrent()); // TODO Configurable via execute options
+    }
+
+    private Locale getLocale() {
+        AccessApi api = M.l(AccessApi.class);
+        return api == null || api.getCurrent() == null
+                ? Locale.getDefault()
+                : api.getCurrent().getLocale();
+    }
+
+    // add the value of the tag as option if the option is not set
+    private static String[] addTagOption(
+            OperationDescriptor desc, String tag, String option, String... executeOptions) {
+        String value = OperationUtil.getOption(desc.getTags(), tag, null);
+        if (value == null || OperationUtil.getOption(executeOptions, option, null) != null)
+            return executeOptions;
+        String[] out =
+                executeOptions == null
+                        ? new String[1]
+                        : Arrays.copyOf(executeOptions, executeOptions.length + 1);
+        out[out.length - 1] = option + "=" + value;
+        return out;
+    }
+
     public OperationResult doExecuteOperation(
             JmsConnection con,
             String queueName,
@@ -182,129 +501,271 @@ public class JmsOperationProvider extends MLog implements OperationsProvider {
             String... options)
             throws Exception {
 
+        Message msg = createRequest(con, operationName, version, parameters, ticket, l, options);
+
+        // Send Request
+
+        log().d(operationName, "sending Message", queueName, msg, options);
+
+        if (OperationUtil.isOption(options, JmsApi.OPT_ONE_WAY)) {
+            sendJmsOneWay(con, queueName, msg);
+            return null;
+        }
+
+        Message answer = sendJms(con, queueName, msg, timeout);
+
+        // Process Answer
+
+        return processAnswer(con, queueName, operationName, answer);
+    }
+
+    /**
+     * Send the request and return a future completed by the reply listener. If the shared client
+     * is disabled the operation is executed synchronously.
+     */
+    public CompletableFuture<OperationResult> doExecuteOperationAsync(
+            JmsConnection con,
+            String queueName,
+            String operationName,
+            String version,
+            IProperties parameters,
+            String ticket,
+            Locale l,
+            long timeout,
+            String... options)
+            throws Exception {
+
+        if (!CFG_SHARED_CLIENT.value())
+            return CompletableFuture.completedFuture(
+                    doExecuteOperation(
+                            con,
+                            queueName,
+                            operationName,
+                            version,
+                            parameters,
+                            ticket,
+                            l,
+                            timeout,
+                            options));
+
+        Message msg = createRequest(con, operationName, version, parameters, ticket, l, options);
+
+        log().d(operationName, "sending Message", queueName, msg, options);
+
+        if (OperationUtil.isOption(options, JmsApi.OPT_ONE_WAY)) {
+            getClient(con).sendJmsOneWay(queueName, msg);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return getClient(con)
+                .sendJmsAsync(queueName, msg, timeout)
+                .thenApply(
+                        answer -> {
+                            try {
+                                return processAnswer(con, queueName, operationName, answer);
+                            } catch (Exception e) {
+                                throw new CompletionException(e);
+                            }
+                        });
+    }
+
+    private Message createRequest(
+            JmsConnection con,
+            String operationName,
+            String version,
+            IProperties parameters,
+            String ticket,
+            Locale l,
+            String... options)
+            throws JMSException {
+
         if (con == null) throw new JMSException("connection is null");
-        try (ClientJms client = new ClientJms(con.createQueue(queueName))) {
 
-            boolean needObject = false;
-            if (!OperationUtil.isOption(options, JmsApi.OPT_FORCE_MAP_MESSAGE)) {
-                for (Entry<String, Object> item : parameters) {
-                    Object value = item.getValue();
-                    if (!MJms.isMapProperty(value)) {
-                        needObject = true;
-                        break;
-                    }
+        Message msg = createCodecRequest(con, parameters, options);
+
+        boolean needObject = false;
+        if (msg == null && !OperationUtil.isOption(options, JmsApi.OPT_FORCE_MAP_MESSAGE)) {
+            for (Entry<String, Object> item : parameters) {
+                Object value = item.getValue();
+                if (!MJms.isMapProperty(value)) {
+                    needObject = true;
+                    break;
                 }
             }
+        }
 
-            Message msg = null;
-            if (needObject) {
-                msg = con.createObjectMessage((MProperties) parameters);
-            } else {
-                msg = con.createMapMessage();
-                for (Entry<String, Object> item : parameters) {
-                    String name = item.getKey();
-                    // if (!name.startsWith("_"))
-                    Object value = item.getValue();
-                    if (value != null && value instanceof Date)
-                        value = MDate.toIsoDateTime((Date) value);
-                    else if (value != null
-                            && !(value instanceof String)
-                            && !value.getClass().isPrimitive()) value = String.valueOf(value);
-                    ((MapMessage) msg).setObject(name, value);
-                }
-                ((MapMessage) msg).getMapNames();
+        if (msg != null) {
+            // encoded by the codec
+        } else if (needObject) {
+            msg = con.createObjectMessage((MProperties) parameters);
+        } else {
+            msg = con.createMapMessage();
+            for (Entry<String, Object> item : parameters) {
+                String name = item.getKey();
+                // if (!name.startsWith("_"))
+                Object value = item.getValue();
+                if (value != null && value instanceof Date)
+                    value = MDate.toIsoDateTime((Date) value);
+                else if (value != null
+                        && !(value instanceof String)
+                        && !value.getClass().isPrimitive()) value = String.valueOf(value);
+                ((MapMessage) msg).setObject(name, value);
             }
+            ((MapMessage) msg).getMapNames();
+        }
 
-            msg.setStringProperty(Sop.PARAM_OPERATION_PATH, operationName);
-            msg.setStringProperty(Sop.PARAM_OPERATION_VERSION, version);
+        msg.setStringProperty(Sop.PARAM_OPERATION_PATH, operationName);
+        msg.setStringProperty(Sop.PARAM_OPERATION_VERSION, version);
 
-            if (l == null) l = Locale.getDefault();
-            String locale = l.toString();
+        if (l == null) l = Locale.getDefault();
+        String locale = l.toString();
 
-            msg.setStringProperty(Sop.PARAM_AAA_TICKET, ticket);
-            msg.setStringProperty(Sop.PARAM_LOCALE, locale);
+        msg.setStringProperty(Sop.PARAM_AAA_TICKET, ticket);
+        msg.setStringProperty(Sop.PARAM_LOCALE, locale);
 
-            msg.setStringProperty("source", ident);
-            msg.setStringProperty("host", MSystem.getHostname());
+        msg.setStringProperty("source", ident);
+        msg.setStringProperty("host", MSystem.getHostname());
 
-            client.setTimeout(timeout);
-            // Send Request
+        int priority =
+                Math.max(0, Math.min(9, OperationUtil.getOption(options, JmsApi.OPT_PRIORITY, 4)));
+        msg.setIntProperty(Sop.PARAM_PRIORITY, priority);
+        msg.setJMSPriority(priority);
 
-            log().d(operationName, "sending Message", queueName, msg, options);
+        if (CFG_SHARED_CLIENT.value()
+                && (CFG_STREAM_RESULTS.value()
+                        || OperationUtil.isOption(options, JmsApi.OPT_STREAM)))
+            msg.setBooleanProperty(Sop.PARAM_STREAM, true);
 
-            if (OperationUtil.isOption(options, JmsApi.OPT_ONE_WAY)) {
-                client.sendJmsOneWay(msg);
-                return null;
-            }
+        return msg;
+    }
 
-            Message answer = client.sendJms(msg);
+    // encode the parameters with the codec of the options, null if not possible
+    private Message createCodecRequest(JmsConnection con, IProperties parameters, String... options)
+            throws JMSException {
+        OperationCodec codec =
+                CodecUtil.getCodec(OperationUtil.getOption(options, JmsApi.OPT_CODEC, null));
+        if (codec == null || !codec.canEncode(parameters) || con.getSession() == null) return null;
+        byte[] data;
+        try {
+            data = CodecUtil.encode(codec, parameters, CFG_CODEC_COMPRESS_THRESHOLD.value());
+        } catch (IOException e) {
+            log().d("can't encode parameters", codec.getName(), e);
+            return null;
+        }
+        BytesMessage msg = con.getSession().createBytesMessage();
+        msg.writeBytes(data);
+        msg.setStringProperty(Sop.PARAM_CODEC, codec.getName());
+        return msg;
+    }
 
-            // Process Answer
+    private OperationResult processAnswer(
+            JmsConnection con, String queueName, String operationName, Message answer)
+            throws Exception {
 
-            OperationResult out = new OperationResult();
-            out.setOperationPath(operationName);
-            if (answer == null) {
-                log().d(queueName, operationName, "answer is null");
-                out.setSuccessful(false);
-                out.setMsg("answer is null");
-                out.setReturnCode(OperationResult.INTERNAL_ERROR);
-            } else {
-                // remote error handling
-                String errorMsg = answer.getStringProperty(Sop.PARAM_ERROR);
-                if (errorMsg != null) {
-                    throw new MException("Remote error", errorMsg);
-                }
+        OperationResult out = new OperationResult();
+        out.setOperationPath(operationName);
+        if (answer == null) {
+            log().d(queueName, operationName, "answer is null");
+            out.setSuccessful(false);
+            out.setMsg("answer is null");
+            out.setReturnCode(OperationResult.INTERNAL_ERROR);
+        } else {
+            // remote error handling
+            String errorMsg = answer.getStringProperty(Sop.PARAM_ERROR);
+            if (errorMsg != null) {
+                throw new MException("Remote error", errorMsg);
+            }
 
-                // check if technical successful
-                boolean successful = answer.getBooleanProperty(Sop.PARAM_SUCCESSFUL);
-                out.setSuccessful(successful);
-
-                if (!successful) out.setMsg(answer.getStringProperty(Sop.PARAM_MSG));
-                out.setReturnCode(answer.getLongProperty(Sop.PARAM_RC));
-
-                // if (successful) { // also errors can have a result object
-
-                if (answer instanceof MapMessage) {
-                    MapMessage mapMsg = (MapMessage) answer;
-                    out.setResult(MJms.getMapProperties(mapMsg));
-                } else if (answer instanceof TextMessage) {
-                    out.setMsg(((TextMessage) answer).getText());
-                    out.setResult(out.getMsg());
-                } else if (answer instanceof BytesMessage) {
-
-                    File tmpFile = TempFile.createTempFile(MSystem.getPid() + "_jms_msg", ".bin");
-
-                    FileOutputStream os = new FileOutputStream(tmpFile);
-                    BytesMessage m = (BytesMessage) answer;
-                    long length = m.getBodyLength();
-                    byte[] buffer = new byte[1024 * 10];
-                    long done = 0;
-                    while (done < length) {
-                        int size = m.readBytes(buffer);
-                        if (size > 0) {
-                            os.write(buffer, 0, size);
-                        }
-                        done += size;
+            // check if technical successful
+            boolean successful = answer.getBooleanProperty(Sop.PARAM_SUCCESSFUL);
+            out.setSuccessful(successful);
+
+            if (!successful) out.setMsg(answer.getStringProperty(Sop.PARAM_MSG));
+            out.setReturnCode(answer.getLongProperty(Sop.PARAM_RC));
+
+            // if (successful) { // also errors can have a result object
+
+            String encoding = answer.getStringProperty("_encoding");
+            if ("codec".equals(encoding)) {
+                String name = answer.getStringProperty(Sop.PARAM_CODEC);
+                OperationCodec codec = CodecUtil.getCodec(name);
+                if (codec == null) throw new MException("codec not found", name);
+                BytesMessage m = (BytesMessage) answer;
+                byte[] data = new byte[(int) m.getBodyLength()];
+                m.readBytes(data);
+                out.setResult(CodecUtil.decode(codec, data));
+            } else if ("chunked".equals(encoding)) {
+                // the chunks follow, the caller must close the stream
+                out.setResult(
+                        getClient(con)
+                                .openStream(
+                                        answer,
+                                        CFG_STREAM_WINDOW.value(),
+                                        CFG_STREAM_TIMEOUT.value()));
+            } else if (answer instanceof MapMessage) {
+                MapMessage mapMsg = (MapMessage) answer;
+                out.setResult(MJms.getMapProperties(mapMsg));
+            } else if (answer instanceof TextMessage) {
+                out.setMsg(((TextMessage) answer).getText());
+                out.setResult(out.getMsg());
+            } else if (answer instanceof BytesMessage) {
+
+                File tmpFile = TempFile.createTempFile(MSystem.getPid() + "_jms_msg", ".bin");
+
+                FileOutputStream os = new FileOutputStream(tmpFile);
+                BytesMessage m = (BytesMessage) answer;
+                long length = m.getBodyLength();
+                byte[] buffer = new byte[1024 * 10];
+                long done = 0;
+                while (done < length) {
+                    int size = m.readBytes(buffer);
+                    if (size > 0) {
+                        os.write(buffer, 0, size);
                     }
-                    os.close();
+                    done += size;
+                }
+                os.close();
 
-                    out.setResult(tmpFile);
+                out.setResult(tmpFile);
 
-                } else if (answer instanceof ObjectMessage) {
-                    Serializable obj = ((ObjectMessage) answer).getObject();
-                    if (obj == null) {
-                        out.setResult(null);
-                    } else {
-                        out.setResult(obj);
-                    }
+            } else if (answer instanceof ObjectMessage) {
+                Serializable obj = ((ObjectMessage) answer).getObject();
+                if (obj == null) {
+                    out.setResult(null);
+                } else {
+                    out.setResult(obj);
                 }
-                // }
             }
+            // }
+        }
 
-            return out;
+        return out;
+    }
+
+    private Message sendJms(JmsConnection con, String queueName, Message msg, long timeout)
+            throws Exception {
+        if (CFG_SHARED_CLIENT.value()) return getClient(con).sendJms(queueName, msg, timeout);
+        try (ClientJms client = new ClientJms(con.createQueue(queueName))) {
+            client.setTimeout(timeout);
+            return client.sendJms(msg);
         }
     }
 
+    private void sendJmsOneWay(JmsConnection con, String queueName, Message msg)
+            throws Exception {
+        if (CFG_SHARED_CLIENT.value()) {
+            getClient(con).sendJmsOneWay(queueName, msg);
+            return;
+        }
+        try (ClientJms client = new ClientJms(con.createQueue(queueName))) {
+            client.sendJmsOneWay(msg);
+        }
+    }
+
+    private JmsOperationClient getClient(JmsConnection con) {
+        return clients.computeIfAbsent(con, c -> new JmsOperationClient(c));
+    }
+
     @Override
     public OperationDescriptor getOperation(OperationAddress addr) throws NotFoundException {
         if (!JmsRegistryProvider.CFG_ENABLED.value()) return null;
@@ -313,30 +774,31 @@ public class JmsOperationProvider extends MLog implements OperationsProvider {
         String path = addr.getPath();
         String version = addr.getVersionString();
         String ident = connection + "," + queue + "," + path + "," + version;
-        synchronized (JmsApiImpl.instance.register) {
-            JmsOperationDescriptor res = JmsApiImpl.instance.register.get(ident);
-            if (res == null) throw new NotFoundException("operation not found", addr);
-            return res;
-        }
+        JmsOperationDescriptor res = JmsApiImpl.instance.register.get(ident);
+        if (res == null) throw new NotFoundException("operation not found", addr);
+        return res;
     }
 
+    /**
+     * Request the operations of all nodes. The method returns at once, operations not updated
+     * until the next call after staleTimeout are removed.
+     */
     @Override
     public void synchronize() {
         if (!JmsRegistryProvider.CFG_ENABLED.value()) return;
+        long now = System.currentTimeMillis();
+        long since = staleSince;
+        if (since > 0 && now - since >= CFG_STALE_TIMEOUT.value()) {
+            // remove staled - if not updated since the request
+            JmsApiImpl.instance.register.removeIf(desc -> desc.getLastUpdated() < since);
+            staleSince = 0;
+        }
         if (MPeriod.isTimeOut(
                 JmsApiImpl.instance.lastRegistryRequest,
                 JmsRegistryProvider.CFG_SYNCHRONIZE_WAIT.value())) {
-            long now = System.currentTimeMillis();
+            JmsApiImpl.instance.lastRegistryRequest = now;
             JmsApiImpl.instance.requestOperationRegistry();
-            MThread.sleep(30000);
-
-            // remove staled - if not updated in the last 30 seconds
-            synchronized (JmsApiImpl.instance.register) {
-                JmsApiImpl.instance
-                        .register
-                        .entrySet()
-                        .removeIf(e -> e.getValue().getLastUpdated() < now);
-            }
+            if (staleSince == 0) staleSince = now;
         }
     }
 }
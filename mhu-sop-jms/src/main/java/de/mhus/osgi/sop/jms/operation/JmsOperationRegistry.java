@@ -0,0 +1,193 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.jms.operation;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+import de.mhus.lib.core.util.VersionRange;
+import de.mhus.osgi.sop.api.operation.OperationFilter;
+import de.mhus.osgi.sop.api.operation.OperationFilter.PathPattern;
+import de.mhus.osgi.sop.jms.operation.JmsApiImpl.JmsOperationDescriptor;
+
+/**
+ * Registry of the remote operations with indexes by path and tag. Lookups do not lock, changes are
+ * synchronized on the registry. Filters without wildcard use the exact path, wildcard filters
+ * only the paths with the same prefix. The tags narrow the candidates before the full match.
+ */
+public class JmsOperationRegistry {
+
+    private ConcurrentHashMap<String, JmsOperationDescriptor> byIdent = new ConcurrentHashMap<>();
+    private ConcurrentSkipListMap<String, Set<JmsOperationDescriptor>> byPath =
+            new ConcurrentSkipListMap<>();
+    private ConcurrentHashMap<String, Set<JmsOperationDescriptor>> byTag =
+            new ConcurrentHashMap<>();
+    private volatile long revision;
+
+    public JmsOperationDescriptor get(String ident) {
+        return byIdent.get(ident);
+    }
+
+    public synchronized void put(String ident, JmsOperationDescriptor desc) {
+        JmsOperationDescriptor old = byIdent.put(ident, desc);
+        if (old == desc) return;
+        revision++;
+        if (old != null) unindex(old);
+        byPath.computeIfAbsent(desc.getPath(), k -> ConcurrentHashMap.newKeySet()).add(desc);
+        if (desc.getTags() != null)
+            for (String tag : desc.getTags())
+                byTag.computeIfAbsent(tag, k -> ConcurrentHashMap.newKeySet()).add(desc);
+    }
+
+    public synchronized JmsOperationDescriptor remove(String ident) {
+        JmsOperationDescriptor old = byIdent.remove(ident);
+        if (old != null) {
+            revision++;
+            unindex(old);
+        }
+        return old;
+    }
+
+    public synchronized boolean removeIf(Predicate<JmsOperationDescriptor> filter) {
+        boolean removed = false;
+        for (Map.Entry<String, JmsOperationDescriptor> entry : byIdent.entrySet()) {
+            if (filter.test(entry.getValue())) {
+                remove(entry.getKey());
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        revision++;
+        byIdent.clear();
+        byPath.clear();
+        byTag.clear();
+    }
+
+    public Collection<JmsOperationDescriptor> values() {
+        return Collections.unmodifiableCollection(byIdent.values());
+    }
+
+    public int size() {
+        return byIdent.size();
+    }
+
+    /**
+     * Return a number changed with every change of the registry.
+     *
+     * @return The revision
+     */
+    public long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Find the operations matching the filter.
+     *
+     * @param list Add the found operations to the list
+     * @param filter Path filter or null
+     * @param version Version range or null
+     * @param providedTags Tags or null
+     * @param first Return after the first match
+     * @return true if an operation was found
+     */
+    public boolean find(
+            List<? super JmsOperationDescriptor> list,
+            String filter,
+            VersionRange version,
+            Collection<String> providedTags,
+            boolean first) {
+        boolean found = false;
+        OperationFilter matcher = OperationFilter.compile(filter, version, providedTags);
+        Set<JmsOperationDescriptor> tagged = getTagCandidates(providedTags);
+        if (tagged != null) {
+            // the tag is more selective than a wildcard filter
+            if (filter == null || OperationFilter.getPattern(filter).getPrefix().isEmpty()) {
+                for (JmsOperationDescriptor desc : tagged) {
+                    if (matcher.matches(desc)) {
+                        list.add(desc);
+                        if (first) return true;
+                        found = true;
+                    }
+                }
+                return found;
+            }
+        }
+        for (Set<JmsOperationDescriptor> bucket : getPathCandidates(filter)) {
+            for (JmsOperationDescriptor desc : bucket) {
+                if (matcher.matches(desc)) {
+                    list.add(desc);
+                    if (first) return true;
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    private Collection<Set<JmsOperationDescriptor>> getPathCandidates(String filter) {
+        if (filter == null) return byPath.values();
+        PathPattern pattern = OperationFilter.getPattern(filter);
+        String prefix = pattern.getPrefix();
+        if (pattern.isExact()) {
+            Set<JmsOperationDescriptor> bucket = byPath.get(filter);
+            return bucket == null
+                    ? Collections.emptyList()
+                    : Collections.singletonList(bucket);
+        }
+        if (prefix.length() == 0) return byPath.values();
+        NavigableMap<String, Set<JmsOperationDescriptor>> sub =
+                byPath.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        return sub.values();
+    }
+
+    // smallest set of operations with one of the required tags or null
+    private Set<JmsOperationDescriptor> getTagCandidates(Collection<String> providedTags) {
+        if (providedTags == null) return null;
+        Set<JmsOperationDescriptor> out = null;
+        for (String tag : providedTags) {
+            if (tag.startsWith("!")) continue;
+            Set<JmsOperationDescriptor> set = byTag.get(tag);
+            if (set == null) return Collections.emptySet();
+            if (out == null || set.size() < out.size()) out = set;
+        }
+        return out;
+    }
+
+    private void unindex(JmsOperationDescriptor desc) {
+        Set<JmsOperationDescriptor> bucket = byPath.get(desc.getPath());
+        if (bucket != null) {
+            bucket.remove(desc);
+            if (bucket.isEmpty()) byPath.remove(desc.getPath());
+        }
+        if (desc.getTags() != null) {
+            for (String tag : desc.getTags()) {
+                Set<JmsOperationDescriptor> set = byTag.get(tag);
+                if (set != null) {
+                    set.remove(desc);
+                    if (set.isEmpty()) byTag.remove(tag);
+                }
+            }
+        }
+    }
+}
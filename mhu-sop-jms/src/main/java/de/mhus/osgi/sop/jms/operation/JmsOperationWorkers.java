@@ -0,0 +1,263 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.jms.operation;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.mhus.lib.core.MLog;
+
+/**
+ * Executes incoming operations with a pool of threads. The tasks are queued in lanes by priority,
+ * the workers take the next task by weighted round robin over all non empty lanes. Higher lanes
+ * get more workers but lower lanes are never starved.
+ *
+ * <p>The queue of every lane is bounded, if it is full the task is rejected at once and the caller
+ * answers busy. The submitting thread must never wait for a lane, otherwise a full low lane would
+ * stop the high priority messages too. Queued tasks are executed before the workers stop.
+ */
+public class JmsOperationWorkers extends MLog {
+
+    /** Lane of JMS priorities 0-3 */
+    public static final int LANE_LOW = 0;
+    /** Lane of JMS priorities 4-6, 4 is the JMS default */
+    public static final int LANE_NORMAL = 1;
+    /** Lane of JMS priorities 7-9 */
+    public static final int LANE_HIGH = 2;
+
+    private Lane[] lanes;
+    private int queueSize;
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition notEmpty = lock.newCondition();
+    private Thread[] threads;
+    private volatile boolean running = true;
+    private AtomicInteger active = new AtomicInteger();
+    private AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param name Name prefix of the threads
+     * @param threads Number of threads
+     * @param queueSize Maximum number of waiting tasks per lane
+     * @param weights Weights of the lanes low, normal and high
+     */
+    public JmsOperationWorkers(String name, int threads, int queueSize, int[] weights) {
+        this.queueSize = Math.max(1, queueSize);
+        lanes = new Lane[3];
+        for (int i = 0; i < lanes.length; i++) {
+            int weight = weights != null && weights.length > i ? weights[i] : 1;
+            lanes[i] = new Lane(Math.max(1, weight));
+        }
+        this.threads = new Thread[Math.max(1, threads)];
+        for (int i = 0; i < this.threads.length; i++) {
+            this.threads[i] = new Thread(this::work, name + " " + (i + 1));
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    public static int getLane(int priority) {
+        if (priority >= 7) return LANE_HIGH;
+        if (priority >= 4) return LANE_NORMAL;
+        return LANE_LOW;
+    }
+
+    /**
+     * Execute the task in a worker thread. Does not wait if the lane is full.
+     *
+     * @param priority JMS priority 0-9
+     * @param task The task
+     * @return false if the task was rejected
+     */
+    public boolean execute(int priority, Runnable task) {
+        Lane lane = lanes[getLane(priority)];
+        Task t = new Task(task);
+        lock.lock();
+        try {
+            if (!running) return false;
+            if (lane.queue.size() >= queueSize) {
+                rejected.incrementAndGet();
+                lane.rejected++;
+                log().d("operation rejected", priority);
+                return false;
+            }
+            lane.queue.add(t);
+            if (lane.queue.size() > lane.maxQueueSize) lane.maxQueueSize = lane.queue.size();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // smooth weighted round robin over the non empty lanes
+    private Lane next() {
+        Lane best = null;
+        int total = 0;
+        for (Lane lane : lanes) {
+            if (lane.queue.isEmpty()) continue;
+            lane.current += lane.weight;
+            total += lane.weight;
+            if (best == null || lane.current > best.current) best = lane;
+        }
+        if (best != null) best.current -= total;
+        return best;
+    }
+
+    private void work() {
+        // drain the lanes after close, the callers wait for the queued tasks
+        while (true) {
+            Lane lane;
+            Task task;
+            lock.lock();
+            try {
+                lane = next();
+                while (running && lane == null) {
+                    notEmpty.await();
+                    lane = next();
+                }
+                if (lane == null) return;
+                task = lane.queue.poll();
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            long start = System.currentTimeMillis();
+            active.incrementAndGet();
+            try {
+                task.task.run();
+            } catch (Throwable t) {
+                log().d(t);
+            } finally {
+                active.decrementAndGet();
+                long end = System.currentTimeMillis();
+                lane.executed.incrementAndGet();
+                lane.waitTime.addAndGet(start - task.created);
+                lane.maxWaitTime.accumulateAndGet(start - task.created, Math::max);
+                lane.executionTime.addAndGet(end - start);
+                lane.maxExecutionTime.accumulateAndGet(end - start, Math::max);
+            }
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getThreads() {
+        return threads.length;
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (int i = 0; i < lanes.length; i++) size += getQueueSize(i);
+        return size;
+    }
+
+    public int getQueueSize(int lane) {
+        lock.lock();
+        try {
+            return lanes[lane].queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxQueueSize(int lane) {
+        return lanes[lane].maxQueueSize;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    public int getWeight(int lane) {
+        return lanes[lane].weight;
+    }
+
+    public long getExecuted() {
+        long cnt = 0;
+        for (Lane lane : lanes) cnt += lane.executed.get();
+        return cnt;
+    }
+
+    public long getExecuted(int lane) {
+        return lanes[lane].executed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getRejected(int lane) {
+        return lanes[lane].rejected;
+    }
+
+    public long getAverageWaitTime(int lane) {
+        long cnt = lanes[lane].executed.get();
+        return cnt == 0 ? 0 : lanes[lane].waitTime.get() / cnt;
+    }
+
+    public long getMaxWaitTime(int lane) {
+        return lanes[lane].maxWaitTime.get();
+    }
+
+    public long getAverageExecutionTime(int lane) {
+        long cnt = lanes[lane].executed.get();
+        return cnt == 0 ? 0 : lanes[lane].executionTime.get() / cnt;
+    }
+
+    public long getMaxExecutionTime(int lane) {
+        return lanes[lane].maxExecutionTime.get();
+    }
+
+    private class Lane {
+        private int weight;
+        private int current;
+        private ArrayDeque<Task> queue = new ArrayDeque<>();
+        private volatile int maxQueueSize;
+        private volatile long rejected;
+        private AtomicLong executed = new AtomicLong();
+        private AtomicLong waitTime = new AtomicLong();
+        private AtomicLong maxWaitTime = new AtomicLong();
+        private AtomicLong executionTime = new AtomicLong();
+        private AtomicLong maxExecutionTime = new AtomicLong();
+
+        private Lane(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static class Task {
+        private Runnable task;
+        private long created = System.currentTimeMillis();
+
+        private Task(Runnable task) {
+            this.task = task;
+        }
+    }
+}
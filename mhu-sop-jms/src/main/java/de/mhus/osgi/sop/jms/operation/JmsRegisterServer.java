@@ -15,7 +15,11 @@ package de.mhus.osgi.sop.jms.operation;
 
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jms.JMSException;
 import javax.jms.MapMessage;
@@ -23,15 +27,13 @@ import javax.jms.Message;
 
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Reference;
-import org.w3c.dom.Document;
 
 import de.mhus.lib.core.M;
+import de.mhus.lib.core.MCast;
 import de.mhus.lib.core.MCollection;
 import de.mhus.lib.core.MThread;
-import de.mhus.lib.core.MXml;
-import de.mhus.lib.core.definition.DefRoot;
+import de.mhus.lib.core.base.service.ServerIdent;
 import de.mhus.lib.core.strategy.OperationDescription;
-import de.mhus.lib.form.ModelUtil;
 import de.mhus.lib.jms.JmsChannel;
 import de.mhus.lib.jms.JmsDestination;
 import de.mhus.lib.jms.ServerJms;
@@ -39,6 +41,7 @@ import de.mhus.osgi.api.jms.JmsDataChannel;
 import de.mhus.osgi.jms.services.AbstractJmsDataChannel;
 import de.mhus.osgi.sop.api.jms.JmsApi;
 import de.mhus.osgi.sop.api.operation.OperationAddress;
+import de.mhus.osgi.sop.api.registry.RegistryDigest;
 import de.mhus.osgi.sop.api.registry.RegistryManager;
 import de.mhus.osgi.sop.api.registry.RegistryValue;
 import de.mhus.osgi.sop.jms.operation.JmsApiImpl.JmsOperationDescriptor;
@@ -53,6 +56,8 @@ import de.mhus.osgi.sop.jms.operation.JmsApiImpl.JmsOperationDescriptor;
 public class JmsRegisterServer extends AbstractJmsDataChannel {
 
     private JmsApi jmsApi;
+    // receive time of the first part of bucket publishes by ident and depth
+    private ConcurrentHashMap<String, Long> bucketParts = new ConcurrentHashMap<>();
 
     @Reference
     public void setJmsApi(JmsApi api) {
@@ -87,7 +92,10 @@ public class JmsRegisterServer extends AbstractJmsDataChannel {
                     JmsApiImpl.instance.lastRegistryRequest = System.currentTimeMillis();
                     JmsApiImpl.instance.sendLocalOperations();
                 } else if ("registryrequest".equals(type)) {
-                    JmsApiImpl.instance.sendLocalRegistry();
+                    if (m.getBooleanProperty("digest")
+                            && JmsRegistryProvider.CFG_DELTA_SYNC.value())
+                        JmsApiImpl.instance.sendLocalDigest();
+                    else JmsApiImpl.instance.sendLocalRegistry();
                 }
 
                 if (msg instanceof MapMessage
@@ -98,95 +106,13 @@ public class JmsRegisterServer extends AbstractJmsDataChannel {
                                                 "queue")) // do not process my own messages
                 ) {
 
-                    if ("operations".equals(type)) {
-                        String queue = m.getStringProperty("queue");
-                        String connection = jmsApi.getDefaultConnectionName(); // TODO configurable?
-                        int cnt = 0;
-                        String path = null;
-                        synchronized (JmsApiImpl.instance.register) {
-                            long now = System.currentTimeMillis();
-                            while (m.getString("operation" + cnt) != null) {
-                                path = m.getString("operation" + cnt);
-                                String version = m.getString("version" + cnt);
-                                String tags = m.getString("tags" + cnt);
-                                String title = m.getString("title" + cnt);
-                                String form = m.getString("form" + cnt);
-                                String acl = m.getString("acl" + cnt);
-                                UUID uuid = UUID.fromString(m.getString("uuid" + cnt));
-                                DefRoot model = null;
-                                if (form != null) {
-                                    try {
-                                        Document doc = MXml.loadXml(form);
-                                        model = ModelUtil.toModel(doc.getDocumentElement());
-                                    } catch (Throwable t) {
-                                    }
-                                }
-                                HashMap<String, String> parameters = null;
-                                for (@SuppressWarnings("unchecked")
-                                        Enumeration<String> enu = m.getMapNames();
-                                        enu.hasMoreElements(); ) {
-                                    String key = enu.nextElement();
-                                    String start = "param" + cnt + ".";
-                                    if (key.startsWith(start)) {
-                                        if (parameters == null) parameters = new HashMap<>();
-                                        parameters.put(
-                                                key.substring(start.length()), m.getString(key));
-                                    }
-                                }
-                                cnt++;
-                                String ident =
-                                        connection + "," + queue + "," + path + "," + version;
-                                JmsOperationDescriptor desc =
-                                        JmsApiImpl.instance.register.get(ident);
-                                if (desc == null) {
-                                    OperationAddress a =
-                                            new OperationAddress(
-                                                    JmsOperationProvider.PROVIDER_NAME
-                                                            + "://"
-                                                            + path
-                                                            + ":"
-                                                            + version
-                                                            + "/"
-                                                            + queue
-                                                            + "/"
-                                                            + connection);
-                                    OperationDescription d =
-                                            new OperationDescription(
-                                                    uuid,
-                                                    a.getGroup(),
-                                                    a.getName(),
-                                                    a.getVersion(),
-                                                    null,
-                                                    title);
-                                    d.setForm(model);
-                                    d.setParameters(parameters);
-                                    desc =
-                                            new JmsOperationDescriptor(
-                                                    uuid,
-                                                    a,
-                                                    d,
-                                                    tags == null
-                                                            ? null
-                                                            : MCollection.toTreeSet(
-                                                                    tags.split(";")),
-                                                    acl);
-                                    JmsApiImpl.instance.register.put(ident, desc);
-                                }
-                                desc.setLastUpdated();
-                            }
-                            // remove stare
-                            JmsApiImpl.instance
-                                    .register
-                                    .entrySet()
-                                    .removeIf(
-                                            entry ->
-                                                    entry.getValue()
-                                                                    .getAddress()
-                                                                    .getPart(0)
-                                                                    .equals(queue)
-                                                            && entry.getValue().getLastUpdated()
-                                                                    < now);
-                        }
+                    if ("operations".equals(type) || "catalog".equals(type)) {
+                        receivedCatalog(m);
+                    } else if ("catalogrequest".equals(type)) {
+                        if (Jms2LocalOperationExecuteChannel.CFG_QUEUE_NAME
+                                .value()
+                                .equals(m.getStringProperty("target")))
+                            JmsApiImpl.instance.sendLocalOperations(true);
                     } else if ("registrypublish".equals(type)) {
                         RegistryManager api = M.l(RegistryManager.class);
                         int cnt = 0;
@@ -215,6 +141,63 @@ public class JmsRegisterServer extends AbstractJmsDataChannel {
                                 if (value.getSource().equals(ident) && value.getUpdated() < updated)
                                     api.removeParameterFromRemote(value.getPath(), ident);
                             }
+                        } else if ("buckets".equals(scope)) {
+                            // full scope restricted to the sent sub trees, the entries can be
+                            // sent in parts, remove old entries after the last part
+                            int depth = m.getIntProperty("depth");
+                            String key = ident + ":" + depth;
+                            int part = m.propertyExists("part") ? m.getIntProperty("part") : 0;
+                            boolean last =
+                                    !m.propertyExists("last") || m.getBooleanProperty("last");
+                            Long since = updated;
+                            if (!last) {
+                                if (part == 0) bucketParts.put(key, updated);
+                                since = null;
+                            } else if (part > 0) since = bucketParts.remove(key);
+                            // without all parts the next digest will find the differences
+                            if (since != null) {
+                                // buckets are path prefixes, read only their ranges
+                                LinkedList<String> remove = new LinkedList<>();
+                                cnt = 0;
+                                while (m.getString("bucket" + cnt) != null) {
+                                    String bucket = m.getString("bucket" + cnt);
+                                    remove.addAll(getOutdated(api, ident, bucket, depth, since));
+                                    cnt++;
+                                }
+                                for (String path : remove)
+                                    api.removeParameterFromRemote(path, ident);
+                            }
+                        }
+                    } else if ("registrydigest".equals(type)) {
+                        RegistryManager api = M.l(RegistryManager.class);
+                        String ident = m.getStringProperty("ident");
+                        int depth = m.getIntProperty("depth");
+                        RegistryDigest local = api.getDigest(ident, depth);
+                        if (local.getRoot() != m.getLongProperty("root")) {
+                            RegistryDigest remote = new RegistryDigest(depth);
+                            int cnt = 0;
+                            while (m.getString("bucket" + cnt) != null) {
+                                remote.add(
+                                        m.getString("bucket" + cnt),
+                                        m.getLong("hash" + cnt),
+                                        m.getLong("count" + cnt));
+                                cnt++;
+                            }
+                            Set<String> diff = remote.getDifferences(local);
+                            if (!diff.isEmpty())
+                                JmsApiImpl.instance.requestRegistryBuckets(ident, depth, diff);
+                        }
+                    } else if ("registrypull".equals(type)) {
+                        String target = m.getStringProperty("target");
+                        if (M.l(ServerIdent.class).getIdent().equals(target)) {
+                            int depth = m.getIntProperty("depth");
+                            LinkedList<String> buckets = new LinkedList<>();
+                            int cnt = 0;
+                            while (m.getString("bucket" + cnt) != null) {
+                                buckets.add(m.getString("bucket" + cnt));
+                                cnt++;
+                            }
+                            JmsApiImpl.instance.sendLocalRegistry(depth, buckets);
                         }
                     } else if ("registryremove".equals(type)) {
                         RegistryManager api = M.l(RegistryManager.class);
@@ -242,4 +225,140 @@ public class JmsRegisterServer extends AbstractJmsDataChannel {
         connectionName = jmsApi.getDefaultConnectionName();
         return connectionName;
     }
+
+    /*
+     * Catalog messages of other nodes. A full catalog is ignored if the hash is already known,
+     * changes are applied only on the known base, otherwise the full catalog is requested.
+     */
+    private void receivedCatalog(MapMessage m) throws JMSException {
+        JmsApiImpl api = JmsApiImpl.instance;
+        String queue = m.getStringProperty("queue");
+        String connection = jmsApi.getDefaultConnectionName(); // TODO configurable?
+        String scope = m.propertyExists("scope") ? m.getStringProperty("scope") : "full";
+        boolean hasHash = m.propertyExists("hash");
+        long hash = hasHash ? m.getLongProperty("hash") : 0;
+        boolean request = false;
+        synchronized (api.register) {
+            long[] known = api.catalogs.get(queue);
+            if (hasHash && known != null && known[0] == hash && touch(queue) == known[1]) return;
+            if ("full".equals(scope)) {
+                long now = System.currentTimeMillis();
+                readOperations(m, queue, connection);
+                // remove stare
+                api.register.removeIf(
+                        desc ->
+                                desc.getAddress().getPart(0).equals(queue)
+                                        && desc.getLastUpdated() < now);
+                if (hasHash) api.catalogs.put(queue, new long[] {hash, m.getIntProperty("count")});
+                else api.catalogs.remove(queue);
+            } else if ("delta".equals(scope)
+                    && known != null
+                    && known[0] == m.getLongProperty("base")) {
+                readOperations(m, queue, connection);
+                int cnt = 0;
+                while (m.getString("removed" + cnt) != null) {
+                    String key = m.getString("removed" + cnt);
+                    api.register.remove(connection + "," + queue + "," + key);
+                    cnt++;
+                }
+                touch(queue);
+                api.catalogs.put(queue, new long[] {hash, m.getIntProperty("count")});
+            } else {
+                // unknown base or changed hash
+                api.catalogs.remove(queue);
+                request = true;
+            }
+        }
+        if (request) api.requestCatalog(queue);
+    }
+
+    // update all operations of the queue, returns the number of operations
+    private long touch(String queue) {
+        long cnt = 0;
+        for (JmsOperationDescriptor desc : JmsApiImpl.instance.register.values()) {
+            if (desc.getAddress().getPart(0).equals(queue)) {
+                desc.setLastUpdated();
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    private void readOperations(MapMessage m, String queue, String connection)
+            throws JMSException {
+        // collect the parameters of all operations in one pass
+        HashMap<Integer, HashMap<String, String>> parameters = new HashMap<>();
+        for (@SuppressWarnings("unchecked") Enumeration<String> enu = m.getMapNames();
+                enu.hasMoreElements(); ) {
+            String key = enu.nextElement();
+            if (!key.startsWith("param")) continue;
+            int pos = key.indexOf('.');
+            if (pos < 0) continue;
+            int cnt = MCast.toint(key.substring(5, pos), -1);
+            if (cnt < 0) continue;
+            parameters
+                    .computeIfAbsent(cnt, k -> new HashMap<>())
+                    .put(key.substring(pos + 1), m.getString(key));
+        }
+
+        int cnt = 0;
+        while (m.getString("operation" + cnt) != null) {
+            String path = m.getString("operation" + cnt);
+            String version = m.getString("version" + cnt);
+            long entryHash = m.itemExists("entryhash" + cnt) ? m.getLong("entryhash" + cnt) : 0;
+            String ident = connection + "," + queue + "," + path + "," + version;
+            JmsOperationDescriptor desc = JmsApiImpl.instance.register.get(ident);
+            // senders without hashes never update an operation
+            if (desc == null || entryHash != 0 && desc.getCatalogHash() != entryHash) {
+                String tags = m.getString("tags" + cnt);
+                String title = m.getString("title" + cnt);
+                String acl = m.getString("acl" + cnt);
+                UUID uuid = UUID.fromString(m.getString("uuid" + cnt));
+                OperationAddress a =
+                        new OperationAddress(
+                                JmsOperationProvider.PROVIDER_NAME
+                                        + "://"
+                                        + path
+                                        + ":"
+                                        + version
+                                        + "/"
+                                        + queue
+                                        + "/"
+                                        + connection);
+                OperationDescription d =
+                        new OperationDescription(
+                                uuid, a.getGroup(), a.getName(), a.getVersion(), null, title);
+                d.setParameters(parameters.get(cnt));
+                desc =
+                        new JmsOperationDescriptor(
+                                uuid,
+                                a,
+                                d,
+                                tags == null ? null : MCollection.toTreeSet(tags.split(";")),
+                                acl);
+                // the form is parsed or loaded on first access
+                desc.setFormXml(m.getString("form" + cnt), m.getBoolean("hasform" + cnt));
+                desc.setCatalogHash(entryHash);
+                JmsApiImpl.instance.register.put(ident, desc);
+            }
+            desc.setLastUpdated();
+            cnt++;
+        }
+    }
+
+    // paths of the source in the bucket not updated since the given time
+    private static List<String> getOutdated(
+            RegistryManager api, String ident, String bucket, int depth, long since) {
+        LinkedList<String> out = new LinkedList<>();
+        api.streamParameters(bucket)
+                .forEach(
+                        value -> {
+                            if (value.getSource().equals(ident)
+                                    && value.getUpdated() < since
+                                    && bucket.equals(
+                                            RegistryDigest.getBucket(value.getPath(), depth)))
+                                out.add(value.getPath());
+                        });
+        return out;
+    }
 }
@@ -13,10 +13,14 @@
  */
 package de.mhus.osgi.sop.jms.operation;
 
+import java.util.Collection;
+
 import org.osgi.service.component.annotations.Component;
+
 import de.mhus.lib.core.MLog;
 import de.mhus.lib.core.MPeriod;
 import de.mhus.lib.core.cfg.CfgBoolean;
+import de.mhus.lib.core.cfg.CfgInt;
 import de.mhus.lib.core.cfg.CfgLong;
 import de.mhus.osgi.sop.api.registry.RegistryProvider;
 import de.mhus.osgi.sop.api.registry.RegistryValue;
@@ -31,17 +35,47 @@ public class JmsRegistryProvider extends MLog implements RegistryProvider {
                     JmsRegistryProvider.class,
                     "synchronizeWait",
                     MPeriod.MINUTE_IN_MILLISECOUNDS * 3);
+    /**
+     * Time in ms to collect registry changes before sending, 0 sends every change at once. Keep it
+     * well below waitForOthers, mutex entries are always sent at once.
+     */
+    public static final CfgLong CFG_PUBLISH_WINDOW =
+            new CfgLong(JmsRegistryProvider.class, "publishWindow", 20);
+    /** Request digests and only the differing sub trees instead of the full registry */
+    public static final CfgBoolean CFG_DELTA_SYNC =
+            new CfgBoolean(JmsRegistryProvider.class, "deltaSync", true);
+    /** Depth of the sub trees used for registry digests */
+    public static final CfgInt CFG_DIGEST_DEPTH =
+            new CfgInt(JmsRegistryProvider.class, "digestDepth", 2);
+    /** Time in ms a requested sub tree is not sent again */
+    public static final CfgLong CFG_PULL_DEBOUNCE =
+            new CfgLong(JmsRegistryProvider.class, "pullDebounce", 2000);
+    /** Maximum number of entries in one registry message */
+    public static final CfgInt CFG_PUBLISH_BATCH_SIZE =
+            new CfgInt(JmsRegistryProvider.class, "publishBatchSize", 500);
 
     @Override
     public boolean publish(RegistryValue entry) {
         if (!CFG_ENABLED.value()) return false;
-        return JmsApiImpl.instance.registryPublish(entry);
+        return JmsApiImpl.instance.registryPublisher.publish(entry);
     }
 
     @Override
     public boolean remove(String path) {
         if (!CFG_ENABLED.value()) return false;
-        return JmsApiImpl.instance.registryRemove(path);
+        return JmsApiImpl.instance.registryPublisher.remove(path);
+    }
+
+    @Override
+    public boolean publish(Collection<RegistryValue> entries) {
+        if (!CFG_ENABLED.value()) return false;
+        return JmsApiImpl.instance.registryPublisher.publish(entries);
+    }
+
+    @Override
+    public boolean remove(Collection<String> paths) {
+        if (!CFG_ENABLED.value()) return false;
+        return JmsApiImpl.instance.registryPublisher.remove(paths);
     }
 
     @Override
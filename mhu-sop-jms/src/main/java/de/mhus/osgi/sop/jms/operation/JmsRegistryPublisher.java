@@ -0,0 +1,183 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.jms.operation;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.mhus.lib.core.MLog;
+import de.mhus.osgi.sop.api.registry.RegistryUtil;
+import de.mhus.osgi.sop.api.registry.RegistryValue;
+
+/**
+ * Collects registry changes for a short time window and sends them as one message. Repeated
+ * changes of the same path within the window are collapsed, only the last change is sent. Mutex
+ * entries are sent at once, the master negotiation waits only a short time for other claims.
+ */
+public class JmsRegistryPublisher extends MLog implements Runnable {
+
+    private static final RegistryValue REMOVED =
+            new RegistryValue("", "", 0, "@removed", 0, false, false);
+
+    private JmsApiImpl api;
+    private Object lock = new Object();
+    private LinkedHashMap<String, RegistryValue> pending = new LinkedHashMap<>();
+    private volatile boolean running;
+    private Thread thread;
+
+    public JmsRegistryPublisher(JmsApiImpl api) {
+        this.api = api;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this, "JmsRegistryPublisher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    public boolean publish(RegistryValue entry) {
+        if (isImmediate(entry.getPath())) {
+            discard(entry.getPath());
+            return api.registryPublish(entry);
+        }
+        add(entry.getPath(), entry);
+        return true;
+    }
+
+    public boolean remove(String path) {
+        if (isImmediate(path)) {
+            discard(path);
+            return api.registryRemove(path);
+        }
+        add(path, REMOVED);
+        return true;
+    }
+
+    public boolean publish(Collection<RegistryValue> entries) {
+        LinkedList<RegistryValue> immediate = new LinkedList<>();
+        synchronized (lock) {
+            for (RegistryValue entry : entries) {
+                if (isImmediate(entry.getPath())) {
+                    pending.remove(entry.getPath());
+                    immediate.add(entry);
+                } else add(entry.getPath(), entry);
+            }
+        }
+        return immediate.isEmpty() || api.registryPublish(immediate);
+    }
+
+    public boolean remove(Collection<String> paths) {
+        LinkedList<String> immediate = new LinkedList<>();
+        synchronized (lock) {
+            for (String path : paths) {
+                if (isImmediate(path)) {
+                    pending.remove(path);
+                    immediate.add(path);
+                } else add(path, REMOVED);
+            }
+        }
+        return immediate.isEmpty() || api.registryRemove(immediate);
+    }
+
+    private boolean isImmediate(String path) {
+        return !running
+                || JmsRegistryProvider.CFG_PUBLISH_WINDOW.value() <= 0
+                || path.startsWith(RegistryUtil.MUTEX_PATH);
+    }
+
+    // a pending older change must not overwrite the change sent at once
+    private void discard(String path) {
+        synchronized (lock) {
+            pending.remove(path);
+        }
+    }
+
+    private void add(String path, RegistryValue entry) {
+        synchronized (lock) {
+            // move to the end to keep the order of the last change
+            pending.remove(path);
+            pending.put(path, entry);
+            if (pending.size() == 1
+                    || pending.size() >= JmsRegistryProvider.CFG_PUBLISH_BATCH_SIZE.value())
+                lock.notifyAll();
+        }
+    }
+
+    public int getPendingSize() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            Map<String, RegistryValue> batch = null;
+            synchronized (lock) {
+                try {
+                    // sleep until the first change arrives
+                    while (running && pending.isEmpty()) lock.wait();
+                    // collect more changes for the window or until the batch is full
+                    if (running
+                            && pending.size() < JmsRegistryProvider.CFG_PUBLISH_BATCH_SIZE.value())
+                        lock.wait(Math.max(1, JmsRegistryProvider.CFG_PUBLISH_WINDOW.value()));
+                } catch (InterruptedException e) {
+                }
+                if (pending.isEmpty()) continue;
+                batch = pending;
+                pending = new LinkedHashMap<>();
+            }
+            flush(batch);
+        }
+        // send the rest
+        Map<String, RegistryValue> batch = null;
+        synchronized (lock) {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+        if (!batch.isEmpty()) flush(batch);
+    }
+
+    private void flush(Map<String, RegistryValue> batch) {
+        LinkedList<RegistryValue> publish = new LinkedList<>();
+        LinkedList<String> remove = new LinkedList<>();
+        for (Entry<String, RegistryValue> entry : batch.entrySet()) {
+            if (entry.getValue() == REMOVED) remove.add(entry.getKey());
+            else publish.add(entry.getValue());
+        }
+        boolean ok = true;
+        if (!remove.isEmpty() && !api.registryRemove(remove)) ok = false;
+        if (!publish.isEmpty() && !api.registryPublish(publish)) ok = false;
+        if (!ok) {
+            log().d("requeue failed registry changes", batch.size());
+            synchronized (lock) {
+                // newer changes win
+                for (Entry<String, RegistryValue> entry : batch.entrySet())
+                    pending.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
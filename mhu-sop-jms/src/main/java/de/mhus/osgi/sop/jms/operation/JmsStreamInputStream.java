@@ -0,0 +1,187 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.jms.operation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import de.mhus.osgi.sop.api.Sop;
+
+/**
+ * Result of an operation call received as a stream of chunks, see JmsStreamSender. The chunks are
+ * queued by the reply listener and consumed by the reader. A consumed chunk is given back to the
+ * sender as credit, not more then the window of chunks is held in memory.
+ *
+ * <p>The stream must be closed by the caller, closing an unfinished stream cancels the sender.
+ */
+public class JmsStreamInputStream extends InputStream {
+
+    private static final Object END = new Object();
+
+    private JmsOperationClient client;
+    private String id;
+    private Destination control;
+    private int window;
+    private long timeout;
+    private LinkedBlockingQueue<Object> chunks = new LinkedBlockingQueue<>();
+    // only used by the reply listener
+    private int nextSeq;
+    private byte[] current;
+    private int pos;
+    private int consumed;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * @param client The client receiving the chunks
+     * @param id Correlation id of the operation call
+     * @param control Control queue of the sender
+     * @param window Number of chunks to request in advance
+     * @param timeout Time in ms to wait for the next chunk
+     */
+    public JmsStreamInputStream(
+            JmsOperationClient client, String id, Destination control, int window, long timeout) {
+        this.client = client;
+        this.id = id;
+        this.control = control;
+        this.window = Math.max(1, window);
+        this.timeout = timeout;
+    }
+
+    /** Called by the reply listener for every chunk. */
+    void received(Message msg) {
+        try {
+            int seq = msg.getIntProperty(JmsStreamSender.PROP_SEQ);
+            if (seq != nextSeq) {
+                fail(new IOException("unexpected chunk " + seq + ", expected " + nextSeq));
+                return;
+            }
+            nextSeq++;
+            String error = msg.getStringProperty(Sop.PARAM_ERROR);
+            if (error != null) {
+                fail(new IOException("remote error: " + error));
+                return;
+            }
+            if (msg instanceof BytesMessage) {
+                BytesMessage bytes = (BytesMessage) msg;
+                byte[] data = new byte[(int) bytes.getBodyLength()];
+                bytes.readBytes(data);
+                chunks.add(data);
+            }
+            if (msg.getBooleanProperty(JmsStreamSender.PROP_LAST)) {
+                chunks.add(END);
+                client.removeStream(id);
+            }
+        } catch (JMSException e) {
+            fail(new IOException(e.toString()));
+        }
+    }
+
+    /** Stop the stream with an error, the error is thrown to the reader. */
+    void fail(IOException e) {
+        chunks.add(e);
+        client.removeStream(id);
+    }
+
+    /** Request the first window of chunks */
+    void start() throws JMSException {
+        client.sendStreamControl(control, JmsStreamSender.PROP_CREDIT, window);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        return current[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int size = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, size);
+        pos += size;
+        return size;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null ? 0 : current.length - pos;
+    }
+
+    // make sure the current chunk has bytes left, false at the end of the stream
+    private boolean fill() throws IOException {
+        if (closed) throw new IOException("stream closed");
+        while (current == null || pos >= current.length) {
+            if (finished) return false;
+            if (current != null) {
+                current = null;
+                consumed++;
+                // give credits back in blocks to reduce the number of control messages
+                if (consumed >= (window + 1) / 2) {
+                    try {
+                        client.sendStreamControl(control, JmsStreamSender.PROP_CREDIT, consumed);
+                    } catch (JMSException e) {
+                        throw new IOException(e.toString());
+                    }
+                    consumed = 0;
+                }
+            }
+            Object next;
+            try {
+                next = chunks.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            if (next == null) throw new IOException("stream timeout " + id);
+            if (next == END) {
+                finished = true;
+                return false;
+            }
+            if (next instanceof IOException) {
+                finished = true;
+                throw (IOException) next;
+            }
+            current = (byte[]) next;
+            pos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        current = null;
+        chunks.clear();
+        if (finished) return;
+        client.removeStream(id);
+        try {
+            client.sendStreamControl(control, JmsStreamSender.PROP_CANCEL, 1);
+        } catch (JMSException e) {
+            // the sender will time out
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.jms.operation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+
+import org.apache.activemq.ActiveMQSession;
+
+import de.mhus.lib.core.MLog;
+import de.mhus.lib.jms.JmsConnection;
+import de.mhus.osgi.sop.api.Sop;
+
+/**
+ * Sends a binary result as a sequence of ordered chunks to the reply queue of the caller.
+ *
+ * <p>The answer of the operation call only contains the header and a temporary control queue as
+ * reply destination. The caller sends credits to the control queue, every credit allows to send
+ * one more chunk. The first chunk is sent after the first credit arrived. In this way the caller
+ * holds not more then the credited chunks in memory. If no credit arrives in time an error chunk is
+ * sent, if the caller cancels the stream the sender stops.
+ *
+ * <p>The sender uses its own session of the connection, the credits are received synchronously by
+ * the sending thread.
+ */
+public class JmsStreamSender extends MLog implements Runnable {
+
+    /** Sequence number of a chunk, starting with 0 */
+    public static final String PROP_SEQ = "_stream_seq";
+    /** Set in the last chunk */
+    public static final String PROP_LAST = "_stream_last";
+    /** Number of chunks the caller is ready to receive */
+    public static final String PROP_CREDIT = "_stream_credit";
+    /** Set by the caller to stop the stream */
+    public static final String PROP_CANCEL = "_stream_cancel";
+
+    private JmsConnection con;
+    private Destination replyTo;
+    private String id;
+    private InputStream is;
+    private int chunkSize;
+    private long timeout;
+    private Session session;
+    private TemporaryQueue control;
+    private MessageConsumer consumer;
+    private MessageProducer producer;
+    private int credit;
+
+    /**
+     * @param con The connection
+     * @param replyTo Reply destination of the caller
+     * @param id Correlation id of the operation call
+     * @param is The result, will be closed by the sender
+     * @param chunkSize Maximum size of a chunk in bytes
+     * @param timeout Time in ms to wait for credits
+     */
+    public JmsStreamSender(
+            JmsConnection con,
+            Destination replyTo,
+            String id,
+            InputStream is,
+            int chunkSize,
+            long timeout) {
+        this.con = con;
+        this.replyTo = replyTo;
+        this.id = id;
+        this.is = is;
+        this.chunkSize = Math.max(1024, chunkSize);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Check if the sender is able to create its own session of the connection.
+     *
+     * @param con The connection
+     * @return true if results can be streamed using this connection
+     */
+    public static boolean isSupported(JmsConnection con) {
+        return con.getSession() instanceof ActiveMQSession;
+    }
+
+    /**
+     * Create the session and the control queue.
+     *
+     * @return The control queue, must be set as reply destination of the answer
+     * @throws JMSException
+     */
+    public Destination open() throws JMSException {
+        Session shared = con.getSession();
+        // the shared session of the connection is not allowed to be used by the sender thread
+        if (!(shared instanceof ActiveMQSession)) {
+            close();
+            throw new JMSException("own session not supported");
+        }
+        session =
+                ((ActiveMQSession) shared)
+                        .getConnection()
+                        .createSession(false, Session.AUTO_ACKNOWLEDGE);
+        try {
+            control = session.createTemporaryQueue();
+            consumer = session.createConsumer(control);
+            producer = session.createProducer(replyTo);
+        } catch (JMSException e) {
+            close();
+            throw e;
+        }
+        return control;
+    }
+
+    /**
+     * Start to send the chunks, after this only the executing thread uses the session.
+     *
+     * @param executor The executor
+     */
+    public void start(Executor executor) {
+        executor.execute(this);
+    }
+
+    @Override
+    public void run() {
+        int seq = 0;
+        try {
+            byte[] buffer = new byte[chunkSize];
+            while (true) {
+                if (!awaitCredit()) return;
+                int size = read(buffer);
+                boolean last = size < buffer.length;
+                BytesMessage chunk = session.createBytesMessage();
+                chunk.setJMSCorrelationID(id);
+                chunk.setIntProperty(PROP_SEQ, seq);
+                chunk.setBooleanProperty(PROP_LAST, last);
+                if (size > 0) chunk.writeBytes(buffer, 0, size);
+                producer.send(chunk);
+                seq++;
+                if (last) return;
+            }
+        } catch (Throwable t) {
+            log().d("stream failed", id, seq, t);
+            sendError(seq, t);
+        } finally {
+            close();
+        }
+    }
+
+    // receive the pending control messages and use one credit, false if canceled
+    private boolean awaitCredit() throws JMSException, TimeoutException {
+        long end = System.currentTimeMillis() + timeout;
+        while (true) {
+            Message message;
+            if (credit > 0) {
+                message = consumer.receiveNoWait();
+                if (message == null) break;
+            } else {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) throw new TimeoutException("no credit in time");
+                message = consumer.receive(wait);
+                if (message == null) continue;
+            }
+            if (message.propertyExists(PROP_CANCEL)) {
+                log().d("stream canceled", id);
+                return false;
+            }
+            if (message.propertyExists(PROP_CREDIT)) credit += message.getIntProperty(PROP_CREDIT);
+        }
+        credit--;
+        return true;
+    }
+
+    // fill the buffer, less bytes are returned only at the end of the stream
+    private int read(byte[] buffer) throws IOException {
+        int pos = 0;
+        while (pos < buffer.length) {
+            int size = is.read(buffer, pos, buffer.length - pos);
+            if (size < 0) break;
+            pos += size;
+        }
+        return pos;
+    }
+
+    private void sendError(int seq, Throwable t) {
+        try {
+            Message msg = session.createMessage();
+            msg.setJMSCorrelationID(id);
+            msg.setIntProperty(PROP_SEQ, seq);
+            msg.setBooleanProperty(PROP_LAST, true);
+            msg.setStringProperty(Sop.PARAM_ERROR, String.valueOf(t));
+            producer.send(msg);
+        } catch (Throwable t2) {
+            log().d(id, t2);
+        }
+    }
+
+    public void close() {
+        try {
+            is.close();
+        } catch (Throwable t) {
+            log().d(t);
+        }
+        if (consumer != null)
+            try {
+                consumer.close();
+            } catch (Throwable t) {
+                log().d(t);
+            }
+        consumer = null;
+        if (producer != null)
+            try {
+                producer.close();
+            } catch (Throwable t) {
+                log().d(t);
+            }
+        if (control != null)
+            try {
+                control.delete();
+            } catch (Throwable t) {
+                log().d(t);
+            }
+        control = null;
+        if (session != null)
+            try {
+                session.close();
+            } catch (Throwable t) {
+                log().d(t);
+            }
+        session = null;
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2018 Mike Hummel
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mhus.osgi.sop.test;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.mhus.osgi.sop.jms.operation.JmsOperationWorkers;
+
+/**
+ * Floods the operation workers with slow low priority messages and measures the latency of high
+ * priority messages sent at the same time. Like the JMS channel all messages are passed to the
+ * workers by one listener thread and the lanes have a small queue. The listener must not be
+ * blocked by the full low lane, the low messages are answered busy and the p99 latency of the
+ * high priority messages should stay near the execution time.
+ */
+public class TryOperationLanes {
+
+    private static final int THREADS = 4;
+    private static final int QUEUE_SIZE = 10;
+    private static final int HIGH_TASKS = 500;
+    private static final long TASK_TIME = 2;
+
+    public static void main(String[] args) throws InterruptedException {
+        run(new int[] {1, 1, 1});
+        run(new int[] {1, 4, 16});
+    }
+
+    private static void run(int[] weights) throws InterruptedException {
+        JmsOperationWorkers workers =
+                new JmsOperationWorkers("try", THREADS, QUEUE_SIZE, weights);
+        // the broker queue, the listener takes the messages one by one
+        LinkedBlockingQueue<Message> broker = new LinkedBlockingQueue<>(1000);
+        AtomicBoolean running = new AtomicBoolean(true);
+        long[] latency = new long[HIGH_TASKS];
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger busy = new AtomicInteger();
+        AtomicInteger highBusy = new AtomicInteger();
+
+        Thread listener =
+                new Thread(
+                        () -> {
+                            while (running.get() || !broker.isEmpty()) {
+                                Message msg;
+                                try {
+                                    msg = broker.take();
+                                } catch (InterruptedException e) {
+                                    return;
+                                }
+                                if (workers.execute(msg.priority, msg.task)) continue;
+                                busy.incrementAndGet();
+                                if (msg.priority > 0) {
+                                    highBusy.incrementAndGet();
+                                    done.incrementAndGet();
+                                }
+                            }
+                        });
+        listener.start();
+        Thread flood =
+                new Thread(
+                        () -> {
+                            try {
+                                while (running.get())
+                                    broker.put(new Message(0, () -> work(TASK_TIME)));
+                            } catch (InterruptedException e) {
+                            }
+                        });
+        flood.start();
+        Thread.sleep(200);
+
+        for (int i = 0; i < HIGH_TASKS; i++) {
+            final int nr = i;
+            long start = System.nanoTime();
+            broker.put(
+                    new Message(
+                            9,
+                            () -> {
+                                work(TASK_TIME);
+                                latency[nr] = (System.nanoTime() - start) / 1000000;
+                                done.incrementAndGet();
+                            }));
+            Thread.sleep(1);
+        }
+        while (done.get() < HIGH_TASKS) Thread.sleep(10);
+        running.set(false);
+        flood.join();
+        broker.put(new Message(0, () -> {}));
+        listener.join();
+        workers.close();
+
+        Arrays.sort(latency);
+        System.out.println(
+                "weights "
+                        + Arrays.toString(weights)
+                        + ": p99 "
+                        + latency[HIGH_TASKS * 99 / 100]
+                        + " ms, busy "
+                        + busy.get()
+                        + ", high busy "
+                        + highBusy.get());
+    }
+
+    private static void work(long time) {
+        try {
+            Thread.sleep(time);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private static class Message {
+        private int priority;
+        private Runnable task;
+
+        private Message(int priority, Runnable task) {
+            this.priority = priority;
+            this.task = task;
+        }
+    }
+}